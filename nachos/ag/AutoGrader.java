@@ -186,7 +186,10 @@ public class AutoGrader {
      */
     public void runningThread(KThread thread) {
 	privilege.tcb.associateThread(thread);
-	currentThread = thread;
+
+	if (currentThreads == null)
+	    currentThreads = new KThread[Machine.numProcessors()];
+	currentThreads[Machine.currentProcessor()] = thread;
     }
 
     /**
@@ -195,7 +198,27 @@ public class AutoGrader {
      * the thread to sleep and scheduling its TCB to be destroyed.
      */
     public void finishingCurrentThread() {
-	privilege.tcb.authorizeDestroy(currentThread);
+	privilege.tcb.authorizeDestroy(currentThreads[Machine.currentProcessor()]);
+    }
+
+    /**
+     * Notify the autograder that the kernel's scheduler keeps deadlines and
+     * will report the jobs that miss them, so that the misses are printed
+     * with the machine's statistics.
+     */
+    public void countingDeadlineMisses() {
+	privilege.stats.countingDeadlineMisses = true;
+    }
+
+    /**
+     * Notify the autograder that a job of the specified real-time thread has
+     * missed its deadline. The scheduler must call this method once for each
+     * such job. The miss is counted in the machine's statistics.
+     *
+     * @param	thread	the thread whose job missed its deadline.
+     */
+    public void missedDeadline(KThread thread) {
+	privilege.stats.numDeadlineMisses++;
     }
 
     /**
@@ -275,5 +298,6 @@ public class AutoGrader {
 	return true;
     }
     
-    private KThread currentThread;
+    /** The thread running on each processor. */
+    private KThread[] currentThreads = null;
 }
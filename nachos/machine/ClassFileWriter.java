@@ -0,0 +1,440 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Assembles a Java class file containing a default constructor and a single
+ * method. The class file uses version 49, so the JVM verifies it by type
+ * inference and no stack map frames need to be generated.
+ *
+ * <p>
+ * This is only as general as the processor's JIT needs it to be.
+ */
+final class ClassFileWriter {
+    /**
+     * Allocate a new class file writer.
+     *
+     * @param	className	the internal name of the class to write.
+     * @param	superName	the internal name of its superclass, which must
+     *				have an accessible no-argument constructor.
+     */
+    ClassFileWriter(String className, String superName) {
+	this.superName = superName;
+
+	thisClass = classRef(className);
+	superClass = classRef(superName);
+    }
+
+    /** A position in the code, which may be used before it is marked. */
+    static final class Label {
+	private int position = -1;
+	private ArrayList<int[]> fixups = new ArrayList<int[]>();
+    }
+
+    /**
+     * Return the constant pool index of a UTF-8 string.
+     */
+    int utf8(String value) {
+	return constant("U" + value, 1, value);
+    }
+
+    /**
+     * Return the constant pool index of a class reference.
+     */
+    int classRef(String name) {
+	String key = "C" + name;
+	Integer index = constants.get(key);
+	if (index != null)
+	    return index;
+
+	int nameIndex = utf8(name);
+	return add(key, new int[] { 7, nameIndex });
+    }
+
+    /**
+     * Return the constant pool index of a method reference.
+     */
+    int methodRef(String owner, String name, String descriptor) {
+	String key = "M" + owner + "." + name + descriptor;
+	Integer index = constants.get(key);
+	if (index != null)
+	    return index;
+
+	int classIndex = classRef(owner);
+	int nameIndex = utf8(name);
+	int typeIndex = utf8(descriptor);
+	int natIndex = add("N" + name + descriptor,
+			   new int[] { 12, nameIndex, typeIndex });
+
+	return add(key, new int[] { 10, classIndex, natIndex });
+    }
+
+    /**
+     * Return the constant pool index of an integer constant.
+     */
+    int integer(int value) {
+	return constant("I" + value, 3, value);
+    }
+
+    /**
+     * Return the constant pool index of a long constant.
+     */
+    int longConstant(long value) {
+	String key = "J" + value;
+	Integer index = constants.get(key);
+	if (index != null)
+	    return index;
+
+	index = add(key, new Object[] { 5, value });
+	// longs take two constant pool entries
+	pool.add(null);
+	return index;
+    }
+
+    private int constant(String key, int tag, Object value) {
+	Integer index = constants.get(key);
+	if (index != null)
+	    return index;
+
+	return add(key, new Object[] { tag, value });
+    }
+
+    private int add(String key, Object entry) {
+	pool.add(entry);
+	int index = pool.size();
+	constants.put(key, index);
+	return index;
+    }
+
+    /**
+     * Emit an instruction with no operands.
+     */
+    void op(int opcode) {
+	code.write(opcode);
+    }
+
+    /**
+     * Emit an instruction with a one-byte operand.
+     */
+    void op1(int opcode, int operand) {
+	code.write(opcode);
+	code.write(operand);
+    }
+
+    /**
+     * Emit an instruction with a two-byte operand.
+     */
+    void op2(int opcode, int operand) {
+	code.write(opcode);
+	code.write(operand >> 8);
+	code.write(operand);
+    }
+
+    /**
+     * Push an integer constant, using the shortest encoding.
+     */
+    void pushInt(int value) {
+	if (value >= -1 && value <= 5)
+	    op(ICONST_0 + value);
+	else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE)
+	    op1(BIPUSH, value);
+	else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE)
+	    op2(SIPUSH, value);
+	else
+	    op2(LDC_W, integer(value));
+    }
+
+    /**
+     * Push a long constant.
+     */
+    void pushLong(long value) {
+	op2(LDC2_W, longConstant(value));
+    }
+
+    void iload(int local) {
+	op1(ILOAD, local);
+    }
+
+    void istore(int local) {
+	op1(ISTORE, local);
+    }
+
+    void iinc(int local, int amount) {
+	code.write(IINC);
+	code.write(local);
+	code.write(amount);
+    }
+
+    void invokestatic(String owner, String name, String descriptor) {
+	op2(INVOKESTATIC, methodRef(owner, name, descriptor));
+    }
+
+    void invokevirtual(String owner, String name, String descriptor) {
+	op2(INVOKEVIRTUAL, methodRef(owner, name, descriptor));
+    }
+
+    Label newLabel() {
+	return new Label();
+    }
+
+    /**
+     * Mark the current position as the target of a label.
+     */
+    void mark(Label label) {
+	Lib.assertTrue(label.position == -1);
+
+	label.position = code.size();
+    }
+
+    /**
+     * Emit a branch instruction with a 16-bit offset to a label.
+     */
+    void jump(int opcode, Label label) {
+	label.fixups.add(new int[] { code.size(), code.size()+1, 2 });
+	op2(opcode, 0);
+    }
+
+    /**
+     * Emit a <tt>lookupswitch</tt> instruction.
+     *
+     * @param	defaultLabel	the label to jump to if no key matches.
+     * @param	keys		the keys, in increasing order.
+     * @param	labels		the label to jump to for each key.
+     */
+    void lookupSwitch(Label defaultLabel, int[] keys, Label[] labels) {
+	int start = code.size();
+
+	code.write(LOOKUPSWITCH);
+	while (code.size()%4 != 0)
+	    code.write(0);
+
+	defaultLabel.fixups.add(new int[] { start, code.size(), 4 });
+	writeInt(0);
+	writeInt(keys.length);
+
+	for (int i=0; i<keys.length; i++) {
+	    Lib.assertTrue(i == 0 || keys[i-1] < keys[i]);
+
+	    writeInt(keys[i]);
+	    labels[i].fixups.add(new int[] { start, code.size(), 4 });
+	    writeInt(0);
+	}
+    }
+
+    private void writeInt(int value) {
+	code.write(value >> 24);
+	code.write(value >> 16);
+	code.write(value >> 8);
+	code.write(value);
+    }
+
+    /**
+     * Return the number of bytes of code emitted so far.
+     */
+    int codeSize() {
+	return code.size();
+    }
+
+    /**
+     * Finish the method and return the class file.
+     *
+     * @param	name		the name of the method.
+     * @param	descriptor	the descriptor of the method.
+     * @param	labels		every label used by the method.
+     * @param	maxStack	the maximum depth of the operand stack.
+     * @param	maxLocals	the number of local variable slots.
+     * @return	the contents of the class file, or <tt>null</tt> if the
+     *		method is too large.
+     */
+    byte[] finish(String name, String descriptor, ArrayList<Label> labels,
+		  int maxStack, int maxLocals) {
+	byte[] bytes = code.toByteArray();
+	if (bytes.length > 0xFFFF)
+	    return null;
+
+	for (Label label : labels) {
+	    Lib.assertTrue(label.position != -1);
+
+	    for (int[] fixup : label.fixups) {
+		int offset = label.position - fixup[0];
+		if (fixup[2] == 2) {
+		    if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE)
+			return null;
+		    bytes[fixup[1]] = (byte) (offset >> 8);
+		    bytes[fixup[1]+1] = (byte) offset;
+		}
+		else {
+		    for (int i=0; i<4; i++)
+			bytes[fixup[1]+i] = (byte) (offset >> (24-8*i));
+		}
+	    }
+	}
+
+	int codeAttribute = utf8("Code");
+	int initName = utf8("<init>");
+	int initType = utf8("()V");
+	int superInit = methodRef(superName, "<init>", "()V");
+	int methodName = utf8(name);
+	int methodType = utf8(descriptor);
+
+	ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+	DataOutputStream out = new DataOutputStream(buffer);
+
+	try {
+	    out.writeInt(0xCAFEBABE);
+	    out.writeShort(0);
+	    out.writeShort(49);
+
+	    out.writeShort(pool.size()+1);
+	    for (Object entry : pool) {
+		if (entry == null)
+		    continue;
+
+		if (entry instanceof int[]) {
+		    int[] ref = (int[]) entry;
+		    out.writeByte(ref[0]);
+		    for (int i=1; i<ref.length; i++)
+			out.writeShort(ref[i]);
+		    continue;
+		}
+
+		Object[] constant = (Object[]) entry;
+		int tag = (Integer) constant[0];
+		out.writeByte(tag);
+		switch (tag) {
+		case 1:
+		    out.writeUTF((String) constant[1]);
+		    break;
+		case 3:
+		    out.writeInt((Integer) constant[1]);
+		    break;
+		case 5:
+		    out.writeLong((Long) constant[1]);
+		    break;
+		default:
+		    Lib.assertNotReached();
+		}
+	    }
+
+	    out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+	    out.writeShort(thisClass);
+	    out.writeShort(superClass);
+	    out.writeShort(0);		// interfaces
+	    out.writeShort(0);		// fields
+	    out.writeShort(2);		// methods
+
+	    // public <init>() { super(); }
+	    out.writeShort(ACC_PUBLIC);
+	    out.writeShort(initName);
+	    out.writeShort(initType);
+	    out.writeShort(1);
+	    out.writeShort(codeAttribute);
+	    out.writeInt(12 + 5);
+	    out.writeShort(1);
+	    out.writeShort(1);
+	    out.writeInt(5);
+	    out.writeByte(ALOAD_0);
+	    out.writeByte(INVOKESPECIAL);
+	    out.writeShort(superInit);
+	    out.writeByte(RETURN);
+	    out.writeShort(0);
+	    out.writeShort(0);
+
+	    out.writeShort(ACC_PUBLIC | ACC_FINAL);
+	    out.writeShort(methodName);
+	    out.writeShort(methodType);
+	    out.writeShort(1);
+	    out.writeShort(codeAttribute);
+	    out.writeInt(12 + bytes.length);
+	    out.writeShort(maxStack);
+	    out.writeShort(maxLocals);
+	    out.writeInt(bytes.length);
+	    out.write(bytes);
+	    out.writeShort(0);
+	    out.writeShort(0);
+
+	    out.writeShort(0);		// class attributes
+	    out.flush();
+	}
+	catch (IOException e) {
+	    Lib.assertNotReached();
+	}
+
+	return buffer.toByteArray();
+    }
+
+    private String superName;
+    private int thisClass, superClass;
+
+    private ArrayList<Object> pool = new ArrayList<Object>();
+    private HashMap<String,Integer> constants = new HashMap<String,Integer>();
+    private ByteArrayOutputStream code = new ByteArrayOutputStream();
+
+    static final int
+	ACC_PUBLIC	= 0x0001,
+	ACC_FINAL	= 0x0010,
+	ACC_SUPER	= 0x0020;
+
+    static final int
+	ICONST_0	= 0x03,
+	BIPUSH		= 0x10,
+	SIPUSH		= 0x11,
+	LDC_W		= 0x13,
+	LDC2_W		= 0x14,
+	ILOAD		= 0x15,
+	ALOAD_0		= 0x2a,
+	ALOAD_1		= 0x2b,
+	ALOAD_2		= 0x2c,
+	ASTORE_2	= 0x4d,
+	IALOAD		= 0x2e,
+	BALOAD		= 0x33,
+	ISTORE		= 0x36,
+	LSTORE		= 0x37,
+	LLOAD		= 0x16,
+	IASTORE		= 0x4f,
+	BASTORE		= 0x54,
+	POP		= 0x57,
+	DUP		= 0x59,
+	IADD		= 0x60,
+	ISUB		= 0x64,
+	LMUL		= 0x69,
+	ISHL		= 0x78,
+	LSHR		= 0x7b,
+	ISHR		= 0x7a,
+	LUSHR		= 0x7d,
+	IAND		= 0x7e,
+	LAND		= 0x7f,
+	IOR		= 0x80,
+	IXOR		= 0x82,
+	IINC		= 0x84,
+	I2L		= 0x85,
+	L2I		= 0x88,
+	I2B		= 0x91,
+	I2S		= 0x93,
+	IFEQ		= 0x99,
+	IFNE		= 0x9a,
+	IFLT		= 0x9b,
+	IFGE		= 0x9c,
+	IFGT		= 0x9d,
+	IFLE		= 0x9e,
+	IF_ICMPEQ	= 0x9f,
+	IF_ICMPNE	= 0xa0,
+	IF_ICMPLT	= 0xa1,
+	IF_ICMPGE	= 0xa2,
+	IF_ICMPGT	= 0xa3,
+	IF_ICMPLE	= 0xa4,
+	GOTO		= 0xa7,
+	LOOKUPSWITCH	= 0xab,
+	IRETURN		= 0xac,
+	RETURN		= 0xb1,
+	INVOKEVIRTUAL	= 0xb6,
+	INVOKESPECIAL	= 0xb7,
+	INVOKESTATIC	= 0xb8,
+	CHECKCAST	= 0xc0;
+}
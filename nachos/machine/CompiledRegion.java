@@ -0,0 +1,143 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.security.PrivilegedAction;
+
+/**
+ * A region of MIPS code that the processor has compiled into JVM bytecode.
+ * Subclasses are generated by the processor at run time and loaded by their
+ * own class loader; no other code should extend this class.
+ *
+ * <p>
+ * Compiled code keeps the MIPS registers in local variables and accesses
+ * main memory directly. Whenever it cannot continue (because control leaves
+ * the region, the tick budget runs out, or an address translation would
+ * fail), it stores the registers back and returns, and the processor
+ * continues with the next instruction as usual.
+ */
+public abstract class CompiledRegion {
+    /**
+     * Allocate a new compiled region.
+     */
+    protected CompiledRegion() {
+    }
+
+    /**
+     * Execute instructions starting at the current PC, which must be the
+     * start of a basic block in this region.
+     *
+     * @param	registers	the processor's registers.
+     * @param	memory		the processor's main memory, either a
+     *				<tt>byte[]</tt> or a direct
+     *				<tt>ByteBuffer</tt>, as it was when the
+     *				region was compiled.
+     * @param	budget		the maximum number of instructions to execute.
+     * @return	the number of instructions executed.
+     */
+    public abstract int run(int[] registers, Object memory, int budget);
+
+    /**
+     * Translate a virtual address, as the processor would for a memory
+     * access, but return <tt>-1</tt> instead of causing an exception.
+     *
+     * @param	vaddr	the virtual address to translate.
+     * @param	size	the size of the memory reference (1, 2, or 4).
+     * @param	writing	<tt>true</tt> if the memory reference is a write.
+     * @return	the physical address, or <tt>-1</tt> if the access must be
+     *		left to the processor.
+     */
+    protected final int translate(int vaddr, int size, boolean writing) {
+	return processor.probeTranslation(vaddr, size, writing);
+    }
+
+    /**
+     * Leave the region at the specified exit, setting the PC and any delayed
+     * load that is still in progress.
+     *
+     * @param	registers	the processor's registers.
+     * @param	exit		the exit being taken.
+     * @param	pc		the PC to continue at, for exit 0.
+     * @param	target		the branch target, for exits in a delay slot.
+     * @param	loadValue	the value being loaded, for exits after a
+     *				load.
+     * @param	done		the instructions executed before the block
+     *				containing the exit.
+     * @return	the number of instructions executed.
+     */
+    protected final int exit(int[] registers, int exit, int pc, int target,
+			     int loadValue, int done) {
+	if (exit != 0)
+	    pc = exitPC[exit];
+
+	registers[Processor.regPC] = pc;
+	registers[Processor.regNextPC] = exitDelaySlot[exit] ? target : pc+4;
+
+	if (exitLoadTarget[exit] != 0)
+	    processor.pendingLoad(exitLoadTarget[exit], loadValue);
+
+	return done + exitProgress[exit];
+    }
+
+    /**
+     * Define a new compiled region class, using a class loader of its own so
+     * that it can be unloaded once the region is discarded. Must be called
+     * with privilege.
+     *
+     * @param	privilege	the privilege to create the class loader with.
+     * @param	name	the name of the class.
+     * @param	code	the contents of the class file.
+     * @return	a new instance of the class.
+     */
+    static CompiledRegion define(Privilege privilege, String name,
+				 byte[] code) {
+	RegionLoader loader = (RegionLoader)
+	    privilege.doClassLoading(new PrivilegedAction() {
+		public Object run() {
+		    return new RegionLoader();
+		}
+	    });
+
+	try {
+	    return (CompiledRegion)
+		loader.define(name, code).getConstructor().newInstance();
+	}
+	catch (Exception e) {
+	    Lib.debug(dbgJIT, "failed to load " + name + ": " + e);
+	    return null;
+	}
+	catch (LinkageError e) {
+	    Lib.debug(dbgJIT, "failed to load " + name + ": " + e);
+	    return null;
+	}
+    }
+
+    private static class RegionLoader extends ClassLoader {
+	RegionLoader() {
+	    super(CompiledRegion.class.getClassLoader());
+	}
+
+	Class<?> define(String name, byte[] code) {
+	    return defineClass(name, code, 0, code.length);
+	}
+    }
+
+    /** The processor that compiled this region. */
+    Processor processor;
+
+    /** The virtual page number this region was compiled for. */
+    int vpn;
+
+    /** The address of the instruction at which each exit leaves. */
+    int[] exitPC;
+    /** The instructions of its block executed before each exit. */
+    int[] exitProgress;
+    /** Whether each exit leaves in a branch delay slot. */
+    boolean[] exitDelaySlot;
+    /** The target of the delayed load in progress at each exit, or 0. */
+    int[] exitLoadTarget;
+
+    private static final char dbgJIT = 'j';
+}
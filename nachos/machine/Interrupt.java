@@ -4,9 +4,7 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
+import java.util.Arrays;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -38,6 +36,20 @@ import java.util.SortedSet;
  * simulation (even with randomized time slices), but it wouldn't work on real
  * hardware. But even though Nachos can't always detect when your program
  * would fail in real life, you should still write properly synchronized code.
+ *
+ * <p>
+ * Pending interrupts are kept in a 4-ary heap ordered by time, with the time
+ * of the earliest cached, so that checking for due interrupts on every tick
+ * is a single comparison. Their records are recycled once they occur.
+ *
+ * <p>
+ * On a machine with more than one processor, the interrupt controller also
+ * holds the kernel lock. Only one processor at a time runs kernel code, so
+ * disabling interrupts still gives mutual exclusion, but processors running
+ * MIPS user code release the lock and run in parallel. There is a single
+ * clock, which advances with the instructions executed by every processor.
+ * A processor with nothing to do can wait in <tt>idle()</tt> until another
+ * sends it an inter-processor interrupt.
  */
 public final class Interrupt {
     /**
@@ -53,7 +65,20 @@ public final class Interrupt {
 	privilege.interrupt = new InterruptPrivilege();
 	
 	enabled = false;
-	pending = new TreeSet<PendingInterrupt>();
+	pending = new PendingInterrupt[16];
+
+	// the first processor starts out running the kernel
+	numProcessors = Machine.numProcessors();
+	kernelLocked = true;
+	idleProcessors = new boolean[numProcessors];
+	ipiPending = new boolean[numProcessors];
+
+	// The first string concatenation links java.lang.invoke classes that
+	// read system properties, which kernel threads may not do. schedule()
+	// only builds its debug message with the 'i' flag on, so make sure it
+	// happens here, while the machine is still being set up.
+	Lib.debug(dbgInt, "Interrupt controller for " + numProcessors +
+		  " processor(s)");
     }
 
     /**
@@ -120,17 +145,247 @@ public final class Interrupt {
 	return !enabled;
     }
 
+    /**
+     * Send an inter-processor interrupt to the specified processor. If it is
+     * waiting in <tt>idle()</tt>, it returns as soon as it can reacquire the
+     * kernel lock; otherwise its next call to <tt>idle()</tt> returns
+     * immediately.
+     *
+     * @param	processor	the number of the processor to interrupt.
+     */
+    public void sendIPI(int processor) {
+	Lib.assertTrue(disabled());
+	Lib.assertTrue(processor >= 0 && processor < numProcessors);
+
+	Lib.debug(dbgInt, "Sending IPI to processor " + processor);
+
+	synchronized (kernelLock) {
+	    ipiPending[processor] = true;
+	    kernelLock.notifyAll();
+	}
+    }
+
+    /**
+     * Return a processor that is waiting in <tt>idle()</tt>.
+     *
+     * @return	the number of an idle processor, or <tt>-1</tt> if every
+     *		processor is busy.
+     */
+    public int getIdleProcessor() {
+	if (numIdleProcessors == 0)
+	    return -1;
+
+	synchronized (kernelLock) {
+	    for (int i=0; i<numProcessors; i++) {
+		if (idleProcessors[i] && !ipiPending[i])
+		    return i;
+	    }
+	}
+
+	return -1;
+    }
+
+    /**
+     * Return <tt>true</tt> if the specified processor is waiting in
+     * <tt>idle()</tt> and has not yet been sent an inter-processor interrupt.
+     *
+     * @param	processor	the number of the processor to check.
+     * @return	<tt>true</tt> if the processor is idle.
+     */
+    public boolean isIdle(int processor) {
+	Lib.assertTrue(processor >= 0 && processor < numProcessors);
+
+	if (numIdleProcessors == 0)
+	    return false;
+
+	synchronized (kernelLock) {
+	    return idleProcessors[processor] && !ipiPending[processor];
+	}
+    }
+
+    /**
+     * Called when the current processor has no thread ready to run. Release
+     * the kernel lock and wait for an inter-processor interrupt, then
+     * reacquire the lock. Must be called with interrupts enabled.
+     *
+     * <p>
+     * Returns immediately if an interrupt has already been sent to this
+     * processor. If every other processor is idle too (in particular, if
+     * there is only one processor), nothing can happen until the next
+     * pending interrupt, so instead of waiting, the simulated time is
+     * advanced to just before it is due, as though the kernel had spun
+     * until then. The next tick then invokes its handler.
+     */
+    public void idle() {
+	Lib.assertTrue(enabled());
+
+	if (numProcessors == 1) {
+	    fastForward();
+	    return;
+	}
+
+	int processor = Machine.currentProcessor();
+
+	synchronized (kernelLock) {
+	    if (!ipiPending[processor] &&
+		numIdleProcessors == numProcessors-1) {
+		fastForward();
+	    }
+	    else if (!ipiPending[processor]) {
+		idleProcessors[processor] = true;
+		numIdleProcessors++;
+
+		releaseKernel();
+
+		while (!ipiPending[processor])
+		    waitForKernelLock();
+
+		idleProcessors[processor] = false;
+		numIdleProcessors--;
+
+		acquireKernel();
+	    }
+
+	    ipiPending[processor] = false;
+	}
+    }
+
+    private void fastForward() {
+	if (numPending == 0)
+	    return;
+
+	long ticks = nextDueTime - privilege.stats.totalTicks;
+
+	// skip every kernel tick that would end before the interrupt is due
+	long skipped = ((ticks-1) / Stats.KernelTick) * Stats.KernelTick;
+	if (skipped <= 0)
+	    return;
+
+	Lib.debug(dbgInt, "Idle, skipping " + skipped + " ticks");
+
+	privilege.stats.kernelTicks += skipped;
+	privilege.stats.totalTicks += skipped;
+    }
+
+    private void acquireKernel() {
+	synchronized (kernelLock) {
+	    while (kernelLocked)
+		waitForKernelLock();
+
+	    kernelLocked = true;
+	}
+    }
+
+    private void releaseKernel() {
+	Lib.assertTrue(enabled());
+	
+	synchronized (kernelLock) {
+	    Lib.assertTrue(kernelLocked);
+
+	    kernelLocked = false;
+	    kernelLock.notifyAll();
+	}
+    }
+
+    private void waitForKernelLock() {
+	try {
+	    kernelLock.wait();
+	}
+	catch (InterruptedException e) {
+	}
+    }
+
     private void schedule(long when, String type, Runnable handler) {
 	Lib.assertTrue(when>0);
 	
 	long time = privilege.stats.totalTicks + when;
-	PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
 
-	Lib.debug(dbgInt,
-		  "Scheduling the " + type +
-		  " interrupt handler at time = " + time);
+	PendingInterrupt toOccur = freeInterrupts;
+	if (toOccur != null)
+	    freeInterrupts = toOccur.nextFree;
+	else
+	    toOccur = new PendingInterrupt();
+
+	toOccur.time = time;
+	toOccur.type = type;
+	toOccur.handler = handler;
+	toOccur.id = numPendingInterruptsCreated++;
 
-	pending.add(toOccur);
+	if (Lib.test(dbgInt))
+	    Lib.debug(dbgInt,
+		      "Scheduling the " + type +
+		      " interrupt handler at time = " + time);
+
+	if (numPending == pending.length)
+	    pending = Arrays.copyOf(pending, numPending*2);
+
+	siftUp(numPending++, toOccur);
+	nextDueTime = pending[0].time;
+    }
+
+    /**
+     * Remove and return the earliest pending interrupt.
+     */
+    private PendingInterrupt removeFirst() {
+	PendingInterrupt first = pending[0];
+
+	PendingInterrupt last = pending[--numPending];
+	pending[numPending] = null;
+
+	if (numPending > 0) {
+	    siftDown(0, last);
+	    nextDueTime = pending[0].time;
+	}
+	else {
+	    nextDueTime = Long.MAX_VALUE;
+	}
+
+	return first;
+    }
+
+    /**
+     * Move a pending interrupt up from a hole in the heap until it is no
+     * earlier than its parent.
+     */
+    private void siftUp(int hole, PendingInterrupt toOccur) {
+	while (hole > 0) {
+	    int parent = (hole-1) >>> 2;
+	    if (!toOccur.before(pending[parent]))
+		break;
+
+	    pending[hole] = pending[parent];
+	    hole = parent;
+	}
+
+	pending[hole] = toOccur;
+    }
+
+    /**
+     * Move a pending interrupt down from a hole in the heap until it is no
+     * later than any of its children.
+     */
+    private void siftDown(int hole, PendingInterrupt toOccur) {
+	while (true) {
+	    int child = 4*hole + 1;
+	    if (child >= numPending)
+		break;
+
+	    // find the earliest of up to four children
+	    int end = Math.min(child+4, numPending);
+	    int earliest = child;
+	    for (int i=child+1; i<end; i++) {
+		if (pending[i].before(pending[earliest]))
+		    earliest = i;
+	    }
+
+	    if (!pending[earliest].before(toOccur))
+		break;
+
+	    pending[hole] = pending[earliest];
+	    hole = earliest;
+	}
+
+	pending[hole] = toOccur;
     }
 
     private void tick(boolean inKernelMode) {
@@ -153,6 +408,46 @@ public final class Interrupt {
 	enabled = true;
     }
 
+    private long nextDueTime() {
+	return nextDueTime;
+    }
+
+    private void settleUserTicks(int numInstructions) {
+	Stats stats = privilege.stats;
+
+	stats.userTicks += numInstructions*Stats.UserTick;
+	stats.totalTicks += numInstructions*Stats.UserTick;
+    }
+
+    private long reserveUserTicks(long ticks) {
+	long available =
+	    nextDueTime - 1 - privilege.stats.totalTicks - reservedTicks;
+
+	ticks = Math.max(Math.min(ticks, available), 0);
+	reservedTicks += ticks;
+	return ticks;
+    }
+
+    private void settleUserTicks(int numInstructions, long reserved) {
+	Lib.assertTrue(reserved >= numInstructions*Stats.UserTick);
+
+	reservedTicks -= reserved;
+	settleUserTicks(numInstructions);
+
+	// kernel code on other processors may have used up the time
+	if (nextDueTime <= privilege.stats.totalTicks) {
+	    enabled = false;
+	    checkIfDue();
+	    enabled = true;
+	}
+    }
+
+    private boolean userTickAvailable() {
+	return reservedTicks == 0 ||
+	    privilege.stats.totalTicks + reservedTicks + Stats.UserTick <
+	    nextDueTime;
+    }
+
     private void checkIfDue() {
 	long time = privilege.stats.totalTicks;
 
@@ -161,27 +456,31 @@ public final class Interrupt {
 	if (Lib.test(dbgInt))
 	    print();
 
-	if (pending.isEmpty())
-	    return;
-
-	if (((PendingInterrupt) pending.first()).time > time)
+	if (nextDueTime > time)
 	    return;
 
 	Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
 	
-	while (!pending.isEmpty() &&
-	       ((PendingInterrupt) pending.first()).time <= time) {
-	    PendingInterrupt next = (PendingInterrupt) pending.first();
-	    pending.remove(next);
+	while (nextDueTime <= time) {
+	    PendingInterrupt next = removeFirst();
 
 	    Lib.assertTrue(next.time <= time);
 
+	    String type = next.type;
+	    Runnable handler = next.handler;
+
+	    // the handler may schedule another interrupt with this record
+	    next.type = null;
+	    next.handler = null;
+	    next.nextFree = freeInterrupts;
+	    freeInterrupts = next;
+
 	    if (privilege.processor != null)
 		privilege.processor.flushPipe();
 
-	    Lib.debug(dbgInt, "  " + next.type);
+	    Lib.debug(dbgInt, "  " + type);
 			
-	    next.handler.run();
+	    handler.run();
 	}
 
 	Lib.debug(dbgInt, "  (end of list)");
@@ -192,8 +491,10 @@ public final class Interrupt {
 			   + ", interrupts " + (enabled ? "on" : "off"));
 	System.out.println("Pending interrupts:");
 
-	for (Iterator i=pending.iterator(); i.hasNext(); ) {
-	    PendingInterrupt toOccur = (PendingInterrupt) i.next();
+	PendingInterrupt[] sorted = Arrays.copyOf(pending, numPending);
+	Arrays.sort(sorted);
+	
+	for (PendingInterrupt toOccur : sorted) {
 	    System.out.println("  " + toOccur.type +
 			       ", scheduled at " + toOccur.time);
 	}
@@ -201,25 +502,21 @@ public final class Interrupt {
 	System.out.println("  (end of list)");
     }
 
-    private class PendingInterrupt implements Comparable {
-	PendingInterrupt(long time, String type, Runnable handler) {
-	    this.time = time;
-	    this.type = type;
-	    this.handler = handler;
-	    this.id = numPendingInterruptsCreated++;
+    private static class PendingInterrupt
+	implements Comparable<PendingInterrupt> {
+	/**
+	 * Test if this interrupt occurs before another. Interrupts scheduled
+	 * for the same time occur in the order they were scheduled.
+	 */
+	boolean before(PendingInterrupt toOccur) {
+	    return time < toOccur.time ||
+		(time == toOccur.time && id < toOccur.id);
 	}
 
-	public int compareTo(Object o) {
-	    PendingInterrupt toOccur = (PendingInterrupt) o;
-
-	    // can't return 0 for unequal objects, so check all fields
-	    if (time < toOccur.time)
-		return -1;
-	    else if (time > toOccur.time)
-		return 1;
-	    else if (id < toOccur.id)
+	public int compareTo(PendingInterrupt toOccur) {
+	    if (before(toOccur))
 		return -1;
-	    else if (id > toOccur.id)
+	    else if (toOccur.before(this))
 		return 1;
 	    else
 		return 0;
@@ -230,6 +527,8 @@ public final class Interrupt {
 	Runnable handler;
 
 	private long id;
+	/** The next record on the free list. */
+	private PendingInterrupt nextFree;
     }
     
     private long numPendingInterruptsCreated = 0;
@@ -237,7 +536,29 @@ public final class Interrupt {
     private Privilege privilege;
 
     private boolean enabled;
-    private TreeSet<PendingInterrupt> pending;
+    /** A 4-ary heap of the pending interrupts, ordered by time. */
+    private PendingInterrupt[] pending;
+    private int numPending = 0;
+    /** The time of the earliest pending interrupt. */
+    private long nextDueTime = Long.MAX_VALUE;
+    /**
+     * The ticks before <tt>nextDueTime</tt> that processors running user
+     * code without the kernel lock may still charge.
+     */
+    private long reservedTicks = 0;
+    /** Records of interrupts that have occurred, for reuse. */
+    private PendingInterrupt freeInterrupts = null;
+
+    private int numProcessors;
+    /** The monitor guarding the kernel lock and the fields below. */
+    private final Object kernelLock = new Object();
+    /** <tt>true</tt> if some processor is running kernel code. */
+    private boolean kernelLocked;
+    /** Which processors are waiting in <tt>idle()</tt>. */
+    private boolean[] idleProcessors;
+    private volatile int numIdleProcessors = 0;
+    /** Which processors have been sent an IPI they have not yet seen. */
+    private boolean[] ipiPending;
 
     private static final char dbgInt = 'i';
 
@@ -249,5 +570,33 @@ public final class Interrupt {
 	public void tick(boolean inKernelMode) {
 	    Interrupt.this.tick(inKernelMode);
 	}
+
+	public long nextDueTime() {
+	    return Interrupt.this.nextDueTime();
+	}
+
+	public void settleUserTicks(int numInstructions) {
+	    Interrupt.this.settleUserTicks(numInstructions);
+	}
+
+	public long reserveUserTicks(long ticks) {
+	    return Interrupt.this.reserveUserTicks(ticks);
+	}
+
+	public void settleUserTicks(int numInstructions, long reserved) {
+	    Interrupt.this.settleUserTicks(numInstructions, reserved);
+	}
+
+	public boolean userTickAvailable() {
+	    return Interrupt.this.userTickAvailable();
+	}
+
+	public void acquireKernel() {
+	    Interrupt.this.acquireKernel();
+	}
+
+	public void releaseKernel() {
+	    Interrupt.this.releaseKernel();
+	}
     }
 }
@@ -167,8 +167,13 @@ public final class Machine {
     }
 
     private static void createDevices() {
+	if (Config.getBoolean("Machine.processor"))
+	    numProcessors = Config.getInteger("Machine.numProcessors", 1);
+	Lib.assertTrue(numProcessors >= 1, "bad value for Machine.numProcessors");
+
 	interrupt = new Interrupt(privilege);
 	timer = new Timer(privilege);
+	oneShotTimer = new OneShotTimer(privilege);
 
 	if (Config.getBoolean("Machine.bank"))
 	    bank = new ElevatorBank(privilege);
@@ -176,7 +181,10 @@ public final class Machine {
 	if (Config.getBoolean("Machine.processor")) {
 	    if (numPhysPages == -1)
 		numPhysPages = Config.getInteger("Processor.numPhysPages");
-	    processor = new Processor(privilege, numPhysPages);
+	    processors = new Processor[numProcessors];
+	    processors[0] = new Processor(privilege, numPhysPages);
+	    for (int i=1; i<numProcessors; i++)
+		processors[i] = new Processor(privilege, processors[0], i);
 	}				      
 
 	if (Config.getBoolean("Machine.console"))
@@ -307,6 +315,13 @@ public final class Machine {
      * @return	the hardware timer.
      */
     public static Timer timer() { return timer; }
+
+    /**
+     * Return the hardware one-shot timer.
+     *
+     * @return	the hardware one-shot timer.
+     */
+    public static OneShotTimer oneShotTimer() { return oneShotTimer; }
     
     /**
      * Return the hardware elevator bank.
@@ -317,11 +332,50 @@ public final class Machine {
     public static ElevatorBank bank() { return bank; }
     
     /**
-     * Return the MIPS processor.
+     * Return the MIPS processor the current thread is running on.
      *
      * @return	the MIPS processor, or <tt>null</tt> if it is not present.
      */     
-    public static Processor processor() { return processor; }
+    public static Processor processor() {
+	if (processors == null)
+	    return null;
+	else if (numProcessors == 1)
+	    return processors[0];
+	else
+	    return processors[TCB.currentProcessor()];
+    }
+
+    /**
+     * Return the specified MIPS processor.
+     *
+     * @param	number	the number of the processor, between <tt>0</tt> and
+     *			<tt>numProcessors() - 1</tt>.
+     * @return	the MIPS processor, or <tt>null</tt> if it is not present.
+     */
+    public static Processor processor(int number) {
+	Lib.assertTrue(number >= 0 && number < numProcessors);
+	
+	return (processors == null) ? null : processors[number];
+    }
+
+    /**
+     * Return the number of processors, set by <tt>Machine.numProcessors</tt>
+     * in the configuration file. Processors after the first share its
+     * physical memory but have their own registers and TLB, and only exist
+     * if the machine has a MIPS processor at all.
+     *
+     * @return	the number of processors.
+     */
+    public static int numProcessors() { return numProcessors; }
+
+    /**
+     * Return the number of the processor the current thread is running on.
+     *
+     * @return	the number of the current processor.
+     */
+    public static int currentProcessor() {
+	return (numProcessors == 1) ? 0 : TCB.currentProcessor();
+    }
     
     /**
      * Return the hardware console.
@@ -353,8 +407,10 @@ public final class Machine {
 
     private static Interrupt interrupt = null;
     private static Timer timer = null;
+    private static OneShotTimer oneShotTimer = null;
     private static ElevatorBank bank = null;
-    private static Processor processor = null;
+    private static Processor[] processors = null;
+    private static int numProcessors = 1;
     private static SerialConsole console = null;
     private static FileSystem stubFileSystem = null;
     private static NetworkLink networkLink = null;
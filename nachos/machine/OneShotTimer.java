@@ -0,0 +1,87 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+/**
+ * A one-shot timer interrupts the CPU once, at a time chosen by the kernel,
+ * instead of periodically like the <tt>Timer</tt>. The kernel can use it to
+ * wake a sleeping thread as soon as it is due, rather than at the next timer
+ * interrupt.
+ *
+ * <p>
+ * The timer is programmed for one time at a time, and programming it again
+ * replaces that time. The interrupt controller cannot take back an interrupt
+ * once it is scheduled, so the timer ignores any interrupt that comes before
+ * the time it is now programmed for.
+ */
+public final class OneShotTimer {
+    /**
+     * Allocate a new one-shot timer.
+     *
+     * @param	privilege      	encapsulates privileged access to the Nachos
+     *				machine.
+     */
+    public OneShotTimer(Privilege privilege) {
+	this.privilege = privilege;
+
+	interrupt = new Runnable() {
+		public void run() { oneShotInterrupt(); }
+	    };
+    }
+
+    /**
+     * Set the callback to use as the one-shot interrupt handler.
+     *
+     * @param	handler		the one-shot interrupt handler.
+     */
+    public void setInterruptHandler(Runnable handler) {
+	this.handler = handler;
+    }
+
+    /**
+     * Program the timer to interrupt at the specified time, instead of any
+     * time it was programmed for before. If that time has already come, the
+     * interrupt occurs at the next tick.
+     *
+     * @param	time	the time, in clock ticks since Nachos started, at
+     *			which to interrupt.
+     */
+    public void schedule(long time) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	armedTime = time;
+
+	long when = Math.max(time - privilege.stats.totalTicks, 1);
+	privilege.interrupt.schedule(when, "one-shot", interrupt);
+    }
+
+    /**
+     * Stop the timer from interrupting at the time it was programmed for.
+     */
+    public void cancel() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	armedTime = notArmed;
+    }
+
+    private void oneShotInterrupt() {
+	if (privilege.stats.totalTicks < armedTime)
+	    return;
+
+	armedTime = notArmed;
+
+	if (handler != null)
+	    handler.run();
+    }
+
+    /** The time the timer is programmed for, or <tt>notArmed</tt>. */
+    private long armedTime = notArmed;
+    private Runnable interrupt;
+
+    private Privilege privilege;
+    private Runnable handler = null;
+
+    private static final long notArmed = Long.MAX_VALUE;
+}
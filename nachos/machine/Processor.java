@@ -4,6 +4,11 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
  * subset of the R3000 instruction set. Specifically, the processor lacks all
@@ -18,6 +23,40 @@ import nachos.security.*;
  * <p>
  * An instance of a <tt>Processor</tt> also includes pages of physical memory
  * accessible to user programs, the size of which is fixed by the constructor.
+ *
+ * <p>
+ * If <tt>Processor.blockTranslation</tt> is set in the configuration file, the
+ * processor translates straight-line sequences of instructions into basic
+ * blocks and executes a block at a time. The simulated time, and therefore
+ * the delivery of interrupts, is exactly the same as when executing one
+ * instruction at a time.
+ *
+ * <p>
+ * If <tt>Processor.batchTicks</tt> is set instead, the processor still
+ * executes one instruction at a time, but only advances the simulated time
+ * once for all the instructions before the next interrupt is due, which is
+ * again exactly the same as advancing it after every instruction.
+ *
+ * <p>
+ * If <tt>Processor.offHeapMemory</tt> is set, physical memory is kept in a
+ * direct buffer outside the Java heap, so that large memories neither grow
+ * the heap nor have to be scanned by the garbage collector (the JVM limits
+ * direct buffers to the maximum heap size unless
+ * <tt>-XX:MaxDirectMemorySize</tt> is given). Kernels should
+ * then access it with <tt>readPhysicalMemory()</tt> and
+ * <tt>writePhysicalMemory()</tt>; calling <tt>getMemory()</tt> moves it back
+ * into the heap for good.
+ *
+ * <p>
+ * A machine may have more than one processor (see
+ * <tt>Machine.numProcessors()</tt>). Each has its own registers, TLB, and
+ * caches of decoded instructions, and all share the first processor's
+ * physical memory. With block translation, processors release the kernel
+ * lock while running user code, so user programs run in parallel; each
+ * processor runs for its share of the time until the next interrupt before
+ * returning to the kernel. A store by one processor to a page another
+ * processor has cached instructions from takes effect on the other
+ * processor's instructions when it next enters the kernel.
  */
 public final class Processor {
     /**
@@ -29,28 +68,105 @@ public final class Processor {
      *				attach.
      */
     public Processor(Privilege privilege, int numPhysPages) {
-	System.out.print(" processor");
+	this(privilege, numPhysPages, null);
+    }
+
+    /**
+     * Allocate another MIPS processor, sharing the physical memory of the
+     * first.
+     *
+     * @param	privilege      	encapsulates privileged access to the Nachos
+     *				machine.
+     * @param	first		the first processor.
+     * @param	number		the number of the new processor.
+     */
+    Processor(Privilege privilege, Processor first, int number) {
+	this(privilege, first.numPhysPages, first);
 
+	Lib.assertTrue(number == first.processors.size()-1);
+    }
+
+    private Processor(Privilege privilege, int numPhysPages, Processor first) {
 	this.privilege = privilege;
-	privilege.processor = new ProcessorPrivilege();
+
+	if (first == null) {
+	    System.out.print(" processor");
+
+	    privilege.processor = new ProcessorPrivilege();
+	    processors = new ArrayList<Processor>();
+	}
+	else {
+	    processors = first.processors;
+	}
+
+	number = processors.size();
+	processors.add(this);
+	smp = (Machine.numProcessors() > 1);
 
 	Class<?> clsKernel = Lib.loadClass(Config.getString("Kernel.kernel"));
 	Class<?> clsVMKernel = Lib.tryLoadClass("nachos.vm.VMKernel");
 
 	usingTLB =
 	    (clsVMKernel != null && clsVMKernel.isAssignableFrom(clsKernel));
+
+	// tracing needs every instruction to go through the interpreter
+	blockTranslation =
+	    Config.getBoolean("Processor.blockTranslation", false) &&
+	    !Lib.test(dbgProcessor) && !Lib.test(dbgDisassemble) &&
+	    !Lib.test(dbgFullDisassemble) && !Lib.test(dbgInterrupt);
+
+	if (blockTranslation)
+	    jitThreshold = Config.getInteger("Processor.jitThreshold", 0);
+
+	// interrupt tracing prints every tick
+	batchTicks =
+	    Config.getBoolean("Processor.batchTicks", false) &&
+	    !Lib.test(dbgInterrupt);
 	
 	this.numPhysPages = numPhysPages;
 
 	for (int i=0; i<numUserRegisters; i++)
 	    registers[i] = 0;
 
-	mainMemory = new byte[pageSize * numPhysPages];
+	if (first != null) {
+	    mainMemory = first.mainMemory;
+	    offHeapMemory = first.offHeapMemory;
+	}
+	else if (Config.getBoolean("Processor.offHeapMemory", false)) {
+	    offHeapMemory = ByteBuffer.allocateDirect(pageSize * numPhysPages);
+	    offHeapMemory.order(ByteOrder.LITTLE_ENDIAN);
+	}
+	else {
+	    mainMemory = new byte[pageSize * numPhysPages];
+	}
+	decodedPages = new DecodedInstruction[numPhysPages][];
+	blockPages = new BasicBlock[numPhysPages][];
+
+	if (smp)
+	    stalePages = new boolean[numPhysPages];
 
 	if (usingTLB) {
+	    tlbSize = Config.getInteger("Processor.tlbSize", tlbSize);
+	    tlbWays = Config.getInteger("Processor.tlbWays", tlbSize);
+	    Lib.assertTrue(tlbSize > 0 && tlbWays > 0 && tlbSize%tlbWays == 0,
+			   "bad TLB geometry");
+
 	    translations = new TranslationEntry[tlbSize];
 	    for (int i=0; i<tlbSize; i++)
 		translations[i] = new TranslationEntry();
+
+	    int numBuckets = 1;
+	    while (numBuckets < tlbSize)
+		numBuckets *= 2;
+
+	    tlbBuckets = new int[numBuckets];
+	    for (int i=0; i<numBuckets; i++)
+		tlbBuckets[i] = -1;
+
+	    tlbChain = new int[tlbSize];
+	    tlbBucketOf = new int[tlbSize];
+	    for (int i=0; i<tlbSize; i++)
+		tlbBucketOf[i] = -1;
 	}
 	else {
 	    translations = null;
@@ -81,8 +197,24 @@ public final class Processor {
 	return exceptionHandler;
     }
     
+    /**
+     * Return the number of this processor.
+     *
+     * @return	the number of this processor, between <tt>0</tt> and
+     *		<tt>Machine.numProcessors() - 1</tt>.
+     */
+    public int getNumber() {
+	return number;
+    }
+    
     /**
      * Start executing instructions at the current PC. Never returns.
+     *
+     * <p>
+     * With more than one processor, the current thread may be switched out
+     * by a kernel exception or interrupt handler and later resumed on a
+     * different processor, whose registers the kernel has restored. It then
+     * carries on executing on that processor.
      */
     public void run() {
 	Lib.debug(dbgProcessor, "starting program in current thread");
@@ -91,9 +223,190 @@ public final class Processor {
 
 	Machine.autoGrader().runProcessor(privilege);
 
+	Processor processor = this;
+	while (true) {
+	    processor.execute();
+	    processor = Machine.processor();
+	}
+    }
+
+    /**
+     * Execute instructions on this processor until the current thread is
+     * found to have been moved to another one.
+     */
+    private void execute() {
 	Instruction inst = new Instruction();
+
+	if (blockTranslation) {
+	    runBlocks(inst);
+	    return;
+	}
 	
-	while (true) {
+	while (!migrated()) {
+	    discardStaleCode();
+
+	    if (batchTicks) {
+		long budget = (privilege.interrupt.nextDueTime() -
+			       privilege.stats.totalTicks - 1) / Stats.UserTick;
+		budget = Math.min(budget, Integer.MAX_VALUE);
+		int executed = 0;
+
+		try {
+		    // nothing can be due until after the last of these
+		    while (executed < budget) {
+			inst.run();
+			executed++;
+		    }
+		}
+		catch (MipsException e) {
+		    privilege.interrupt.settleUserTicks(executed);
+		    e.handle();
+		    privilege.interrupt.tick(false);
+		    continue;
+		}
+		
+		privilege.interrupt.settleUserTicks(executed);
+	    }
+	    
+	    try {
+		inst.run();
+	    }
+	    catch (MipsException e) {
+		e.handle();
+	    }
+
+	    privilege.interrupt.tick(false);
+
+	    // let other processors into the kernel between instructions
+	    if (smp) {
+		privilege.interrupt.releaseKernel();
+		privilege.interrupt.acquireKernel();
+	    }
+	}
+    }
+
+    /**
+     * Return <tt>true</tt> if the current thread has been resumed on a
+     * processor other than this one since it last ran kernel code here.
+     */
+    private boolean migrated() {
+	return smp && Machine.processor() != this;
+    }
+
+    /**
+     * Execute instructions a basic block at a time, until the current thread
+     * is found to have been moved to another processor.
+     *
+     * <p>
+     * Between interrupts, no kernel code runs, so the simulated time only
+     * needs to be advanced once per block, and address translations cannot
+     * change; a block that is entered again at the same virtual address can
+     * be reused without translating the PC. When an interrupt is due before
+     * the next block would complete, only the instructions before the one it
+     * is due after are run as a block. That instruction, and any instruction
+     * in a branch delay slot, is executed on its own.
+     *
+     * <p>
+     * Once a block has been executed <tt>jitThreshold</tt> times, its region
+     * is compiled into JVM bytecode, which is used from then on whenever the
+     * region is entered with no delayed load in progress.
+     *
+     * <p>
+     * With more than one processor, the blocks between interrupts run
+     * without the kernel lock. Each processor reserves its share of the time
+     * until the next interrupt that the others have not already reserved,
+     * and charges for what it ran once it has the lock again. A processor
+     * that single-steps waits until doing so cannot run into time reserved
+     * by the others.
+     *
+     * @param	inst	the instruction used to single-step.
+     */
+    private void runBlocks(Instruction inst) {
+	while (!migrated()) {
+	    long deadline = privilege.interrupt.nextDueTime();
+	    BasicBlock block = null;
+
+	    chunkTime = privilege.stats.totalTicks;
+
+	    if (smp) {
+		long share = (deadline - chunkTime) / Machine.numProcessors();
+		reservedTicks = privilege.interrupt.reserveUserTicks(
+		    Math.max(share, Stats.UserTick));
+		deadline = chunkTime + reservedTicks + 1;
+
+		discardStaleCode();
+		privilege.interrupt.releaseKernel();
+	    }
+
+	    // chained successors are only valid until kernel code runs again
+	    blockEpoch++;
+
+	    try {
+		while (registers[regNextPC] == registers[regPC]+4) {
+		    block = nextBlock(block);
+
+		    long budget = (deadline - chunkTime - 1) / Stats.UserTick;
+
+		    if (block.region != null && loadTarget == 0 &&
+			block.region.vpn == pageFromAddress(registers[regPC])) {
+			int executed = block.region.run(registers,
+				mainMemory != null ? mainMemory : offHeapMemory,
+				(int) Math.min(budget, Integer.MAX_VALUE));
+
+			// if it did nothing, let the block fault or wait
+			if (executed > 0) {
+			    charge(executed);
+			    block = null;
+			    continue;
+			}
+		    }
+
+		    if (block.ops.length > budget) {
+			// run up to the instruction the interrupt is due after
+			if (budget > 0) {
+			    block.execute((int) budget);
+			    charge(blockProgress);
+			    blockProgress = 0;
+			}
+			break;
+		    }
+
+		    if (jitThreshold > 0 && ++block.count == jitThreshold) {
+			// compiling needs privilege, which is not per-processor
+			if (smp)
+			    privilege.interrupt.acquireKernel();
+			compileRegion(block);
+			if (smp)
+			    privilege.interrupt.releaseKernel();
+		    }
+
+		    block.execute(block.ops.length);
+
+		    charge(blockProgress);
+		    blockProgress = 0;
+		}
+	    }
+	    catch (MipsException e) {
+		// charge for the instructions before the one that faulted
+		charge(blockProgress);
+		blockProgress = 0;
+		reenterKernel();
+
+		e.handle();
+		privilege.interrupt.tick(false);
+		continue;
+	    }
+
+	    reenterKernel();
+
+	    if (smp) {
+		while (!privilege.interrupt.userTickAvailable()) {
+		    privilege.interrupt.releaseKernel();
+		    Thread.yield();
+		    privilege.interrupt.acquireKernel();
+		}
+	    }
+
 	    try {
 		inst.run();
 	    }
@@ -105,6 +418,178 @@ public final class Processor {
 	}
     }
 
+    /**
+     * Charge for user instructions executed since the start of the current
+     * chunk of blocks. With one processor, the simulated time is advanced
+     * immediately; otherwise it is advanced by <tt>reenterKernel()</tt>.
+     *
+     * @param	numInstructions	the number of instructions executed.
+     */
+    private void charge(int numInstructions) {
+	chunkTime += numInstructions * Stats.UserTick;
+
+	if (smp)
+	    unchargedInstructions += numInstructions;
+	else
+	    privilege.interrupt.settleUserTicks(numInstructions);
+    }
+
+    /**
+     * Reacquire the kernel lock after a chunk of blocks and advance the
+     * simulated time by the instructions it executed. Does nothing with one
+     * processor.
+     */
+    private void reenterKernel() {
+	if (!smp)
+	    return;
+	
+	privilege.interrupt.acquireKernel();
+	privilege.interrupt.settleUserTicks(unchargedInstructions,
+					    reservedTicks);
+	unchargedInstructions = 0;
+	reservedTicks = 0;
+    }
+
+    /**
+     * Return the basic block starting at the current PC, following the link
+     * from the previous block if it is still valid.
+     *
+     * @param	previous	the block that was just executed, or
+     *				<tt>null</tt>.
+     * @return	the block starting at the current PC.
+     */
+    private BasicBlock nextBlock(BasicBlock previous) throws MipsException {
+	int pc = registers[regPC];
+
+	if (previous != null && previous.successorEpoch == blockEpoch &&
+	    previous.successorPC == pc && previous.successor.valid)
+	    return previous.successor;
+
+	int paddr = translate(pc, 4, false);
+	int ppn = paddr/pageSize;
+
+	BasicBlock[] blocks = blockPages[ppn];
+	if (blocks == null) {
+	    blocks = new BasicBlock[pageSize/4];
+	    blockPages[ppn] = blocks;
+	}
+
+	int index = (paddr%pageSize)/4;
+
+	if (blocks[index] == null)
+	    blocks[index] = new BasicBlock(paddr);
+
+	BasicBlock block = blocks[index];
+
+	if (previous != null) {
+	    previous.successor = block;
+	    previous.successorPC = pc;
+	    previous.successorEpoch = blockEpoch;
+	}
+
+	return block;
+    }
+
+    /**
+     * Compile the region containing a block that has just become hot.
+     *
+     * @param	block	the hot block, which starts at the current PC.
+     */
+    private void compileRegion(BasicBlock block) {
+	int vpn = pageFromAddress(registers[regPC]);
+
+	final RegionCompiler[] compilers = {
+	    new RegionCompiler(block, vpn, maxRegionLength),
+	    new RegionCompiler(block, vpn, 0)
+	};
+
+	privilege.doPrivileged(new Runnable() {
+		public void run() {
+		    for (RegionCompiler compiler : compilers) {
+			if (compiler.compile())
+			    return;
+		    }
+		}
+	    });
+    }
+
+    /**
+     * Discard all basic blocks that start in the specified physical page.
+     *
+     * @param	ppn	the physical page number.
+     */
+    private void invalidateBlocks(int ppn) {
+	BasicBlock[] blocks = blockPages[ppn];
+	if (blocks == null)
+	    return;
+
+	for (int i=0; i<blocks.length; i++) {
+	    if (blocks[i] != null)
+		blocks[i].valid = false;
+	}
+
+	blockPages[ppn] = null;
+    }
+
+    /**
+     * Test if any other processor has cached instructions from the specified
+     * physical page.
+     *
+     * @param	ppn	the physical page number.
+     * @return	<tt>true</tt> if another processor has instructions from the
+     *		page cached.
+     */
+    private boolean cachedElsewhere(int ppn) {
+	for (Processor processor : processors) {
+	    if (processor != this &&
+		(processor.decodedPages[ppn] != null ||
+		 processor.blockPages[ppn] != null))
+		return true;
+	}
+
+	return false;
+    }
+
+    /**
+     * Make every other processor that has cached instructions from the
+     * specified physical page discard them before it next runs user code.
+     *
+     * @param	ppn	the physical page number.
+     */
+    private void invalidateElsewhere(int ppn) {
+	for (Processor processor : processors) {
+	    if (processor != this &&
+		(processor.decodedPages[ppn] != null ||
+		 processor.blockPages[ppn] != null)) {
+		synchronized (processor.stalePages) {
+		    processor.stalePages[ppn] = true;
+		    processor.codeStale = true;
+		}
+	    }
+	}
+    }
+
+    /**
+     * Discard cached instructions from the pages other processors have
+     * written to since this processor was last in the kernel.
+     */
+    private void discardStaleCode() {
+	if (!codeStale)
+	    return;
+
+	synchronized (stalePages) {
+	    for (int ppn=0; ppn<numPhysPages; ppn++) {
+		if (stalePages[ppn]) {
+		    stalePages[ppn] = false;
+		    decodedPages[ppn] = null;
+		    invalidateBlocks(ppn);
+		}
+	    }
+
+	    codeStale = false;
+	}
+    }
+
     /**
      * Read and return the contents of the specified CPU register.
      *
@@ -188,6 +673,32 @@ public final class Processor {
 	return tlbSize;
     }
 
+    /**
+     * Return the number of entries in each set of this processor's TLB. The
+     * TLB is fully associative if this is the same as <tt>getTLBSize()</tt>.
+     *
+     * @return	the number of entries in each set of this processor's TLB.
+     */
+    public int getTLBWays() {
+	Lib.assertTrue(usingTLB);
+
+	return tlbWays;
+    }
+
+    /**
+     * Return the index of the first TLB entry in the set that can hold a
+     * translation for the specified virtual page. The set consists of that
+     * entry and the <tt>getTLBWays()-1</tt> entries after it.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	the index of the first entry in its set.
+     */
+    public int getTLBSet(int vpn) {
+	Lib.assertTrue(usingTLB);
+
+	return tlbSetOf(vpn) * tlbWays;
+    }
+
     /**
      * Returns the specified TLB entry.
      *
@@ -205,8 +716,10 @@ public final class Processor {
      * Fill the specified TLB entry.
      *
      * <p>
-     * The TLB is fully associative, so the location of an entry within the TLB
-     * does not affect anything.
+     * By default the TLB is fully associative, so the location of an entry
+     * within the TLB does not affect anything. If <tt>Processor.tlbWays</tt>
+     * is smaller than the TLB, an entry is only used if it is in the set
+     * returned by <tt>getTLBSet()</tt> for its virtual page.
      *
      * @param	number	the index into the TLB.
      * @param	entry	the new contents of the TLB entry.
@@ -216,6 +729,84 @@ public final class Processor {
 	Lib.assertTrue(number >= 0 && number < tlbSize);
 
 	translations[number] = new TranslationEntry(entry);
+
+	unhashTLBEntry(number);
+	if (entry.valid && tlbSetOf(entry.vpn) == number/tlbWays)
+	    hashTLBEntry(number);
+
+	lastTLBEntry = null;
+    }
+
+    private int tlbSetOf(int vpn) {
+	return (int) ((vpn & 0xFFFFFFFFL) % (tlbSize/tlbWays));
+    }
+
+    private int tlbBucketFor(int vpn) {
+	int hash = vpn * 0x9E3779B9;
+	return (hash ^ (hash >>> 16)) & (tlbBuckets.length-1);
+    }
+
+    /**
+     * Add a valid TLB entry to the chain for its virtual page. Chains are
+     * kept in index order, so that if the kernel loads the same page into
+     * more than one entry, the lowest one is used, as with a linear search.
+     */
+    private void hashTLBEntry(int number) {
+	int bucket = tlbBucketFor(translations[number].vpn);
+
+	int previous = -1, next = tlbBuckets[bucket];
+	while (next != -1 && next < number) {
+	    previous = next;
+	    next = tlbChain[next];
+	}
+
+	tlbChain[number] = next;
+	if (previous == -1)
+	    tlbBuckets[bucket] = number;
+	else
+	    tlbChain[previous] = number;
+
+	tlbBucketOf[number] = bucket;
+    }
+
+    private void unhashTLBEntry(int number) {
+	int bucket = tlbBucketOf[number];
+	if (bucket == -1)
+	    return;
+
+	if (tlbBuckets[bucket] == number) {
+	    tlbBuckets[bucket] = tlbChain[number];
+	}
+	else {
+	    int previous = tlbBuckets[bucket];
+	    while (tlbChain[previous] != number)
+		previous = tlbChain[previous];
+	    tlbChain[previous] = tlbChain[number];
+	}
+
+	tlbBucketOf[number] = -1;
+    }
+
+    /**
+     * Find the TLB entry that translates the specified virtual page.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	the matching valid TLB entry, or <tt>null</tt> if there is
+     *		none.
+     */
+    private TranslationEntry lookupTLB(int vpn) {
+	if (lastTLBEntry != null && lastTLBVPN == vpn)
+	    return lastTLBEntry;
+
+	for (int i=tlbBuckets[tlbBucketFor(vpn)]; i != -1; i=tlbChain[i]) {
+	    if (translations[i].vpn == vpn) {
+		lastTLBVPN = vpn;
+		lastTLBEntry = translations[i];
+		return lastTLBEntry;
+	    }
+	}
+
+	return null;
     }
 
     /**
@@ -232,37 +823,181 @@ public final class Processor {
      * Return a reference to the physical memory array. The size of this array
      * is <tt>pageSize * getNumPhysPages()</tt>.
      *
+     * <p>
+     * If physical memory is off the heap, it is first copied into a new array,
+     * which is used as physical memory from then on.
+     *
      * @return	the main memory array.
      */
     public byte[] getMemory() {
+	if (mainMemory == null) {
+	    // the other processors would keep using the buffer
+	    Lib.assertTrue(processors.size() == 1,
+			   "getMemory() with off-heap memory and SMP");
+
+	    Lib.debug(dbgProcessor, "moving physical memory onto the heap");
+
+	    byte[] memory = new byte[pageSize * numPhysPages];
+	    offHeapMemory.clear();
+	    offHeapMemory.get(memory);
+
+	    // compiled code accesses the buffer directly
+	    for (int ppn=0; ppn<numPhysPages; ppn++)
+		invalidateBlocks(ppn);
+
+	    mainMemory = memory;
+	    offHeapMemory = null;
+	}
+	
 	return mainMemory;
     }
 
     /**
-     * Concatenate a page number and an offset into an address.
+     * Copy bytes out of physical memory.
      *
-     * @param	page	the page number. Must be between <tt>0</tt> and
-     *			<tt>(2<sup>32</sup> / pageSize) - 1</tt>.
-     * @param	offset	the offset within the page. Must be between <tt>0</tt>
-     *			and
-     *			<tt>pageSize - 1</tt>.
-     * @return	a 32-bit address consisting of the specified page and offset.
+     * @param	paddr	the first physical address to read.
+     * @param	data	the array where the data will be stored.
+     * @param	offset	the first byte to write in the array.
+     * @param	length	the number of bytes to read.
      */
-    public static int makeAddress(int page, int offset) {
-	Lib.assertTrue(page >= 0 && page < maxPages);
-	Lib.assertTrue(offset >= 0 && offset < pageSize);
-
-	return (page * pageSize) | offset;
+    public void readPhysicalMemory(int paddr, byte[] data, int offset,
+				   int length) {
+	Lib.assertTrue(paddr >= 0 && length >= 0 &&
+		       paddr+length <= pageSize*numPhysPages);
+	Lib.assertTrue(offset >= 0 && offset+length <= data.length);
+
+	if (mainMemory != null) {
+	    System.arraycopy(mainMemory, paddr, data, offset, length);
+	}
+	else {
+	    ByteBuffer view = offHeapMemory.duplicate();
+	    view.position(paddr);
+	    view.get(data, offset, length);
+	}
     }
 
     /**
-     * Extract the page number component from a 32-bit address.
+     * Copy bytes into physical memory. Unlike writes made directly to the
+     * array returned by <tt>getMemory()</tt>, there is no need to call
+     * <tt>invalidatePage()</tt> afterwards.
      *
-     * @param	address	the 32-bit address.
-     * @return	the page number component of the address.
+     * @param	paddr	the first physical address to write.
+     * @param	data	the array containing the data to write.
+     * @param	offset	the first byte to read from the array.
+     * @param	length	the number of bytes to write.
      */
-    public static int pageFromAddress(int address) {
-	return (int) (((long) address & 0xFFFFFFFFL) / pageSize);
+    public void writePhysicalMemory(int paddr, byte[] data, int offset,
+				    int length) {
+	Lib.assertTrue(paddr >= 0 && length >= 0 &&
+		       paddr+length <= pageSize*numPhysPages);
+	Lib.assertTrue(offset >= 0 && offset+length <= data.length);
+
+	if (mainMemory != null) {
+	    System.arraycopy(data, offset, mainMemory, paddr, length);
+	}
+	else {
+	    ByteBuffer view = offHeapMemory.duplicate();
+	    view.position(paddr);
+	    view.put(data, offset, length);
+	}
+
+	if (length > 0) {
+	    for (int ppn=paddr/pageSize; ppn<=(paddr+length-1)/pageSize; ppn++)
+		invalidatePage(ppn);
+	}
+    }
+
+    /**
+     * Load <i>size</i> (1, 2, or 4) bytes of physical memory starting at
+     * <i>paddr</i>, sign-extending them as <tt>Lib.bytesToInt()</tt> does.
+     */
+    private int loadPhysical(int paddr, int size) {
+	if (mainMemory != null)
+	    return Lib.bytesToInt(mainMemory, paddr, size);
+
+	switch (size) {
+	case 1:
+	    return offHeapMemory.get(paddr);
+	case 2:
+	    return offHeapMemory.getShort(paddr);
+	default:
+	    return offHeapMemory.getInt(paddr);
+	}
+    }
+
+    /**
+     * Store the low <i>size</i> (1, 2, or 4) bytes of <i>value</i> to
+     * physical memory starting at <i>paddr</i>.
+     */
+    private void storePhysical(int paddr, int size, int value) {
+	if (mainMemory != null) {
+	    Lib.bytesFromInt(mainMemory, paddr, size, value);
+	    return;
+	}
+
+	switch (size) {
+	case 1:
+	    offHeapMemory.put(paddr, (byte) value);
+	    break;
+	case 2:
+	    offHeapMemory.putShort(paddr, (short) value);
+	    break;
+	default:
+	    offHeapMemory.putInt(paddr, value);
+	    break;
+	}
+    }
+
+    /**
+     * Discard the cached decodings of all instructions in the specified page
+     * of physical memory.
+     *
+     * <p>
+     * The processor decodes each instruction only once, the first time it is
+     * executed, and caches the result by physical address. Stores executed by
+     * the processor and <tt>writePhysicalMemory()</tt> keep this cache up to
+     * date, but the processor cannot see writes made directly to the array
+     * returned by <tt>getMemory()</tt>.
+     * Code that loads or modifies a page that may contain instructions this
+     * way must call this method before the page is executed again.
+     *
+     * @param	ppn	the physical page number.
+     */
+    public void invalidatePage(int ppn) {
+	Lib.assertTrue(ppn >= 0 && ppn < numPhysPages);
+
+	decodedPages[ppn] = null;
+	invalidateBlocks(ppn);
+
+	if (smp)
+	    invalidateElsewhere(ppn);
+    }
+
+    /**
+     * Concatenate a page number and an offset into an address.
+     *
+     * @param	page	the page number. Must be between <tt>0</tt> and
+     *			<tt>(2<sup>32</sup> / pageSize) - 1</tt>.
+     * @param	offset	the offset within the page. Must be between <tt>0</tt>
+     *			and
+     *			<tt>pageSize - 1</tt>.
+     * @return	a 32-bit address consisting of the specified page and offset.
+     */
+    public static int makeAddress(int page, int offset) {
+	Lib.assertTrue(page >= 0 && page < maxPages);
+	Lib.assertTrue(offset >= 0 && offset < pageSize);
+
+	return (page * pageSize) | offset;
+    }
+
+    /**
+     * Extract the page number component from a 32-bit address.
+     *
+     * @param	address	the 32-bit address.
+     * @return	the page number component of the address.
+     */
+    public static int pageFromAddress(int address) {
+	return (int) (((long) address & 0xFFFFFFFFL) / pageSize);
     }
 
     /**
@@ -279,6 +1014,72 @@ public final class Processor {
 	delayedLoad(0, 0, 0);
     }
 
+    /**
+     * Start a delayed load on behalf of a compiled region that is returning
+     * control to the processor.
+     *
+     * @param	target	the target register of the load.
+     * @param	value	the value to be loaded.
+     */
+    void pendingLoad(int target, int value) {
+	Lib.assertTrue(loadTarget == 0);
+
+	delayedLoad(target, value, 0xFFFFFFFF);
+    }
+
+    /**
+     * Translate a virtual address for a compiled region. Has the same effect
+     * as <tt>translate()</tt> when that would succeed, except that stores to
+     * a page containing decoded instructions are always refused, so that the
+     * processor can discard them.
+     *
+     * @param	vaddr	the virtual address to translate.
+     * @param	size	the size of the memory reference (1, 2, or 4).
+     * @param	writing	<tt>true</tt> if the memory reference is a write.
+     * @return	the physical address, or <tt>-1</tt> if <tt>translate()</tt>
+     *		must be used instead.
+     */
+    int probeTranslation(int vaddr, int size, boolean writing) {
+	if ((vaddr & (size-1)) != 0)
+	    return -1;
+
+	int vpn = pageFromAddress(vaddr);
+	int offset = offsetFromAddress(vaddr);
+
+	TranslationEntry entry = null;
+
+	if (!usingTLB) {
+	    if (translations == null || vpn >= translations.length ||
+		translations[vpn] == null ||
+		!translations[vpn].valid)
+		return -1;
+
+	    entry = translations[vpn];
+	}
+	else {
+	    entry = lookupTLB(vpn);
+	    if (entry == null)
+		return -1;
+	}
+
+	if (entry.readOnly && writing)
+	    return -1;
+
+	int ppn = entry.ppn;
+	if (ppn < 0 || ppn >= numPhysPages)
+	    return -1;
+
+	if (writing && (decodedPages[ppn] != null || blockPages[ppn] != null ||
+			(smp && cachedElsewhere(ppn))))
+	    return -1;
+
+	entry.used = true;
+	if (writing)
+	    entry.dirty = true;
+
+	return (ppn*pageSize) + offset;
+    }
+
     /**
      * Translate a virtual address into a physical address, using either a
      * page table or a TLB. Check for alignment, make sure the virtual page is
@@ -301,7 +1102,7 @@ public final class Processor {
 	// check alignment
 	if ((vaddr & (size-1)) != 0) {
 	    Lib.debug(dbgProcessor, "\t\talignment error");
-	    throw new MipsException(exceptionAddressError, vaddr);
+	    throw exception(exceptionAddressError, vaddr);
 	}
 
 	// calculate virtual page number and offset from the virtual address
@@ -315,39 +1116,32 @@ public final class Processor {
 	    if (translations == null || vpn >= translations.length ||
 		translations[vpn] == null ||
 		!translations[vpn].valid) {
-		privilege.stats.numPageFaults++;
 		Lib.debug(dbgProcessor, "\t\tpage fault");
-		throw new MipsException(exceptionPageFault, vaddr);
+		throw exception(exceptionPageFault, vaddr);
 	    }
 
 	    entry = translations[vpn];
 	}
-	// else, look through all TLB entries for matching vpn
+	// else, find the TLB entry for this vpn
 	else {
-	    for (int i=0; i<tlbSize; i++) {
-		if (translations[i].valid && translations[i].vpn == vpn) {
-		    entry = translations[i];
-		    break;
-		}
-	    }
+	    entry = lookupTLB(vpn);
 	    if (entry == null) {
-		privilege.stats.numTLBMisses++;
 		Lib.debug(dbgProcessor, "\t\tTLB miss");
-		throw new MipsException(exceptionTLBMiss, vaddr);
+		throw exception(exceptionTLBMiss, vaddr);
 	    }
 	}
 
 	// check if trying to write a read-only page
 	if (entry.readOnly && writing) {
 	    Lib.debug(dbgProcessor, "\t\tread-only exception");
-	    throw new MipsException(exceptionReadOnly, vaddr);
+	    throw exception(exceptionReadOnly, vaddr);
 	}
 
 	// check if physical page number is out of range
 	int ppn = entry.ppn;
 	if (ppn < 0 || ppn >= numPhysPages) {
 	    Lib.debug(dbgProcessor, "\t\tbad ppn");
-	    throw new MipsException(exceptionBusError, vaddr);
+	    throw exception(exceptionBusError, vaddr);
 	}
 
 	// set used and dirty bits as appropriate
@@ -378,8 +1172,7 @@ public final class Processor {
 
 	Lib.assertTrue(size==1 || size==2 || size==4);
 	
-	int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false),
-				   size);
+	int value = loadPhysical(translate(vaddr, size, false), size);
 
 	if (Lib.test(dbgProcessor))
 	    System.out.println("\t\tvalue read=0x" +
@@ -405,9 +1198,47 @@ public final class Processor {
 			       + Lib.toHexString(value, size*2));
 
 	Lib.assertTrue(size==1 || size==2 || size==4);
+
+	int paddr = translate(vaddr, size, true);
+	int ppn = paddr/pageSize;
+
+	// the stored-to word may be an instruction we have already decoded
+	DecodedInstruction[] decoded = decodedPages[ppn];
+	if (decoded != null)
+	    decoded[(paddr%pageSize)/4] = null;
+
+	if (blockPages[ppn] != null)
+	    invalidateBlocks(ppn);
+
+	if (smp)
+	    invalidateElsewhere(ppn);
 	
-	Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size,
-			 value);
+	storePhysical(paddr, size, value);
+    }
+
+    /**
+     * Return the decoded instruction at the specified physical address,
+     * decoding it and adding it to the cache if necessary.
+     *
+     * @param	paddr	the word-aligned physical address of the instruction.
+     * @return	the decoded instruction.
+     */
+    private DecodedInstruction decodeInstruction(int paddr) {
+	int ppn = paddr/pageSize;
+
+	DecodedInstruction[] decoded = decodedPages[ppn];
+	if (decoded == null) {
+	    decoded = new DecodedInstruction[pageSize/4];
+	    decodedPages[ppn] = decoded;
+	}
+
+	int index = (paddr%pageSize)/4;
+
+	if (decoded[index] == null)
+	    decoded[index] =
+		new DecodedInstruction(loadPhysical(paddr, 4));
+
+	return decoded[index];
     }
 
     /**
@@ -541,6 +1372,18 @@ public final class Processor {
     private boolean usingTLB;
     /** Number of TLB entries. */
     private int tlbSize = 4;
+    /** Number of TLB entries in each set. */
+    private int tlbWays;
+    /** The first entry in each TLB hash chain, or -1. */
+    private int[] tlbBuckets;
+    /** The next entry in the same TLB hash chain as each entry, or -1. */
+    private int[] tlbChain;
+    /** The TLB hash chain each entry is in, or -1 if it is in none. */
+    private int[] tlbBucketOf;
+    /** The virtual page of the last TLB entry used. */
+    private int lastTLBVPN;
+    /** The last TLB entry used, or <tt>null</tt> after a TLB write. */
+    private TranslationEntry lastTLBEntry = null;
     /**
      * Either an associative or direct-mapped set of translation entries,
      * depending on whether there is a TLB.
@@ -553,37 +1396,127 @@ public final class Processor {
     public static final int maxPages = (int) (0x100000000L / pageSize);
     /** Number of physical pages in memory. */
     private int numPhysPages;
-    /** Main memory for user programs. */
-    private byte[] mainMemory;
+    /** All the processors, in order, shared by every processor. */
+    private ArrayList<Processor> processors;
+    /** The number of this processor. */
+    private int number;
+    /** <tt>true</tt> if the machine has more than one processor. */
+    private boolean smp;
+    /** Main memory for user programs, or <tt>null</tt> if off the heap. */
+    private byte[] mainMemory = null;
+    /** Main memory for user programs, if off the heap. */
+    private ByteBuffer offHeapMemory = null;
+    /**
+     * Decoded instructions, cached by physical address. Each physical page
+     * has its own table, allocated when an instruction in the page is first
+     * executed and discarded when the page is reloaded.
+     */
+    private DecodedInstruction[][] decodedPages;
+
+    /** <tt>true</tt> if executing a basic block at a time. */
+    private boolean blockTranslation;
+    /**
+     * <tt>true</tt> if advancing the simulated time once for every
+     * instruction before the next interrupt.
+     */
+    private boolean batchTicks;
+    /** Translated basic blocks, indexed by physical address. */
+    private BasicBlock[][] blockPages;
+    /** Incremented whenever kernel code may have changed a translation. */
+    private int blockEpoch = 0;
+    /** Instructions executed by basic blocks but not yet charged for. */
+    private int blockProgress = 0;
+    /** The simulated time, including the current chunk of blocks. */
+    private long chunkTime;
+    /** Instructions charged for by the current chunk but not yet settled. */
+    private int unchargedInstructions = 0;
+    /** The ticks reserved for the current chunk of blocks. */
+    private long reservedTicks = 0;
+    /**
+     * Pages other processors have written to since their instructions were
+     * cached here, or <tt>null</tt> with only one processor.
+     */
+    private boolean[] stalePages = null;
+    /** <tt>true</tt> if any entry of <tt>stalePages</tt> is set. */
+    private volatile boolean codeStale = false;
+    /** The maximum number of instructions in a basic block. */
+    private static final int maxBlockLength = 64;
+
+    /**
+     * The number of times a basic block must be executed before its region
+     * is compiled into JVM bytecode, or 0 if regions are never compiled.
+     */
+    private int jitThreshold = 0;
+    /** The number of regions compiled so far, used to name their classes. */
+    private int numRegionsCompiled = 0;
+    /** The maximum number of instructions in a region. */
+    private static final int maxRegionLength = 256;
+    /** The largest method HotSpot will compile. */
+    private static final int maxRegionCodeSize = 8000;
 
     /** The kernel exception handler, called on every user exception. */
     private Runnable exceptionHandler = null;
+    /** The exception object reused for every user exception. */
+    private MipsException mipsException = new MipsException();
 
     private static final char dbgProcessor = 'p';
     private static final char dbgDisassemble = 'm';
     private static final char dbgFullDisassemble = 'M';
+    private static final char dbgInterrupt = 'i';
+    private static final char dbgJIT = 'j';
 
     private class ProcessorPrivilege implements Privilege.ProcessorPrivilege {
 	public void flushPipe() {
-	    finishLoad();
+	    Machine.processor().finishLoad();
 	}
     }
 
-    private class MipsException extends Exception {
-	public MipsException(int cause) {
-	    Lib.assertTrue(cause >= 0 && cause < exceptionNames.length);
+    /**
+     * Return the processor's exception object, set up to deliver the
+     * specified exception. Only one exception can be in flight at a time, so
+     * a single stackless instance is reused instead of allocating one (and
+     * filling in its stack trace) on every syscall, page fault, and TLB miss.
+     *
+     * @param	cause	the cause of the exception.
+     * @return	the exception to throw.
+     */
+    private MipsException exception(int cause) {
+	Lib.assertTrue(cause >= 0 && cause < exceptionNames.length);
 
-	    this.cause = cause;
-	}
+	mipsException.cause = cause;
+	mipsException.hasBadVAddr = false;
+	return mipsException;
+    }
 
-	public MipsException(int cause, int badVAddr) {
-	    this(cause);
+    /**
+     * Return the processor's exception object, set up to deliver the
+     * specified exception for a bad virtual address.
+     *
+     * @param	cause		the cause of the exception.
+     * @param	badVAddr	the virtual address that caused it.
+     * @return	the exception to throw.
+     */
+    private MipsException exception(int cause, int badVAddr) {
+	exception(cause);
+
+	mipsException.hasBadVAddr = true;
+	mipsException.badVAddr = badVAddr;
+	return mipsException;
+    }
 
-	    hasBadVAddr = true;
-	    this.badVAddr = badVAddr;
+    private class MipsException extends Exception {
+	public MipsException() {
+	    // no message, no suppressed exceptions, and no stack trace
+	    super(null, null, false, false);
 	}
 
 	public void handle() {
+	    // counted here, where the kernel lock is always held
+	    if (cause == exceptionPageFault)
+		privilege.stats.numPageFaults++;
+	    else if (cause == exceptionTLBMiss)
+		privilege.stats.numTLBMisses++;
+	    
 	    writeRegister(regCause, cause);
 
 	    if (hasBadVAddr)
@@ -603,7 +1536,7 @@ public final class Processor {
 	    exceptionHandler.run();
 	}
 
-	private boolean hasBadVAddr = false;
+	private boolean hasBadVAddr;
 	private int cause, badVAddr;
     }	
 
@@ -626,78 +1559,44 @@ public final class Processor {
 		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 				 + "\t");
 
-	    value = readMem(registers[regPC], 4);
+	    decoded = decodeInstruction(translate(registers[regPC], 4, false));
 	}
 	
 	private void decode() {
-	    op = Lib.extract(value, 26, 6);
-	    rs = Lib.extract(value, 21, 5);
-	    rt = Lib.extract(value, 16, 5);
-	    rd = Lib.extract(value, 11, 5);
-	    sh = Lib.extract(value, 6, 5);
-	    func = Lib.extract(value, 0, 6);
-	    target = Lib.extract(value, 0, 26);
-	    imm = Lib.extend(value, 0, 16);
-
-	    Mips info;
-	    switch (op) {
-	    case 0:
-		info = Mips.specialtable[func];
-		break;
-	    case 1:
-		info = Mips.regimmtable[rt];
-		break;
-	    default:
-		info = Mips.optable[op];
-		break;
-	    }
-
-	    operation = info.operation;
-	    name = info.name;
-	    format = info.format;
-	    flags = info.flags;
+	    value = decoded.value;
+	    op = decoded.op;
+	    rs = decoded.rs;
+	    rt = decoded.rt;
+	    rd = decoded.rd;
+	    sh = decoded.sh;
+	    func = decoded.func;
+	    imm = decoded.imm;
+
+	    operation = decoded.operation;
+	    name = decoded.name;
+	    format = decoded.format;
+	    flags = decoded.flags;
+
+	    size = decoded.size;
+	    dstReg = decoded.dstReg;
 
 	    mask = 0xFFFFFFFF;	
 	    branch = true;
-	
-	    // get memory access size
-	    if (test(Mips.SIZEB))
-		size = 1;
-	    else if (test(Mips.SIZEH))
-		size = 2;
-	    else if (test(Mips.SIZEW))
-		size = 4;
-	    else
-		size = 0;
 
 	    // get nextPC
 	    nextPC = registers[regNextPC]+4;
 
-	    // get dstReg
-	    if (test(Mips.DSTRA))
-		dstReg = regRA;
-	    else if (format == Mips.IFMT)
-		dstReg = rt;
-	    else if (format == Mips.RFMT)
-		dstReg = rd;
-	    else
-		dstReg = -1;
-
 	    // get jtarget
 	    if (format == Mips.RFMT)
 		jtarget = registers[rs];
 	    else if (format == Mips.IFMT)
-		jtarget = registers[regNextPC] + (imm<<2);
+		jtarget = registers[regNextPC] + decoded.branchOffset;
 	    else if (format == Mips.JFMT)
-		jtarget = (registers[regNextPC]&0xF0000000) | (target<<2);
+		jtarget = (registers[regNextPC]&0xF0000000) |
+		    decoded.jumpTarget;
 	    else
 		jtarget = -1;
 
-	    // get imm
-	    if (test(Mips.UNSIGNED)) {
-		imm &= 0xFFFF;
-	    }
-
 	    // get addr
 	    addr = registers[rs] + imm;
 
@@ -869,7 +1768,7 @@ public final class Processor {
 			throw new ArithmeticException();
 		}
 		catch (ArithmeticException e) {
-		    throw new MipsException(exceptionOverflow);
+		    throw exception(exceptionOverflow);
 		}
 		break;
 
@@ -939,7 +1838,7 @@ public final class Processor {
 		break;
 
 	    case Mips.SYSCALL:
-		throw new MipsException(exceptionSyscall);
+		throw exception(exceptionSyscall);
 
 	    case Mips.LOAD:
 		value = readMem(addr, size);
@@ -1009,7 +1908,7 @@ public final class Processor {
 		System.err.println("Warning: encountered unimplemented inst");
 		
 	    case Mips.INVALID:
-		throw new MipsException(exceptionIllegalInstruction);
+		throw exception(exceptionIllegalInstruction);
 
 	    default:
 		Lib.assertNotReached();
@@ -1019,7 +1918,7 @@ public final class Processor {
 	private void writeBack() throws MipsException {
 	    // if instruction is signed, but carry bit !+ sign bit, throw
 	    if (test(Mips.OVERFLOW) && Lib.test(dst,31) != Lib.test(dst,32))
-		throw new MipsException(exceptionOverflow);
+		throw exception(exceptionOverflow);
 
 	    if (test(Mips.DELAYEDLOAD))
 		delayedLoad(dstReg, (int) dst, mask);
@@ -1052,7 +1951,8 @@ public final class Processor {
 	}
     
 	// state used to execute a single instruction
-	int value, op, rs, rt, rd, sh, func, target, imm;
+	DecodedInstruction decoded;
+	int value, op, rs, rt, rd, sh, func, imm;
 	int operation, format, flags;
 	String name;
 
@@ -1063,6 +1963,1445 @@ public final class Processor {
 	boolean branch;
     }
 
+    /**
+     * A straight-line sequence of instructions starting at a physical
+     * address, translated into micro-ops. A block ends after the delay slot
+     * of its first branch, after an instruction that always causes an
+     * exception, at the end of its page, or after
+     * <tt>maxBlockLength</tt> instructions.
+     */
+    private class BasicBlock {
+	BasicBlock(int paddr) {
+	    this.paddr = paddr;
+
+	    int end = (paddr/pageSize + 1)*pageSize;
+	    int length = 0;
+	    int branchAt = -1;
+	    MicroOp[] ops = new MicroOp[maxBlockLength];
+
+	    while (length < maxBlockLength && paddr < end) {
+		DecodedInstruction decoded = decodeInstruction(paddr);
+		ops[length++] = new MicroOp(decoded);
+		paddr += 4;
+
+		if (length-1 == branchAt+1 && branchAt >= 0)
+		    break;
+
+		int operation = decoded.operation;
+		if (operation == Mips.SYSCALL || operation == Mips.UNIMPL ||
+		    operation == Mips.INVALID)
+		    break;
+
+		if (Lib.test(Mips.BRANCH, decoded.flags))
+		    branchAt = length-1;
+	    }
+
+	    this.ops = new MicroOp[length];
+	    System.arraycopy(ops, 0, this.ops, 0, length);
+	}
+
+	/**
+	 * Execute the first instructions of this block, counting those
+	 * completed in <tt>blockProgress</tt>. Stops early if this block is
+	 * invalidated by one of its own stores.
+	 *
+	 * @param	length	the number of instructions to execute.
+	 */
+	void execute(int length) throws MipsException {
+	    for (int i=0; i<length; i++) {
+		ops[i].execute();
+		blockProgress++;
+
+		if (!valid)
+		    break;
+	    }
+	}
+
+	final int paddr;
+	final MicroOp[] ops;
+	boolean valid = true;
+
+	/** The number of times this block has been executed. */
+	int count = 0;
+	/** The compiled region starting at this block, if any. */
+	CompiledRegion region = null;
+
+	/** The block last executed after this one, and where it started. */
+	BasicBlock successor = null;
+	int successorPC, successorEpoch;
+    }
+
+    /**
+     * A single instruction of a basic block. The flags of the instruction are
+     * resolved when the block is translated, so executing a micro-op only
+     * needs to dispatch on its kind.
+     */
+    private final class MicroOp {
+	MicroOp(DecodedInstruction inst) {
+	    int flags = inst.flags;
+
+	    rs = inst.rs;
+	    rt = inst.rt;
+	    sh = inst.sh;
+	    imm = inst.imm;
+	    size = inst.size;
+	    offset = inst.branchOffset;
+	    target = inst.jumpTarget;
+
+	    if (Lib.test(Mips.DST, flags) && inst.dstReg > 0)
+		dst = inst.dstReg;
+	    else
+		dst = 0;
+
+	    boolean overflow = Lib.test(Mips.OVERFLOW, flags);
+	    boolean unsigned = Lib.test(Mips.UNSIGNED, flags);
+	    boolean immediate = Lib.test(Mips.SRC2IMM, flags);
+	    boolean shamt = Lib.test(Mips.SRC1SH, flags);
+
+	    switch (inst.operation) {
+	    case Mips.ADD:
+		if (overflow)
+		    kind = immediate ? ADDI : ADD;
+		else
+		    kind = immediate ? ADDIU : ADDU;
+		break;
+	    case Mips.SUB:
+		kind = overflow ? SUB : SUBU;
+		break;
+	    case Mips.MULT:
+		kind = unsigned ? MULTU : MULT;
+		break;
+	    case Mips.DIV:
+		kind = unsigned ? DIVU : DIV;
+		break;
+	    case Mips.SLL:
+		kind = shamt ? SLL : SLLV;
+		break;
+	    case Mips.SRA:
+		kind = shamt ? SRA : SRAV;
+		break;
+	    case Mips.SRL:
+		kind = shamt ? SRL : SRLV;
+		break;
+	    case Mips.SLT:
+		if (unsigned)
+		    kind = immediate ? SLTIU : SLTU;
+		else
+		    kind = immediate ? SLTI : SLT;
+		break;
+	    case Mips.AND:
+		kind = immediate ? ANDI : AND;
+		break;
+	    case Mips.OR:
+		kind = immediate ? ORI : OR;
+		break;
+	    case Mips.XOR:
+		kind = immediate ? XORI : XOR;
+		break;
+	    case Mips.NOR:
+		kind = NOR;
+		break;
+	    case Mips.LUI:
+		kind = LUI;
+		break;
+	    case Mips.MFLO:
+		kind = MFLO;
+		break;
+	    case Mips.MFHI:
+		kind = MFHI;
+		break;
+	    case Mips.MTLO:
+		kind = MTLO;
+		break;
+	    case Mips.MTHI:
+		kind = MTHI;
+		break;
+	    case Mips.JUMP:
+		if (inst.format == Mips.RFMT)
+		    kind = JR;
+		else
+		    kind = J;
+		break;
+	    case Mips.BEQ:
+		kind = BEQ;
+		break;
+	    case Mips.BNE:
+		kind = BNE;
+		break;
+	    case Mips.BLEZ:
+		kind = BLEZ;
+		break;
+	    case Mips.BGTZ:
+		kind = BGTZ;
+		break;
+	    case Mips.BLTZ:
+		kind = BLTZ;
+		break;
+	    case Mips.BGEZ:
+		kind = BGEZ;
+		break;
+	    case Mips.SYSCALL:
+		kind = SYSCALL;
+		break;
+	    case Mips.LOAD:
+		kind = LOAD;
+		break;
+	    case Mips.LWL:
+		kind = LWL;
+		break;
+	    case Mips.LWR:
+		kind = LWR;
+		break;
+	    case Mips.STORE:
+		kind = STORE;
+		break;
+	    case Mips.SWL:
+		kind = SWL;
+		break;
+	    case Mips.SWR:
+		kind = SWR;
+		break;
+	    case Mips.UNIMPL:
+		kind = UNIMPL;
+		break;
+	    default:
+		kind = INVALID;
+		break;
+	    }
+	}
+
+	/**
+	 * Execute this micro-op. Has exactly the same effect as running the
+	 * instruction it was translated from through <tt>Instruction</tt>.
+	 */
+	void execute() throws MipsException {
+	    int[] registers = Processor.this.registers;
+	    long src1, src2, result;
+	    int value, addr, preserved, mask;
+
+	    switch (kind) {
+	    case ADDU:
+		value = registers[rs] + registers[rt];
+		break;
+	    case ADDIU:
+		value = registers[rs] + imm;
+		break;
+	    case ADD:
+		result = (long) registers[rs] + registers[rt];
+		if (Lib.test(result,31) != Lib.test(result,32))
+		    throw exception(exceptionOverflow);
+		value = (int) result;
+		break;
+	    case ADDI:
+		result = (long) registers[rs] + imm;
+		if (Lib.test(result,31) != Lib.test(result,32))
+		    throw exception(exceptionOverflow);
+		value = (int) result;
+		break;
+	    case SUBU:
+		value = registers[rs] - registers[rt];
+		break;
+	    case SUB:
+		result = (long) registers[rs] - registers[rt];
+		if (Lib.test(result,31) != Lib.test(result,32))
+		    throw exception(exceptionOverflow);
+		value = (int) result;
+		break;
+
+	    case MULT:
+	    case MULTU:
+		src1 = registers[rs];
+		src2 = registers[rt];
+		if (kind == MULTU) {
+		    src1 &= 0xFFFFFFFFL;
+		    src2 &= 0xFFFFFFFFL;
+		}
+		result = src1 * src2;
+		registers[regLo] = (int) Lib.extract(result, 0, 32);
+		registers[regHi] = (int) Lib.extract(result, 32, 32);
+		value = 0;
+		break;
+	    case DIV:
+	    case DIVU:
+		src1 = registers[rs];
+		src2 = registers[rt];
+		if (kind == DIVU) {
+		    src1 &= 0xFFFFFFFFL;
+		    src2 &= 0xFFFFFFFFL;
+		}
+		try {
+		    registers[regLo] = (int) (src1 / src2);
+		    registers[regHi] = (int) (src1 % src2);
+		    if (registers[regLo]*src2 + registers[regHi] != src1)
+			throw new ArithmeticException();
+		}
+		catch (ArithmeticException e) {
+		    throw exception(exceptionOverflow);
+		}
+		value = 0;
+		break;
+
+	    case SLL:
+		value = registers[rt] << sh;
+		break;
+	    case SLLV:
+		value = registers[rt] << (registers[rs]&0x1F);
+		break;
+	    case SRA:
+		value = registers[rt] >> sh;
+		break;
+	    case SRAV:
+		value = registers[rt] >> (registers[rs]&0x1F);
+		break;
+	    case SRL:
+		value = (int) ((long) registers[rt] >>> sh);
+		break;
+	    case SRLV:
+		value = (int) ((long) registers[rt] >>> (registers[rs]&0x1F));
+		break;
+
+	    case SLT:
+		value = (registers[rs] < registers[rt]) ? 1 : 0;
+		break;
+	    case SLTI:
+		value = (registers[rs] < imm) ? 1 : 0;
+		break;
+	    case SLTU:
+		value = ((registers[rs] & 0xFFFFFFFFL) <
+			 (registers[rt] & 0xFFFFFFFFL)) ? 1 : 0;
+		break;
+	    case SLTIU:
+		value = ((registers[rs] & 0xFFFFFFFFL) < imm) ? 1 : 0;
+		break;
+
+	    case AND:
+		value = registers[rs] & registers[rt];
+		break;
+	    case ANDI:
+		value = registers[rs] & imm;
+		break;
+	    case OR:
+		value = registers[rs] | registers[rt];
+		break;
+	    case ORI:
+		value = registers[rs] | imm;
+		break;
+	    case XOR:
+		value = registers[rs] ^ registers[rt];
+		break;
+	    case XORI:
+		value = registers[rs] ^ imm;
+		break;
+	    case NOR:
+		value = ~(registers[rs] | registers[rt]);
+		break;
+	    case LUI:
+		value = imm << 16;
+		break;
+
+	    case MFLO:
+		value = registers[regLo];
+		break;
+	    case MFHI:
+		value = registers[regHi];
+		break;
+	    case MTLO:
+		registers[regLo] = registers[rs];
+		value = 0;
+		break;
+	    case MTHI:
+		registers[regHi] = registers[rs];
+		value = 0;
+		break;
+
+	    case J:
+		branch(true, (registers[regNextPC]&0xF0000000) | target);
+		return;
+	    case JR:
+		branch(true, registers[rs]);
+		return;
+	    case BEQ:
+		branch(registers[rs] == registers[rt],
+		       registers[regNextPC] + offset);
+		return;
+	    case BNE:
+		branch(registers[rs] != registers[rt],
+		       registers[regNextPC] + offset);
+		return;
+	    case BLEZ:
+		branch(registers[rs] <= 0, registers[regNextPC] + offset);
+		return;
+	    case BGTZ:
+		branch(registers[rs] > 0, registers[regNextPC] + offset);
+		return;
+	    case BLTZ:
+		branch(registers[rs] < 0, registers[regNextPC] + offset);
+		return;
+	    case BGEZ:
+		branch(registers[rs] >= 0, registers[regNextPC] + offset);
+		return;
+
+	    case LOAD:
+		value = readMem(registers[rs] + imm, size);
+		delayedLoad(rt, value, 0xFFFFFFFF);
+		advance();
+		return;
+	    case LWL:
+		addr = registers[rs] + imm;
+		value = readMem(addr&~0x3, 4);
+		preserved = (3-(addr&0x3))*8;
+		delayedLoad(rt, value << preserved, -1 << preserved);
+		advance();
+		return;
+	    case LWR:
+		addr = registers[rs] + imm;
+		value = readMem(addr&~0x3, 4);
+		preserved = (addr&0x3)*8;
+		delayedLoad(rt, value >>> preserved, -1 >>> preserved);
+		advance();
+		return;
+
+	    case STORE:
+		writeMem(registers[rs] + imm, size, registers[rt]);
+		value = 0;
+		break;
+	    case SWL:
+		addr = registers[rs] + imm;
+		value = readMem(addr&~0x3, 4);
+		preserved = (3-(addr&0x3))*8;
+		mask = -1 >>> preserved;
+		result = ((long) registers[rt]) >>> preserved;
+		result = (result & mask) | (value & ~mask);
+		writeMem(addr&~0x3, 4, (int) result);
+		value = 0;
+		break;
+	    case SWR:
+		addr = registers[rs] + imm;
+		value = readMem(addr&~0x3, 4);
+		preserved = (addr&0x3)*8;
+		mask = -1 << preserved;
+		result = ((long) registers[rt]) << preserved;
+		result = (result & mask) | (value & ~mask);
+		writeMem(addr&~0x3, 4, (int) result);
+		value = 0;
+		break;
+
+	    case SYSCALL:
+		throw exception(exceptionSyscall);
+
+	    case UNIMPL:
+		System.err.println("Warning: encountered unimplemented inst");
+
+	    case INVALID:
+		throw exception(exceptionIllegalInstruction);
+
+	    default:
+		Lib.assertNotReached();
+		return;
+	    }
+
+	    finishLoad();
+
+	    if (dst != 0)
+		registers[dst] = value;
+
+	    advance();
+	}
+
+	private void branch(boolean taken, int jtarget) {
+	    int nextPC = registers[regNextPC]+4;
+
+	    finishLoad();
+
+	    // link
+	    if (dst != 0)
+		registers[dst] = nextPC;
+
+	    advancePC(taken ? jtarget : nextPC);
+	}
+
+	private void advance() {
+	    registers[regPC] = registers[regNextPC];
+	    registers[regNextPC] += 4;
+	}
+
+	boolean isBranch() {
+	    return kind >= J && kind <= BGEZ;
+	}
+
+	boolean usesLoHi() {
+	    return kind == MULT || kind == MULTU || kind == DIV ||
+		kind == DIVU || (kind >= MFLO && kind <= MTHI);
+	}
+
+	/**
+	 * Test whether the region compiler can translate this micro-op.
+	 * Those with unusual exceptions or delayed load masks are left to the
+	 * processor.
+	 */
+	boolean isCompilable() {
+	    switch (kind) {
+	    case ADD:
+	    case ADDI:
+	    case SUB:
+	    case DIV:
+	    case DIVU:
+	    case LWL:
+	    case LWR:
+	    case SWL:
+	    case SWR:
+	    case SYSCALL:
+	    case UNIMPL:
+	    case INVALID:
+		return false;
+	    default:
+		return true;
+	    }
+	}
+
+	private final int kind;
+	private final int rs, rt, sh, imm, size, dst;
+	private final int offset, target;
+
+	private static final int
+	    INVALID	= 0,
+	    UNIMPL	= 1,
+	    ADD		= 2,
+	    ADDU	= 3,
+	    ADDI	= 4,
+	    ADDIU	= 5,
+	    SUB		= 6,
+	    SUBU	= 7,
+	    MULT	= 8,
+	    MULTU	= 9,
+	    DIV		= 10,
+	    DIVU	= 11,
+	    SLL		= 12,
+	    SLLV	= 13,
+	    SRA		= 14,
+	    SRAV	= 15,
+	    SRL		= 16,
+	    SRLV	= 17,
+	    SLT		= 18,
+	    SLTI	= 19,
+	    SLTU	= 20,
+	    SLTIU	= 21,
+	    AND		= 22,
+	    ANDI	= 23,
+	    OR		= 24,
+	    ORI		= 25,
+	    XOR		= 26,
+	    XORI	= 27,
+	    NOR		= 28,
+	    LUI		= 29,
+	    MFLO	= 30,
+	    MFHI	= 31,
+	    MTLO	= 32,
+	    MTHI	= 33,
+	    J		= 34,
+	    JR		= 35,
+	    BEQ		= 36,
+	    BNE		= 37,
+	    BLEZ	= 38,
+	    BGTZ	= 39,
+	    BLTZ	= 40,
+	    BGEZ	= 41,
+	    SYSCALL	= 42,
+	    LOAD	= 43,
+	    LWL		= 44,
+	    LWR		= 45,
+	    STORE	= 46,
+	    SWL		= 47,
+	    SWR		= 48;
+    }
+
+    /**
+     * Compile the basic blocks of a region into JVM bytecode. A region is a
+     * hot block, together with the blocks in the same page that it branches
+     * to and any other hot blocks in the page, compiled for the virtual page
+     * it is currently executing in.
+     */
+    private class RegionCompiler {
+	/**
+	 * Select the blocks of the region containing the specified block.
+	 *
+	 * @param	hot	the block that became hot.
+	 * @param	vpn	the virtual page the block is executing in.
+	 * @param	limit	the maximum number of instructions to include.
+	 */
+	RegionCompiler(BasicBlock hot, int vpn, int limit) {
+	    this.vpn = vpn;
+
+	    int ppn = hot.paddr/pageSize;
+	    BasicBlock[] page = blockPages[ppn];
+
+	    add(hot);
+
+	    // follow direct branches within the page
+	    for (int i=0; i<blocks.size() && instructions < limit;
+		 i++) {
+		BasicBlock block = blocks.get(i);
+
+		for (int vaddr : successors(block)) {
+		    if (pageFromAddress(vaddr) != vpn)
+			continue;
+
+		    BasicBlock next = page[offsetFromAddress(vaddr)/4];
+		    if (next != null)
+			add(next);
+		}
+	    }
+
+	    // targets of indirect jumps are only found by how often they run
+	    for (int i=0; i<page.length && instructions < limit;
+		 i++) {
+		if (page[i] != null && page[i].count >= jitThreshold/2)
+		    add(page[i]);
+	    }
+	}
+
+	private void add(BasicBlock block) {
+	    if (!block.valid || compiledLength(block) == 0 ||
+		addresses.containsKey(address(block)))
+		return;
+
+	    addresses.put(address(block), blocks.size());
+	    blocks.add(block);
+	    instructions += block.ops.length;
+	}
+
+	/**
+	 * Return the virtual address of a block in this region's page.
+	 */
+	private int address(BasicBlock block) {
+	    return vpn*pageSize + block.paddr%pageSize;
+	}
+
+	/**
+	 * Return the index of the branch in a block, or -1 if the block does
+	 * not contain one.
+	 */
+	private int branchIndex(BasicBlock block) {
+	    for (int i=0; i<block.ops.length; i++) {
+		if (block.ops[i].isBranch())
+		    return i;
+	    }
+	    return -1;
+	}
+
+	/**
+	 * Return the number of instructions at the start of a block that can
+	 * be compiled. The rest are left to the processor. A block must not
+	 * leave a delayed load in progress at its end.
+	 */
+	private int compiledLength(BasicBlock block) {
+	    int length = 0;
+	    while (length < block.ops.length &&
+		   block.ops[length].isCompilable())
+		length++;
+
+	    if (length == block.ops.length &&
+		block.ops[length-1].kind == MicroOp.LOAD)
+		length--;
+
+	    return length;
+	}
+
+	/**
+	 * Return the addresses a block can continue at that are known at
+	 * compile time.
+	 */
+	private int[] successors(BasicBlock block) {
+	    int start = address(block);
+	    int branch = branchIndex(block);
+
+	    if (branch == -1)
+		return new int[] { start + block.ops.length*4 };
+
+	    MicroOp op = block.ops[branch];
+	    int nextPC = start + (branch+1)*4;
+
+	    switch (op.kind) {
+	    case MicroOp.J:
+		return new int[] { (nextPC&0xF0000000) | op.target };
+	    case MicroOp.JR:
+		return new int[0];
+	    default:
+		return new int[] { nextPC + op.offset, nextPC + 4 };
+	    }
+	}
+
+	/**
+	 * Compile the region, and attach it to each of its blocks. Must be
+	 * called with privilege.
+	 *
+	 * @return	<tt>false</tt> if the region is too large to compile.
+	 */
+	boolean compile() {
+	    if (blocks.isEmpty())
+		return true;
+
+	    byte[] code = generate();
+	    if (code == null) {
+		Lib.debug(dbgJIT, "region at 0x" + Lib.toHexString(
+			      address(blocks.get(0))) + " is too large");
+		return false;
+	    }
+
+	    String name = "nachos.jit.Region" + (numRegionsCompiled++);
+	    CompiledRegion region = CompiledRegion.define(privilege, name, code);
+	    if (region == null)
+		return true;
+
+	    region.processor = Processor.this;
+	    region.vpn = vpn;
+
+	    int numExits = exitPC.size();
+	    region.exitPC = new int[numExits];
+	    region.exitProgress = new int[numExits];
+	    region.exitDelaySlot = new boolean[numExits];
+	    region.exitLoadTarget = new int[numExits];
+
+	    for (int i=0; i<numExits; i++) {
+		region.exitPC[i] = exitPC.get(i);
+		region.exitProgress[i] = exitProgress.get(i);
+		region.exitDelaySlot[i] = exitDelaySlot.get(i);
+		region.exitLoadTarget[i] = exitLoadTarget.get(i);
+	    }
+
+	    for (BasicBlock block : blocks)
+		block.region = region;
+
+	    Lib.debug(dbgJIT, "compiled " + blocks.size() + " blocks at 0x" +
+		      Lib.toHexString(address(blocks.get(0))) + " into " +
+		      code.length + " bytes");
+	    return true;
+	}
+
+	/**
+	 * Generate the class file for this region.
+	 *
+	 * @return	the class file, or <tt>null</tt> if the region is too
+	 *		large.
+	 */
+	private byte[] generate() {
+	    out = new ClassFileWriter("nachos/jit/Region" + numRegionsCompiled,
+				      "nachos/machine/CompiledRegion");
+
+	    for (BasicBlock block : blocks) {
+		ClassFileWriter.Label label = newLabel();
+		blockLabels.add(label);
+	    }
+	    dispatch = newLabel();
+	    exit0 = newLabel();
+	    exit = newLabel();
+
+	    // exit 0 continues at the PC in its local
+	    newExit(0, 0, false, 0);
+
+	    // find the registers the region uses
+	    for (BasicBlock block : blocks) {
+		for (MicroOp op : block.ops) {
+		    used[op.rs] = used[op.rt] = used[op.dst] = true;
+		    if (op.usesLoHi())
+			used[regLo] = used[regHi] = true;
+		}
+	    }
+	    used[0] = false;
+
+	    // load the registers into locals and go to the first block
+	    for (int local : new int[] { DONE, TGT, PV, X }) {
+		out.pushInt(0);
+		out.istore(local);
+	    }
+	    for (int i=1; i<=regHi; i++) {
+		if (used[i]) {
+		    out.op(ClassFileWriter.ALOAD_1);
+		    out.pushInt(i);
+		    out.op(ClassFileWriter.IALOAD);
+		    out.istore(local(i));
+		}
+	    }
+	    out.op(ClassFileWriter.ALOAD_1);
+	    out.pushInt(regPC);
+	    out.op(ClassFileWriter.IALOAD);
+	    out.istore(PC);
+
+	    // main memory is either an array or a direct buffer
+	    out.op(ClassFileWriter.ALOAD_2);
+	    out.op2(ClassFileWriter.CHECKCAST, out.classRef(
+		offHeapMemory != null ? "java/nio/ByteBuffer" : "[B"));
+	    out.op(ClassFileWriter.ASTORE_2);
+
+	    // jump to the block at the PC
+	    out.mark(dispatch);
+	    out.iload(PC);
+
+	    int[] keys = new int[blocks.size()];
+	    for (int i=0; i<keys.length; i++)
+		keys[i] = address(blocks.get(i));
+	    java.util.Arrays.sort(keys);
+
+	    ClassFileWriter.Label[] targets = new ClassFileWriter.Label[keys.length];
+	    for (int i=0; i<keys.length; i++)
+		targets[i] = blockLabels.get(addresses.get(keys[i]));
+
+	    out.lookupSwitch(exit0, keys, targets);
+
+	    for (int i=0; i<blocks.size(); i++)
+		generateBlock(i);
+
+	    // store the registers and leave
+	    out.mark(exit0);
+	    out.pushInt(0);
+	    out.istore(X);
+	    out.mark(exit);
+	    for (int i=1; i<=regHi; i++) {
+		if (used[i]) {
+		    out.op(ClassFileWriter.ALOAD_1);
+		    out.pushInt(i);
+		    out.iload(local(i));
+		    out.op(ClassFileWriter.IASTORE);
+		}
+	    }
+	    out.op(ClassFileWriter.ALOAD_0);
+	    out.op(ClassFileWriter.ALOAD_1);
+	    out.iload(X);
+	    out.iload(PC);
+	    out.iload(TGT);
+	    out.iload(PV);
+	    out.iload(DONE);
+	    out.invokevirtual("nachos/machine/CompiledRegion", "exit",
+			      "([IIIIII)I");
+	    out.op(ClassFileWriter.IRETURN);
+
+	    // larger methods are never compiled by HotSpot
+	    if (out.codeSize() > maxRegionCodeSize)
+		return null;
+
+	    return out.finish("run", "([ILjava/lang/Object;I)I", labels, 8,
+			      numLocals);
+	}
+
+	private void generateBlock(int index) {
+	    BasicBlock block = blocks.get(index);
+	    int start = address(block);
+	    int length = compiledLength(block);
+	    int branch = branchIndex(block);
+
+	    out.mark(blockLabels.get(index));
+
+	    // leave if the block might not finish before an interrupt is due
+	    ClassFileWriter.Label fits = newLabel();
+	    out.iload(DONE);
+	    out.pushInt(length);
+	    out.op(ClassFileWriter.IADD);
+	    out.iload(BUDGET);
+	    out.jump(ClassFileWriter.IF_ICMPLE, fits);
+	    out.pushInt(start);
+	    out.istore(PC);
+	    out.jump(ClassFileWriter.GOTO, exit0);
+	    out.mark(fits);
+
+	    int pending = 0;
+	    for (int i=0; i<length; i++) {
+		exitHere = start + i*4;
+		exitIndex = i;
+		inDelaySlot = (branch != -1 && i == branch+1);
+		pending = generateInstruction(block.ops[i], pending,
+					      start + (i+1)*4);
+	    }
+
+	    if (length < block.ops.length) {
+		// the processor executes the rest of the block
+		exitHere = start + length*4;
+		exitIndex = length;
+		inDelaySlot = (branch != -1 && length == branch+1);
+		takeExit(pending);
+		return;
+	    }
+
+	    Lib.assertTrue(pending == 0);
+
+	    if (branch == length-1) {
+		// the delay slot is in the next page
+		exitHere = start + length*4;
+		exitIndex = length;
+		inDelaySlot = true;
+		takeExit(0);
+		return;
+	    }
+
+	    out.iinc(DONE, length);
+
+	    if (branch == -1) {
+		goTo(start + length*4);
+		return;
+	    }
+
+	    out.iload(TGT);
+	    out.istore(PC);
+
+	    int[] successors = successors(block);
+	    if (successors.length == 0) {
+		out.jump(ClassFileWriter.GOTO, dispatch);
+		return;
+	    }
+
+	    if (successors.length == 1) {
+		goTo(successors[0]);
+		return;
+	    }
+
+	    // a conditional branch continues at whichever successor is in
+	    // the PC, and leaves the region at it if that is not compiled
+	    for (int vaddr : successors) {
+		if (addresses.containsKey(vaddr)) {
+		    out.iload(PC);
+		    out.pushInt(vaddr);
+		    out.jump(ClassFileWriter.IF_ICMPEQ,
+			     blockLabels.get(addresses.get(vaddr)));
+		}
+	    }
+	    out.jump(ClassFileWriter.GOTO, exit0);
+	}
+
+	/**
+	 * Continue at the block at a known address, or leave the region.
+	 */
+	private void goTo(int vaddr) {
+	    if (addresses.containsKey(vaddr)) {
+		out.jump(ClassFileWriter.GOTO,
+			 blockLabels.get(addresses.get(vaddr)));
+	    }
+	    else {
+		out.pushInt(vaddr);
+		out.istore(PC);
+		out.jump(ClassFileWriter.GOTO, exit0);
+	    }
+	}
+
+	/**
+	 * Generate the code for one instruction.
+	 *
+	 * @param	op	the instruction.
+	 * @param	pending	the target of the delayed load started by the
+	 *			previous instruction, or 0.
+	 * @param	nextPC	the address of the following instruction.
+	 * @return	the target of the delayed load started by this
+	 *		instruction, or 0.
+	 */
+	private int generateInstruction(MicroOp op, int pending,
+					int nextPC) {
+	    ClassFileWriter.Label label, join;
+
+	    switch (op.kind) {
+	    case MicroOp.ADDU:
+		loadRegister(op.rs);
+		loadRegister(op.rt);
+		out.op(ClassFileWriter.IADD);
+		break;
+	    case MicroOp.ADDIU:
+		loadRegister(op.rs);
+		out.pushInt(op.imm);
+		out.op(ClassFileWriter.IADD);
+		break;
+	    case MicroOp.SUBU:
+		loadRegister(op.rs);
+		loadRegister(op.rt);
+		out.op(ClassFileWriter.ISUB);
+		break;
+
+	    case MicroOp.MULT:
+	    case MicroOp.MULTU:
+		loadRegister(op.rs);
+		out.op(ClassFileWriter.I2L);
+		if (op.kind == MicroOp.MULTU) {
+		    out.pushLong(0xFFFFFFFFL);
+		    out.op(ClassFileWriter.LAND);
+		}
+		loadRegister(op.rt);
+		out.op(ClassFileWriter.I2L);
+		if (op.kind == MicroOp.MULTU) {
+		    out.pushLong(0xFFFFFFFFL);
+		    out.op(ClassFileWriter.LAND);
+		}
+		out.op(ClassFileWriter.LMUL);
+		out.op1(ClassFileWriter.LSTORE, LTMP);
+		out.op1(ClassFileWriter.LLOAD, LTMP);
+		out.op(ClassFileWriter.L2I);
+		out.istore(local(regLo));
+		out.op1(ClassFileWriter.LLOAD, LTMP);
+		out.pushInt(32);
+		out.op(ClassFileWriter.LSHR);
+		out.op(ClassFileWriter.L2I);
+		out.istore(local(regHi));
+		finishLoad(pending);
+		return 0;
+
+	    case MicroOp.SLL:
+	    case MicroOp.SRA:
+		loadRegister(op.rt);
+		out.pushInt(op.sh);
+		out.op(op.kind == MicroOp.SLL ? ClassFileWriter.ISHL :
+		       ClassFileWriter.ISHR);
+		break;
+	    case MicroOp.SLLV:
+	    case MicroOp.SRAV:
+		loadRegister(op.rt);
+		loadRegister(op.rs);
+		out.op(op.kind == MicroOp.SLLV ? ClassFileWriter.ISHL :
+		       ClassFileWriter.ISHR);
+		break;
+	    case MicroOp.SRL:
+	    case MicroOp.SRLV:
+		loadRegister(op.rt);
+		out.op(ClassFileWriter.I2L);
+		if (op.kind == MicroOp.SRL) {
+		    out.pushInt(op.sh);
+		}
+		else {
+		    loadRegister(op.rs);
+		    out.pushInt(0x1F);
+		    out.op(ClassFileWriter.IAND);
+		}
+		out.op(ClassFileWriter.LUSHR);
+		out.op(ClassFileWriter.L2I);
+		break;
+
+	    case MicroOp.SLT:
+	    case MicroOp.SLTI:
+	    case MicroOp.SLTU:
+	    case MicroOp.SLTIU:
+		boolean unsigned =
+		    (op.kind == MicroOp.SLTU || op.kind == MicroOp.SLTIU);
+		loadRegister(op.rs);
+		if (unsigned) {
+		    out.pushInt(0x80000000);
+		    out.op(ClassFileWriter.IXOR);
+		}
+		if (op.kind == MicroOp.SLT || op.kind == MicroOp.SLTU)
+		    loadRegister(op.rt);
+		else
+		    out.pushInt(op.imm);
+		if (unsigned) {
+		    out.pushInt(0x80000000);
+		    out.op(ClassFileWriter.IXOR);
+		}
+		label = newLabel();
+		join = newLabel();
+		out.jump(ClassFileWriter.IF_ICMPLT, label);
+		out.pushInt(0);
+		out.jump(ClassFileWriter.GOTO, join);
+		out.mark(label);
+		out.pushInt(1);
+		out.mark(join);
+		break;
+
+	    case MicroOp.AND:
+	    case MicroOp.OR:
+	    case MicroOp.XOR:
+	    case MicroOp.NOR:
+		loadRegister(op.rs);
+		loadRegister(op.rt);
+		logical(op.kind);
+		break;
+	    case MicroOp.ANDI:
+	    case MicroOp.ORI:
+	    case MicroOp.XORI:
+		loadRegister(op.rs);
+		out.pushInt(op.imm);
+		logical(op.kind);
+		break;
+	    case MicroOp.LUI:
+		out.pushInt(op.imm << 16);
+		break;
+
+	    case MicroOp.MFLO:
+		out.iload(local(regLo));
+		break;
+	    case MicroOp.MFHI:
+		out.iload(local(regHi));
+		break;
+	    case MicroOp.MTLO:
+	    case MicroOp.MTHI:
+		loadRegister(op.rs);
+		out.istore(local(op.kind == MicroOp.MTLO ? regLo : regHi));
+		finishLoad(pending);
+		return 0;
+
+	    case MicroOp.J:
+		out.pushInt((nextPC&0xF0000000) | op.target);
+		out.istore(TGT);
+		return finishBranch(op, pending, nextPC);
+	    case MicroOp.JR:
+		loadRegister(op.rs);
+		out.istore(TGT);
+		return finishBranch(op, pending, nextPC);
+	    case MicroOp.BEQ:
+	    case MicroOp.BNE:
+	    case MicroOp.BLEZ:
+	    case MicroOp.BGTZ:
+	    case MicroOp.BLTZ:
+	    case MicroOp.BGEZ:
+		label = newLabel();
+		join = newLabel();
+		loadRegister(op.rs);
+		switch (op.kind) {
+		case MicroOp.BEQ:
+		    loadRegister(op.rt);
+		    out.jump(ClassFileWriter.IF_ICMPEQ, label);
+		    break;
+		case MicroOp.BNE:
+		    loadRegister(op.rt);
+		    out.jump(ClassFileWriter.IF_ICMPNE, label);
+		    break;
+		case MicroOp.BLEZ:
+		    out.jump(ClassFileWriter.IFLE, label);
+		    break;
+		case MicroOp.BGTZ:
+		    out.jump(ClassFileWriter.IFGT, label);
+		    break;
+		case MicroOp.BLTZ:
+		    out.jump(ClassFileWriter.IFLT, label);
+		    break;
+		case MicroOp.BGEZ:
+		    out.jump(ClassFileWriter.IFGE, label);
+		    break;
+		}
+		out.pushInt(nextPC+4);
+		out.istore(TGT);
+		out.jump(ClassFileWriter.GOTO, join);
+		out.mark(label);
+		out.pushInt(nextPC + op.offset);
+		out.istore(TGT);
+		out.mark(join);
+		return finishBranch(op, pending, nextPC);
+
+	    case MicroOp.LOAD:
+		generateTranslation(op, false, pending);
+		out.op(ClassFileWriter.ALOAD_2);
+		out.iload(P);
+		if (offHeapMemory != null) {
+		    switch (op.size) {
+		    case 1:
+			out.invokevirtual("java/nio/ByteBuffer", "get", "(I)B");
+			break;
+		    case 2:
+			out.invokevirtual("java/nio/ByteBuffer", "getShort",
+					  "(I)S");
+			break;
+		    case 4:
+			out.invokevirtual("java/nio/ByteBuffer", "getInt",
+					  "(I)I");
+			break;
+		    }
+		}
+		else {
+		    switch (op.size) {
+		    case 1:
+			out.op(ClassFileWriter.BALOAD);
+			break;
+		    case 2:
+			out.invokestatic("nachos/machine/Lib", "bytesToShort",
+					 "([BI)S");
+			break;
+		    case 4:
+			out.invokestatic("nachos/machine/Lib", "bytesToInt",
+					 "([BI)I");
+			break;
+		    }
+		}
+
+		// the loaded value is written by the next instruction
+		if (op.rt == 0) {
+		    out.op(ClassFileWriter.POP);
+		    finishLoad(pending);
+		}
+		else if (pending != 0) {
+		    out.istore(TMP);
+		    finishLoad(pending);
+		    out.iload(TMP);
+		    out.istore(PV);
+		}
+		else {
+		    out.istore(PV);
+		}
+		return op.rt;
+
+	    case MicroOp.STORE:
+		generateTranslation(op, true, pending);
+		out.op(ClassFileWriter.ALOAD_2);
+		out.iload(P);
+		loadRegister(op.rt);
+		if (offHeapMemory != null) {
+		    switch (op.size) {
+		    case 1:
+			out.op(ClassFileWriter.I2B);
+			out.invokevirtual("java/nio/ByteBuffer", "put",
+					  "(IB)Ljava/nio/ByteBuffer;");
+			break;
+		    case 2:
+			out.op(ClassFileWriter.I2S);
+			out.invokevirtual("java/nio/ByteBuffer", "putShort",
+					  "(IS)Ljava/nio/ByteBuffer;");
+			break;
+		    case 4:
+			out.invokevirtual("java/nio/ByteBuffer", "putInt",
+					  "(II)Ljava/nio/ByteBuffer;");
+			break;
+		    }
+		    out.op(ClassFileWriter.POP);
+		}
+		else {
+		    switch (op.size) {
+		    case 1:
+			out.op(ClassFileWriter.BASTORE);
+			break;
+		    case 2:
+			out.op(ClassFileWriter.I2S);
+			out.invokestatic("nachos/machine/Lib", "bytesFromShort",
+					 "([BIS)V");
+			break;
+		    case 4:
+			out.invokestatic("nachos/machine/Lib", "bytesFromInt",
+					 "([BII)V");
+			break;
+		    }
+		}
+		finishLoad(pending);
+		return 0;
+
+	    default:
+		Lib.assertNotReached();
+	    }
+
+	    // the result of an ALU instruction is on the stack
+	    finishLoad(pending);
+	    storeRegister(op.dst);
+	    return 0;
+	}
+
+	private void logical(int kind) {
+	    switch (kind) {
+	    case MicroOp.AND:
+	    case MicroOp.ANDI:
+		out.op(ClassFileWriter.IAND);
+		break;
+	    case MicroOp.OR:
+	    case MicroOp.ORI:
+		out.op(ClassFileWriter.IOR);
+		break;
+	    case MicroOp.XOR:
+	    case MicroOp.XORI:
+		out.op(ClassFileWriter.IXOR);
+		break;
+	    case MicroOp.NOR:
+		out.op(ClassFileWriter.IOR);
+		out.pushInt(-1);
+		out.op(ClassFileWriter.IXOR);
+		break;
+	    }
+	}
+
+	private int finishBranch(MicroOp op, int pending, int nextPC) {
+	    finishLoad(pending);
+
+	    // link
+	    if (op.dst != 0) {
+		out.pushInt(nextPC+4);
+		storeRegister(op.dst);
+	    }
+
+	    return 0;
+	}
+
+	/**
+	 * Translate the address of a load or store into local <tt>P</tt>,
+	 * leaving the region if the processor must handle the access.
+	 */
+	private void generateTranslation(MicroOp op, boolean writing,
+					 int pending) {
+	    ClassFileWriter.Label ok = newLabel();
+
+	    out.op(ClassFileWriter.ALOAD_0);
+	    loadRegister(op.rs);
+	    out.pushInt(op.imm);
+	    out.op(ClassFileWriter.IADD);
+	    out.pushInt(op.size);
+	    out.pushInt(writing ? 1 : 0);
+	    out.invokevirtual("nachos/machine/CompiledRegion", "translate",
+			      "(IIZ)I");
+	    out.op(ClassFileWriter.DUP);
+	    out.istore(P);
+	    out.jump(ClassFileWriter.IFGE, ok);
+	    takeExit(pending);
+	    out.mark(ok);
+	}
+
+	/**
+	 * Leave the region at the current instruction.
+	 */
+	private void takeExit(int pending) {
+	    out.pushInt(newExit(exitHere, exitIndex, inDelaySlot, pending));
+	    out.istore(X);
+	    out.jump(ClassFileWriter.GOTO, exit);
+	}
+
+	private int newExit(int pc, int progress, boolean delaySlot,
+			    int loadTarget) {
+	    exitPC.add(pc);
+	    exitProgress.add(progress);
+	    exitDelaySlot.add(delaySlot);
+	    exitLoadTarget.add(loadTarget);
+	    return exitPC.size()-1;
+	}
+
+	private void finishLoad(int pending) {
+	    if (pending != 0) {
+		out.iload(PV);
+		out.istore(local(pending));
+	    }
+	}
+
+	private void loadRegister(int number) {
+	    if (number == 0)
+		out.pushInt(0);
+	    else
+		out.iload(local(number));
+	}
+
+	private void storeRegister(int number) {
+	    if (number == 0)
+		out.op(ClassFileWriter.POP);
+	    else
+		out.istore(local(number));
+	}
+
+	private int local(int register) {
+	    return 3 + register;
+	}
+
+	private ClassFileWriter.Label newLabel() {
+	    ClassFileWriter.Label label = out.newLabel();
+	    labels.add(label);
+	    return label;
+	}
+
+	private int vpn;
+	private ArrayList<BasicBlock> blocks = new ArrayList<BasicBlock>();
+	private HashMap<Integer,Integer> addresses =
+	    new HashMap<Integer,Integer>();
+	private int instructions = 0;
+
+	private ClassFileWriter out;
+	private ArrayList<ClassFileWriter.Label> labels =
+	    new ArrayList<ClassFileWriter.Label>();
+	private ArrayList<ClassFileWriter.Label> blockLabels =
+	    new ArrayList<ClassFileWriter.Label>();
+	private ClassFileWriter.Label dispatch, exit0, exit;
+	private boolean[] used = new boolean[regHi+1];
+
+	private ArrayList<Integer> exitPC = new ArrayList<Integer>();
+	private ArrayList<Integer> exitProgress = new ArrayList<Integer>();
+	private ArrayList<Boolean> exitDelaySlot = new ArrayList<Boolean>();
+	private ArrayList<Integer> exitLoadTarget = new ArrayList<Integer>();
+
+	/** The instruction being generated, for exits taken there. */
+	private int exitHere, exitIndex;
+	private boolean inDelaySlot;
+
+	// local variables of the generated method: 0-2 are the arguments,
+	// and 4-36 hold registers 1 to 33
+	private static final int
+	    BUDGET = 3,
+	    PC		= 37,
+	    DONE	= 38,
+	    TGT		= 39,
+	    PV		= 40,
+	    X		= 41,
+	    P		= 42,
+	    TMP		= 43,
+	    LTMP	= 44,
+	    numLocals	= 46;
+    }
+
+    /**
+     * The parts of an instruction that depend only on its encoding. These are
+     * computed once, when the instruction is first fetched, and reused every
+     * time the instruction at the same physical address is executed.
+     */
+    private static class DecodedInstruction {
+	DecodedInstruction(int value) {
+	    this.value = value;
+	    
+	    op = Lib.extract(value, 26, 6);
+	    rs = Lib.extract(value, 21, 5);
+	    rt = Lib.extract(value, 16, 5);
+	    rd = Lib.extract(value, 11, 5);
+	    sh = Lib.extract(value, 6, 5);
+	    func = Lib.extract(value, 0, 6);
+
+	    int target = Lib.extract(value, 0, 26);
+	    int imm = Lib.extend(value, 0, 16);
+
+	    Mips info;
+	    switch (op) {
+	    case 0:
+		info = Mips.specialtable[func];
+		break;
+	    case 1:
+		info = Mips.regimmtable[rt];
+		break;
+	    default:
+		info = Mips.optable[op];
+		break;
+	    }
+
+	    operation = info.operation;
+	    name = info.name;
+	    format = info.format;
+	    flags = info.flags;
+
+	    // get memory access size
+	    if (Lib.test(Mips.SIZEB, flags))
+		size = 1;
+	    else if (Lib.test(Mips.SIZEH, flags))
+		size = 2;
+	    else if (Lib.test(Mips.SIZEW, flags))
+		size = 4;
+	    else
+		size = 0;
+
+	    // get dstReg
+	    if (Lib.test(Mips.DSTRA, flags))
+		dstReg = regRA;
+	    else if (format == Mips.IFMT)
+		dstReg = rt;
+	    else if (format == Mips.RFMT)
+		dstReg = rd;
+	    else
+		dstReg = -1;
+
+	    // the register-independent parts of the branch and jump targets
+	    branchOffset = imm<<2;
+	    jumpTarget = target<<2;
+
+	    // get imm
+	    if (Lib.test(Mips.UNSIGNED, flags))
+		imm &= 0xFFFF;
+
+	    this.imm = imm;
+	}
+
+	final int value, op, rs, rt, rd, sh, func, imm;
+	final int operation, format, flags;
+	final String name;
+
+	final int size, dstReg;
+	final int branchOffset, jumpTarget;
+    }
+
     private static class Mips {
 	Mips() {
 	}
@@ -15,7 +15,9 @@ public final class Stats {
     }
 
     /**
-     * Print out the statistics in this object.
+     * Print out the statistics in this object. The Java threads are only
+     * reported once a TCB has reused a pooled one, and missed deadlines only
+     * if the scheduler counts them.
      */
     public void print() {
 	System.out.println("Ticks: total " + totalTicks
@@ -29,6 +31,12 @@ public final class Stats {
 			   + ", TLB misses " + numTLBMisses);
 	System.out.println("Network I/O: received " + numPacketsReceived
 			   + ", sent " + numPacketsSent);
+	if (numThreadsReused > 0) {
+	    System.out.println("Threads: created " + numThreadsCreated
+			       + ", reused " + numThreadsReused);
+	}
+	if (countingDeadlineMisses)
+	    System.out.println("Deadlines: missed " + numDeadlineMisses);
     }
 
     /**
@@ -61,6 +69,14 @@ public final class Stats {
     public int numPacketsSent = 0;
     /** The total number of packets Nachos has received from the network. */
     public int numPacketsReceived = 0;
+    /** The total number of Java threads created to run TCBs. */
+    public int numThreadsCreated = 0;
+    /** The total number of times a TCB reused a pooled Java thread. */
+    public int numThreadsReused = 0;
+    /** The total number of real-time jobs that missed their deadlines. */
+    public int numDeadlineMisses = 0;
+    /** Whether the scheduler counts the real-time jobs that miss. */
+    public boolean countingDeadlineMisses = false;
 
     /**
      * The amount to advance simulated time after each user instructions is
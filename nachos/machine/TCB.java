@@ -5,7 +5,13 @@ package nachos.machine;
 import nachos.security.*;
 import nachos.threads.KThread;
 
-import java.util.Vector;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.lang.reflect.Method;
 import java.security.PrivilegedAction;
 
 /**
@@ -21,6 +27,31 @@ import java.security.PrivilegedAction;
  * <p>
  * Do not use the <i>synchronized</i> keyword <b>anywhere</b> in your code.
  * It's against the rules, <i>and</i> it can easily deadlock nachos.
+ *
+ * <p>
+ * On a machine with more than one processor, each processor has its own
+ * current TCB. A context switch hands the switching processor, and the kernel
+ * lock, directly to the new TCB.
+ *
+ * <p>
+ * A TCB hands the processor to another by setting the other's volatile
+ * <tt>running</tt> flag and unparking its Java thread, which parks until the
+ * flag is set. If <tt>TCB.spinCount</tt> is set in the configuration file, a
+ * TCB first spins that many times waiting for the flag before parking, which
+ * avoids a trip through the operating system when the host has a core to
+ * spare for the waiting thread.
+ *
+ * <p>
+ * If <tt>TCB.poolSize</tt> is set, the Java threads of destroyed TCBs wait in
+ * a pool of up to that many threads, and <tt>start()</tt> reuses them instead
+ * of creating a new Java thread for every TCB. <tt>Stats</tt> counts the Java
+ * threads created and reused.
+ *
+ * <p>
+ * If <tt>TCB.virtualThreads</tt> is set, each TCB controls a virtual thread
+ * instead (this needs Java 21 or later). Since a blocked virtual thread costs
+ * little more than its stack, there is then no limit on the number of TCBs,
+ * unless <tt>TCB.maxThreads</tt> sets one.
  */
 public final class TCB {
     /**
@@ -40,6 +71,29 @@ public final class TCB {
     public static void givePrivilege(Privilege privilege) {
 	TCB.privilege = privilege;
 	privilege.tcb = new TCBPrivilege();
+
+	virtualThreads = Config.getBoolean("TCB.virtualThreads", false);
+	if (virtualThreads) {
+	    try {
+		ofVirtual = Thread.class.getMethod("ofVirtual");
+		unstarted = Class.forName("java.lang.Thread$Builder")
+		    .getMethod("unstarted", Runnable.class);
+	    }
+	    catch (Exception e) {
+		Lib.assertNotReached("TCB.virtualThreads needs Java 21 or later");
+	    }
+	}
+
+	poolSize = Config.getInteger("TCB.poolSize", 0);
+	Lib.assertTrue(poolSize >= 0, "bad value for TCB.poolSize");
+
+	spinCount = Config.getInteger("TCB.spinCount", 0);
+	Lib.assertTrue(spinCount >= 0, "bad value for TCB.spinCount");
+
+	threadLimit = Config.getInteger("TCB.maxThreads",
+					virtualThreads ? Integer.MAX_VALUE :
+					maxThreads);
+	Lib.assertTrue(threadLimit > 0, "bad value for TCB.maxThreads");
     }
     
     /**
@@ -66,17 +120,26 @@ public final class TCB {
 	/* Make sure there aren't too many running TCBs already. This
 	 * limitation exists in an effort to prevent wild thread usage.
 	 */
-	Lib.assertTrue(runningThreads.size() < maxThreads);
+	Lib.assertTrue(runningThreads.size() < threadLimit);
 
+	if (currentTCBs == null)
+	    currentTCBs = new TCB[Machine.numProcessors()];
+
+	TCB currentTCB = currentTCB();
+	
 	isFirstTCB = (currentTCB == null);
 
 	/* Probably unnecessary sanity check: if this is not the first TCB, we
 	 * make sure that the current thread is bound to the current TCB. This
 	 * check can only fail if non-Nachos threads invoke start().
 	 */
-	if (!isFirstTCB)
+	if (!isFirstTCB) {
 	    Lib.assertTrue(currentTCB.javaThread == Thread.currentThread());
 
+	    // the new TCB wakes us on our processor
+	    processor = currentTCB.processor;
+	}
+
 	/* At this point all checks are complete, so we go ahead and start the
 	 * TCB. Whether or not this is the first TCB, it gets added to
 	 * runningThreads, and we save the target closure.
@@ -86,26 +149,37 @@ public final class TCB {
 	this.target = target;
 
 	if (!isFirstTCB) {
-	    /* If this is not the first TCB, we have to make a new Java thread
-	     * to run it. Creating Java threads is a privileged operation.
+	    /* If this is not the first TCB, we have to find a Java thread to
+	     * run it, either one waiting in the pool or a new one. Creating
+	     * Java threads is a privileged operation.
 	     */
-	    tcbTarget = new Runnable() {
-		    public void run() { threadroot(); }
-		};
-
-	    privilege.doPrivileged(new Runnable() {
-		    public void run() { javaThread = new Thread(tcbTarget); }
-		});
+	    final ThreadRunner runner = takeFromPool();
+	    
+	    if (runner != null) {
+		javaThread = runner.thread;
+		privilege.stats.numThreadsReused++;
+	    }
+	    else {
+		createJavaThread();
+	    }
 
-	    /* The Java thread hasn't yet started, but we need to get it
-	     * blocking in yield(). We do this by temporarily turning off the
-	     * current TCB, starting the new Java thread, and waiting for it
-	     * to wake us up from threadroot(). Once the new TCB wakes us up,
-	     * it's safe to context switch to the new TCB.
+	    /* The Java thread hasn't yet started (or is still in the pool),
+	     * but we need to get it blocking in yield(). We do this by
+	     * temporarily turning off the current TCB, starting the Java
+	     * thread, and waiting for it to wake us up from threadroot(). Once
+	     * the new TCB wakes us up, it's safe to context switch to the new
+	     * TCB.
 	     */
 	    currentTCB.running = false;
+
+	    if (runner != null) {
+		runner.nextTCB = this;
+		LockSupport.unpark(javaThread);
+	    }
+	    else {
+		this.javaThread.start();
+	    }
 	    
-	    this.javaThread.start();
 	    currentTCB.waitForInterrupt();
 	}
 	else {
@@ -119,11 +193,133 @@ public final class TCB {
 	}
     }
 
+    /**
+     * Causes the thread represented by this TCB to begin execution on the
+     * specified processor, which must not have run any TCB yet. The
+     * specified target is run in the thread, in parallel with the current
+     * thread, once it acquires the kernel lock.
+     *
+     * @param	target		the code to run in the thread.
+     * @param	processor	the number of the processor to start.
+     */
+    public void start(Runnable target, int processor) {
+	Lib.assertTrue(javaThread == null && !done);
+	Lib.assertTrue(runningThreads.size() < threadLimit);
+
+	TCB currentTCB = currentTCB();
+	Lib.assertTrue(currentTCB != null &&
+		       currentTCB.javaThread == Thread.currentThread());
+
+	Lib.assertTrue(processor > 0 && processor < currentTCBs.length &&
+		       currentTCBs[processor] == null);
+
+	runningThreads.add(this);
+
+	this.target = target;
+	this.processor = processor;
+	startsProcessor = true;
+
+	createJavaThread();
+
+	javaThread.start();
+    }
+
+    /**
+     * Create an unstarted Java thread to run this TCB, and any TCBs that
+     * reuse it from the pool after this one is destroyed.
+     */
+    private void createJavaThread() {
+	final ThreadRunner runner = new ThreadRunner(this);
+	
+	privilege.doPrivileged(new Runnable() {
+		public void run() { javaThread = newJavaThread(runner); }
+	    });
+
+	runner.thread = javaThread;
+	privilege.stats.numThreadsCreated++;
+    }
+
+    /**
+     * Create an unstarted Java thread to run a TCB, a virtual thread if
+     * <tt>TCB.virtualThreads</tt> is set. Must be called with privilege.
+     */
+    private static Thread newJavaThread(Runnable target) {
+	if (!virtualThreads)
+	    return new Thread(target);
+
+	try {
+	    if (!schedulerStarted) {
+		startScheduler();
+		schedulerStarted = true;
+	    }
+	    
+	    return (Thread) unstarted.invoke(ofVirtual.invoke(null), target);
+	}
+	catch (Exception e) {
+	    throw new RuntimeException(e);
+	}
+    }
+
+    /**
+     * Start the carrier threads of the virtual thread scheduler. Creating
+     * them needs privilege, so we create one per processor now, and stop the
+     * scheduler from adding more later (for instance while a virtual thread
+     * blocks in file I/O). Only one TCB runs on each processor at a time, so
+     * that is all it ever needs. Must be called with privilege.
+     */
+    private static void startScheduler() throws Exception {
+	final int numCarriers = Machine.numProcessors();
+	
+	String[] properties = { "jdk.virtualThreadScheduler.parallelism",
+				"jdk.virtualThreadScheduler.maxPoolSize" };
+	for (String property : properties) {
+	    if (System.getProperty(property) == null)
+		System.setProperty(property, "" + numCarriers);
+	}
+
+	/* Keep every carrier busy until all of them exist, so that the
+	 * scheduler has to create them all.
+	 */
+	final AtomicInteger numStarted = new AtomicInteger();
+	Thread[] starters = new Thread[numCarriers];
+	
+	for (int i=0; i<numCarriers; i++) {
+	    starters[i] = (Thread) unstarted.invoke(ofVirtual.invoke(null),
+						    new Runnable() {
+		    public void run() {
+			numStarted.incrementAndGet();
+			while (numStarted.get() < numCarriers)
+			    Thread.onSpinWait();
+		    }
+		});
+	    starters[i].start();
+	}
+
+	for (int i=0; i<numCarriers; i++)
+	    starters[i].join();
+    }
+
     /**
      * Return the TCB of the currently running thread.
      */
     public static TCB currentTCB() {
-	return currentTCB;
+	if (currentTCBs == null)
+	    return null;
+	
+	return currentTCBs[currentProcessor()];
+    }
+
+    /**
+     * Return the number of the processor the current thread is running on.
+     * Non-Nachos threads are considered to be running on the first
+     * processor.
+     */
+    static int currentProcessor() {
+	if (currentTCBs == null || currentTCBs.length == 1)
+	    return 0;
+
+	TCB tcb = threadTCB.get();
+	return (tcb == null) ? 0 : tcb.processor;
     }
 
     /**
@@ -132,6 +328,8 @@ public final class TCB {
      * current TCB.
      */
     public void contextSwitch() {
+	TCB currentTCB = currentTCB();
+	
 	/* Probably unnecessary sanity check: we make sure that the current
 	 * thread is bound to the current TCB. This check can only fail if
 	 * non-Nachos threads invoke start().
@@ -157,7 +355,8 @@ public final class TCB {
 
 	TCB previous = currentTCB;
 	previous.running = false;
-	
+
+	this.processor = previous.processor;
 	this.interrupt();
 	previous.yield();
     }
@@ -168,6 +367,8 @@ public final class TCB {
      * autograder.
      */
     public void destroy() {
+	TCB currentTCB = currentTCB();
+	
 	// make sure the current TCB is correct
 	Lib.assertTrue(currentTCB != null &&
 		   currentTCB.javaThread == Thread.currentThread());
@@ -183,6 +384,9 @@ public final class TCB {
 	this.done = true;
 	currentTCB.running = false;
 
+	// the doomed TCB acknowledges on our processor
+	this.processor = currentTCB.processor;
+
 	this.interrupt();
 	currentTCB.waitForInterrupt();
 	
@@ -203,6 +407,8 @@ public final class TCB {
      * @return	<tt>true</tt> if the current JVM thread is a Nachos thread.
      */
     public static boolean isNachosThread() {
+	TCB currentTCB = currentTCB();
+	
 	return (currentTCB != null &&
 		Thread.currentThread() == currentTCB.javaThread);
     }
@@ -211,7 +417,19 @@ public final class TCB {
 	// this should be running the current thread
 	Lib.assertTrue(javaThread == Thread.currentThread());
 
-	if (!isFirstTCB) {
+	if (currentTCBs.length > 1)
+	    threadTCB.set(this);
+
+	if (startsProcessor) {
+	    /* start(target, processor) does not wait for us. We become the
+	     * first TCB on our processor as soon as we can run kernel code.
+	     */
+	    privilege.interrupt.acquireKernel();
+
+	    currentTCBs[processor] = this;
+	    running = true;
+	}
+	else if (!isFirstTCB) {
 	    /* start() is waiting for us to wake it up, signalling that it's OK
 	     * to context switch to us. We leave the running flag false so that
 	     * we'll still run if a context switch happens before we go to
@@ -219,7 +437,7 @@ public final class TCB {
 	     * wait to get woken up by contextSwitch() or destroy().
 	     */
 	    
-	    currentTCB.interrupt();
+	    currentTCB().interrupt();
 	    this.yield();
 	}
 	else {
@@ -227,7 +445,7 @@ public final class TCB {
 	     * a couple things.
 	     */
 	    
-	    currentTCB = this;
+	    currentTCBs[processor] = this;
 	    running = true;
 	}
 
@@ -244,15 +462,23 @@ public final class TCB {
 		privilege.exit(1);
 	    }
 
-	    runningThreads.removeElement(this);
+	    runningThreads.remove(this);
 	    if (runningThreads.isEmpty())
 		privilege.exit(0);
+
+	    /* Virtual threads do not keep the JVM running, so the first TCB's
+	     * thread has to, until Nachos exits.
+	     */
+	    if (isFirstTCB && virtualThreads) {
+		while (true)
+		    LockSupport.park();
+	    }
 	}
 	catch (Throwable e) {
 	    System.out.print("\n");
 	    e.printStackTrace();
 
-	    runningThreads.removeElement(this);
+	    runningThreads.remove(this);
 	    if (runningThreads.isEmpty())
 		privilege.exit(1);
 	    else
@@ -272,37 +498,66 @@ public final class TCB {
 	waitForInterrupt();
 	
 	if (done) {
-	    currentTCB.interrupt();
+	    currentTCB().interrupt();
 	    throw new ThreadDeath();
 	}
 
-	currentTCB = this;
+	currentTCBs[processor] = this;
     }
 
     /**
-     * Waits on the monitor bound to this TCB until its <tt>running</tt> flag
-     * is set to <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a
-     * TCB needs to go to wait for its turn to run. This includes the ping-pong
-     * process of starting and destroying TCBs, as well as in context switching
-     * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
-     * is updated by <tt>contextSwitch()</tt> before we get called.
+     * Put the Java thread of a destroyed TCB in the pool, if it is not full.
+     *
+     * @return	<tt>true</tt> if the thread should wait to be reused.
      */
-    private synchronized void waitForInterrupt() {
-	while (!running) {
-	    try { wait(); }
-	    catch (InterruptedException e) { }
+    private static boolean returnToPool(ThreadRunner runner) {
+	synchronized (threadPool) {
+	    if (threadPool.size() >= poolSize)
+		return false;
+
+	    threadPool.push(runner);
+	    return true;
 	}
     }
 
+    /**
+     * Take a Java thread from the pool, most recently used first.
+     *
+     * @return	a thread waiting to be reused, or <tt>null</tt> if the pool is
+     *		empty.
+     */
+    private static ThreadRunner takeFromPool() {
+	synchronized (threadPool) {
+	    return threadPool.poll();
+	}
+    }
+
+    /**
+     * Parks the Java thread bound to this TCB until its <tt>running</tt> flag
+     * is set to <tt>true</tt>, after spinning <tt>spinCount</tt> times.
+     * <tt>waitForInterrupt()</tt> is used whenever a TCB needs to go to wait
+     * for its turn to run. This includes the ping-pong process of starting
+     * and destroying TCBs, as well as in context switching from this TCB to
+     * another. We don't rely on <tt>currentTCB</tt>, since it is updated by
+     * <tt>contextSwitch()</tt> before we get called.
+     */
+    private void waitForInterrupt() {
+	for (int i=0; i<spinCount && !running; i++)
+	    Thread.onSpinWait();
+	
+	while (!running)
+	    LockSupport.park(this);
+    }
+
     /**
      * Wake up this TCB by setting its <tt>running</tt> flag to <tt>true</tt>
-     * and signalling the monitor bound to it. Used in the ping-pong process of
-     * starting and destroying TCBs, as well as in context switching to this
-     * TCB.
+     * and unparking the Java thread bound to it. Used in the ping-pong
+     * process of starting and destroying TCBs, as well as in context
+     * switching to this TCB.
      */
-    private synchronized void interrupt() {
+    private void interrupt() {
 	running = true;
-	notify();
+	LockSupport.unpark(javaThread);
     }
 
     private void associateThread(KThread thread) {
@@ -328,38 +583,71 @@ public final class TCB {
 
     /**
      * The maximum number of started, non-destroyed TCB's that can be in
-     * existence.
+     * existence, unless <tt>TCB.maxThreads</tt> or
+     * <tt>TCB.virtualThreads</tt> is set.
      */
     public static final int maxThreads = 250;
 
+    /** The maximum number of started, non-destroyed TCB's. */
+    private static int threadLimit = maxThreads;
+
     /**
-     * A reference to the currently running TCB. It is initialized to
-     * <tt>null</tt> when the <tt>TCB</tt> class is loaded, and then the first
-     * invocation of <tt>start(Runnable)</tt> assigns <tt>currentTCB</tt> a
-     * reference to the first TCB. After that, only <tt>yield()</tt> can
-     * change <tt>currentTCB</tt> to the current TCB, and only after
-     * <tt>waitForInterrupt()</tt> returns.
+     * The Java threads of destroyed TCBs, waiting to be reused by
+     * <tt>start()</tt>.
+     */
+    private static ArrayDeque<ThreadRunner> threadPool =
+	new ArrayDeque<ThreadRunner>();
+    /** The maximum number of Java threads in the pool. */
+    private static int poolSize = 0;
+
+    /** The number of times to spin before parking in a context switch. */
+    private static int spinCount = 0;
+
+    /** <tt>true</tt> if each TCB controls a virtual thread. */
+    private static boolean virtualThreads = false;
+    /** <tt>Thread.ofVirtual()</tt>, if using virtual threads. */
+    private static Method ofVirtual;
+    /** <tt>Thread.Builder.unstarted()</tt>, if using virtual threads. */
+    private static Method unstarted;
+    /** <tt>true</tt> once the first virtual thread has run. */
+    private static boolean schedulerStarted = false;
+
+    /**
+     * A reference to the currently running TCB on each processor. It is
+     * initialized to <tt>null</tt> when the <tt>TCB</tt> class is loaded,
+     * and then the first invocation of <tt>start(Runnable)</tt> assigns the
+     * first element a reference to the first TCB. After that, only
+     * <tt>yield()</tt> can change an element to the current TCB of that
+     * processor, and only after <tt>waitForInterrupt()</tt> returns, except
+     * that the first TCB on each other processor installs itself.
      *
      * <p>
-     * Note that <tt>currentTCB.javaThread</tt> will not be the current thread
-     * if the current thread is not bound to a TCB (this includes the threads
-     * created for the hardware simulation).
+     * Note that <tt>currentTCB().javaThread</tt> will not be the current
+     * thread if the current thread is not bound to a TCB (this includes the
+     * threads created for the hardware simulation).
+     */
+    private static TCB[] currentTCBs = null;
+
+    /**
+     * The TCB bound to each Java thread, used to find the processor a thread
+     * is running on. Only set when there is more than one processor.
      */
-    private static TCB currentTCB = null;
+    private static ThreadLocal<TCB> threadTCB = new ThreadLocal<TCB>();
 
     /**
-     * A vector containing all <i>running</i> TCB objects. It is initialized to
-     * an empty vector when the <tt>TCB</tt> class is loaded. TCB objects are
+     * A set containing all <i>running</i> TCB objects. It is initialized to
+     * an empty set when the <tt>TCB</tt> class is loaded. TCB objects are
      * added only in <tt>start(Runnable)</tt>, which can only be invoked once
      * on each TCB object. TCB objects are removed only in each of the
      * <tt>catch</tt> clauses of <tt>threadroot()</tt>, one of which is always
      * invoked on thread termination. The maximum number of threads in
-     * <tt>runningThreads</tt> is limited to <tt>maxThreads</tt> by
+     * <tt>runningThreads</tt> is limited to <tt>threadLimit</tt> by
      * <tt>start(Runnable)</tt>. If <tt>threadroot()</tt> drops the number of
      * TCB objects in <tt>runningThreads</tt> to zero, Nachos exits, so once
-     * the first TCB is created, this vector is basically never empty.
+     * the first TCB is created, this set is basically never empty.
      */
-    private static Vector<TCB> runningThreads = new Vector<TCB>();
+    private static Set<TCB> runningThreads =
+	Collections.synchronizedSet(new HashSet<TCB>());
     
     private static Privilege privilege;
     private static KThread toBeDestroyed = null;
@@ -372,6 +660,18 @@ public final class TCB {
      */
     private boolean isFirstTCB;
 
+    /**
+     * <tt>true</tt> if this TCB was started with <tt>start(Runnable,
+     * int)</tt>, as the first TCB on another processor.
+     */
+    private boolean startsProcessor = false;
+
+    /**
+     * The processor this TCB is running on, or last ran on. Set by whichever
+     * TCB hands its processor over to this one.
+     */
+    private int processor = 0;
+
     /**
      * A reference to the Java thread bound to this TCB. It is initially
      * <tt>null</tt>, assigned to a Java thread in <tt>start(Runnable)</tt>,
@@ -388,7 +688,7 @@ public final class TCB {
      * destroying a TCB, this is temporarily true for a thread other than that
      * of the current TCB.
      */
-    private boolean running = false;
+    private volatile boolean running = false;
 
     /**
      * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
@@ -400,12 +700,45 @@ public final class TCB {
     private KThread nachosThread = null;
     private boolean associated = false;
     private Runnable target;
-    private Runnable tcbTarget;
+
+    /**
+     * The code run by a Java thread bound to TCBs. It runs one TCB until the
+     * TCB is destroyed, then waits in the pool until <tt>start()</tt> hands
+     * it another, unless the pool is full.
+     */
+    private static class ThreadRunner implements Runnable {
+	ThreadRunner(TCB tcb) {
+	    this.tcb = tcb;
+	}
+
+	public void run() {
+	    while (true) {
+		tcb.threadroot();
+		tcb = null;
+
+		if (!returnToPool(this))
+		    return;
+
+		while (nextTCB == null)
+		    LockSupport.park(this);
+
+		tcb = nextTCB;
+		nextTCB = null;
+	    }
+	}
+
+	/** The Java thread running this code. */
+	private Thread thread;
+	/** The TCB the thread is running. */
+	private TCB tcb;
+	/** The TCB to run next, set by <tt>start()</tt>. */
+	private volatile TCB nextTCB = null;
+    }
 
     private static class TCBPrivilege implements Privilege.TCBPrivilege {
 	public void associateThread(KThread thread) {
-	    Lib.assertTrue(currentTCB != null);
-	    currentTCB.associateThread(thread);
+	    Lib.assertTrue(currentTCB() != null);
+	    currentTCB().associateThread(thread);
 	}
 	public void authorizeDestroy(KThread thread) {
 	    TCB.authorizeDestroy(thread);
@@ -58,6 +58,7 @@ public class PostOffice {
 
 	Lib.debug(dbgNet, "waiting for mail on port " + port);
 
+	ThreadedKernel.scheduler.waitingForIO();
 	MailMessage mail = (MailMessage) queues[port].removeFirst();
 
 	if (Lib.test(dbgNet))
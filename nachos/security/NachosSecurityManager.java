@@ -68,6 +68,10 @@ public class NachosSecurityManager extends SecurityManager {
 	    return NachosSecurityManager.this.doPrivileged(action);
 	}
 
+	public Object doClassLoading(PrivilegedAction action) {
+	    return NachosSecurityManager.this.doClassLoading(action);
+	}
+
 	public void exit(int exitStatus) {
 	    invokeExitNotificationHandlers();
 	    NachosSecurityManager.this.exit(exitStatus);
@@ -141,6 +145,21 @@ public class NachosSecurityManager extends SecurityManager {
 	return result;
     }
 
+    private Object doClassLoading(final PrivilegedAction action) {
+	return doPrivileged(new PrivilegedAction() {
+	    public Object run() {
+		Lib.assertTrue(classLoader == null);
+		classLoader = Thread.currentThread();
+		try {
+		    return action.run();
+		}
+		finally {
+		    classLoader = null;
+		}
+	    }
+	});
+    }
+
     private Object doPrivileged(PrivilegedExceptionAction action)
 	throws PrivilegedActionException {
 	Object result = null;
@@ -178,8 +197,9 @@ public class NachosSecurityManager extends SecurityManager {
 	
 	// some permissions are strictly forbidden
 	if (perm instanceof RuntimePermission) {
-	    // no creating class loaders
-	    if (name.equals("createClassLoader"))
+	    // no creating class loaders, except in doClassLoading()
+	    if (name.equals("createClassLoader") &&
+		classLoader != Thread.currentThread())
 		no(perm);
 	}
 	
@@ -313,6 +333,9 @@ public class NachosSecurityManager extends SecurityManager {
 
     private Thread privileged = null;
     private int privilegeCount = 0;
+
+    /** The thread in <tt>doClassLoading()</tt>, if any. */
+    private Thread classLoader = null;
     
     private static final char dbgSecurity = 'S';
 }
@@ -74,6 +74,16 @@ public abstract class Privilege {
     public abstract Object doPrivileged(PrivilegedExceptionAction action)
 	throws PrivilegedActionException;
 
+    /**
+     * Perform the specified <tt>PrivilegedAction</tt> with privilege, and
+     * allow it to create class loaders, which is forbidden otherwise. Only
+     * the processor should need this, to load the regions it compiles.
+     *
+     * @param	action	the action to perform.
+     * @return	the return value of the action.
+     */
+    public abstract Object doClassLoading(PrivilegedAction action);
+
     /**
      * Exit Nachos with the specified status.
      *
@@ -158,6 +168,72 @@ public abstract class Privilege {
 	 *		MIPS user code.
 	 */
 	public void tick(boolean inKernelMode);
+
+	/**
+	 * Return the time at which the earliest pending interrupt is due.
+	 *
+	 * @return	the time of the next pending interrupt, or
+	 *		<tt>Long.MAX_VALUE</tt> if no interrupts are pending.
+	 */
+	public long nextDueTime();
+
+	/**
+	 * Advance the simulated time by the specified number of MIPS
+	 * instructions at once, without checking for pending interrupts. The
+	 * caller must ensure that no pending interrupt becomes due during
+	 * these instructions.
+	 *
+	 * @param	numInstructions	the number of user instructions that
+	 *				were executed.
+	 */
+	public void settleUserTicks(int numInstructions);
+
+	/**
+	 * Reserve time before the next pending interrupt for the current
+	 * processor to run MIPS instructions without the kernel lock. Time
+	 * that other processors have reserved and not yet settled is left out,
+	 * so that together they cannot run past the interrupt. Only used when
+	 * there is more than one processor.
+	 *
+	 * @param	ticks	the most ticks to reserve.
+	 * @return	the number of ticks reserved, which may be 0.
+	 */
+	public long reserveUserTicks(long ticks);
+
+	/**
+	 * Advance the simulated time by the MIPS instructions executed in time
+	 * reserved with <tt>reserveUserTicks()</tt>, and give back the rest of
+	 * the reservation. If kernel code on another processor has meanwhile
+	 * made an interrupt due, it is invoked.
+	 *
+	 * @param	numInstructions	the number of user instructions that
+	 *				were executed.
+	 * @param	reserved	the number of ticks that were reserved.
+	 */
+	public void settleUserTicks(int numInstructions, long reserved);
+
+	/**
+	 * Return <tt>true</tt> if the simulated time can be advanced by a user
+	 * tick without running into time that other processors have reserved
+	 * before the next pending interrupt.
+	 *
+	 * @return	<tt>true</tt> if the current processor may execute a
+	 *		single instruction and tick.
+	 */
+	public boolean userTickAvailable();
+
+	/**
+	 * Acquire the kernel lock, waiting for another processor to release
+	 * it if necessary. Only used when there is more than one processor.
+	 */
+	public void acquireKernel();
+
+	/**
+	 * Release the kernel lock, so that another processor can run kernel
+	 * code while this processor runs MIPS user code. Interrupts must be
+	 * enabled.
+	 */
+	public void releaseKernel();
     }
 
     /**
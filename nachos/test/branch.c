@@ -0,0 +1,31 @@
+/* branch.c
+ *	Test program for a conditional branch that leaves a compiled region.
+ *
+ *	The loop is tested at the top, so by the time it has run often enough
+ *	to be compiled, the code after it has never run. Leaving the loop then
+ *	takes a branch to a block that is not in the compiled region. The
+ *	program exits with the number of times the loop ran, which must be 100,
+ *	however user code is executed.
+ */
+
+#include "syscall.h"
+
+int
+main()
+{
+    int i;
+
+    /* in assembly, so the compiler cannot move the test to the bottom */
+    asm volatile("	.set	noreorder\n"
+		 "	move	%0, $0\n"
+		 "1:	slti	$8, %0, 100\n"
+		 "	beq	$8, $0, 2f\n"
+		 "	nop\n"
+		 "	addiu	%0, %0, 1\n"
+		 "	j	1b\n"
+		 "	nop\n"
+		 "2:	.set	reorder\n"
+		 : "=r" (i) : : "$8");
+
+    return i;
+}
@@ -2,15 +2,55 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
  * until a certain time.
+ *
+ * <p>
+ * Sleeping threads are kept on a hierarchical timing wheel. Time is divided
+ * into slots of <tt>Stats.TimerTicks</tt> ticks, about one timer interrupt
+ * each. The first level has a list of sleepers for each of the next
+ * <tt>wheelSize</tt> slots, and each level above covers <tt>wheelSize</tt>
+ * times as much time with slots that are <tt>wheelSize</tt> times as long.
+ * Whenever the current slot enters a new slot of a higher level, the sleepers
+ * in that slot are spread out over the levels below. Adding a sleeper and
+ * waking all of those that are due therefore take constant time for each
+ * sleeper. The list nodes are recycled.
+ *
+ * <p>
+ * With <tt>Alarm.highResolution</tt> set, sleepers are also woken by the
+ * one-shot timer, which is kept programmed for the earliest wake time, so they
+ * no longer wait for the next timer interrupt. The sleepers in the current
+ * slot are then kept in a heap ordered by wake time, and the one-shot timer is
+ * programmed for the first of them, or else for the start of the next slot
+ * that has sleepers, or of the next slot where the wheel cascades.
+ *
+ * <p>
+ * A thread can also sleep while it waits on a <tt>ThreadQueue</tt>, to give
+ * up waiting once its timeout passes. When it is given access first, its
+ * sleeper is only marked cancelled, and is recycled when it comes due.
  */
 public class Alarm {
 
-    private TreeSet<WaitThread> waitThreads;
+    /** The lists of sleepers in each slot of each level of the wheel. */
+    private Sleeper[][] wheel = new Sleeper[numLevels][wheelSize];
+    /** The slot that contains the time of the last timer interrupt. */
+    private long currentSlot = 0;
+    /** Nodes that are no longer in use. */
+    private Sleeper freeSleepers = null;
+
+    /** <tt>true</tt> if sleepers are woken by the one-shot timer when due. */
+    private boolean highResolution;
+    /**
+     * In high-resolution mode, the sleepers in the current slot, as a binary
+     * heap ordered by wake time.
+     */
+    private Sleeper[] dueHeap = new Sleeper[wheelSize];
+    private int dueSize = 0;
+    /** The number of sleepers, in the wheel and in the heap. */
+    private int numSleepers = 0;
+    /** The time the one-shot timer is programmed for, if any. */
+    private long programmedTime = Long.MAX_VALUE;
 
     /**
      * Allocate a new Alarm. Set the machine's timer interrupt handler to this
@@ -20,28 +60,96 @@ public class Alarm {
      * alarm.
      */
     public Alarm() {
-        waitThreads = new TreeSet<>();
         Machine.timer().setInterruptHandler(new Runnable() {
             public void run() { timerInterrupt(); }
             });
+
+        highResolution = Config.getBoolean("Alarm.highResolution", false);
+        if (highResolution) {
+            Machine.oneShotTimer().setInterruptHandler(new Runnable() {
+                public void run() { oneShotInterrupt(); }
+                });
+        }
     }
 
     /**
      * The timer interrupt handler. This is called by the machine's timer
      * periodically (approximately every 500 clock ticks). Causes the current
      * thread to yield, forcing a context switch if there is another thread
-     * that should be run.
+     * that should be run, when the scheduler asks for it to be preempted.
      */
     public void timerInterrupt() {
-	    //KThread.currentThread().yield();
-        long currentTime = Machine.timer().getTime();
-        while ((!waitThreads.isEmpty()) && waitThreads.first().time <= currentTime) {
-            waitThreads.first().kThread.ready();
-            waitThreads.remove(waitThreads.first());
-        }
+        expire(Machine.timer().getTime());
+
+        KThread.balanceReadyQueues();
+
+        if (ThreadedKernel.scheduler.shouldPreempt())
+            KThread.yield();
         return;
     }
 
+    /**
+     * The one-shot timer interrupt handler, in high-resolution mode. Wakes
+     * the sleepers that are due, without preempting the current thread.
+     */
+    private void oneShotInterrupt() {
+        programmedTime = Long.MAX_VALUE;
+        expire(Machine.timer().getTime());
+    }
+
+    /**
+     * Wake every sleeper that is due at the specified time, and in
+     * high-resolution mode program the one-shot timer for the next.
+     */
+    private void expire(long currentTime) {
+        long slot = currentTime / Stats.TimerTicks;
+
+        // every sleeper in a slot that has passed is due
+        while (currentSlot < slot) {
+            int index = (int) (currentSlot & wheelMask);
+            Sleeper sleeper = wheel[0][index];
+            wheel[0][index] = null;
+            wake(sleeper);
+
+            while (dueSize > 0)
+                wake(removeDue());
+
+            currentSlot++;
+            cascade();
+        }
+
+        int index = (int) (currentSlot & wheelMask);
+        Sleeper sleeper = wheel[0][index];
+        wheel[0][index] = null;
+
+        if (highResolution) {
+            // keep the current slot in order, and wake those that are due
+            while (sleeper != null) {
+                Sleeper next = sleeper.next;
+                addDue(sleeper);
+                sleeper = next;
+            }
+            while (dueSize > 0 && dueHeap[0].time <= currentTime)
+                wake(removeDue());
+
+            program();
+            return;
+        }
+
+        // some of those in the current slot may still have to wait
+        while (sleeper != null) {
+            Sleeper next = sleeper.next;
+            if (sleeper.time <= currentTime) {
+                due(sleeper);
+            }
+            else {
+                sleeper.next = wheel[0][index];
+                wheel[0][index] = sleeper;
+            }
+            sleeper = next;
+        }
+    }
+
     /**
      * Put the current thread to sleep for at least <i>x</i> ticks,
      * waking it up in the timer interrupt handler. The thread must be
@@ -63,29 +171,270 @@ public class Alarm {
             KThread.yield();*/
 
         //New Code
-        long awakeTime = Machine.timer().getTime() + x;
-        WaitThread waitThread = new WaitThread(awakeTime, KThread.currentThread());
         boolean intStatus = Machine.interrupt().disable();
-        waitThreads.add(waitThread);
+
+        add(x, null);
+
         KThread.sleep();
         Machine.interrupt().restore(intStatus);
     }
 
-    private class WaitThread implements Comparable{
+    /**
+     * Put the current thread, which is waiting for access on the specified
+     * queue, to sleep until it is given access or at least <i>x</i> ticks
+     * have passed. If the time passes first, the thread is removed from the
+     * queue with <tt>cancelWait()</tt>. Interrupts must be disabled.
+     *
+     * @param	x		the most clock ticks to wait.
+     * @param	waitQueue	the queue the current thread is waiting on.
+     * @return	<tt>true</tt> if the thread was given access, or
+     *		<tt>false</tt> if it gave up waiting.
+     */
+    public boolean waitUntil(long x, ThreadQueue waitQueue) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        Sleeper sleeper = add(x, waitQueue);
+
+        KThread.sleep();
+
+        boolean timedOut = sleeper.timedOut;
+
+        // a sleeper still on the wheel is recycled when it comes due
+        if (sleeper.expired)
+            free(sleeper);
+        else
+            sleeper.thread = null;
+
+        return !timedOut;
+    }
+
+    /**
+     * Add a sleeper for the current thread, due in <i>x</i> ticks.
+     */
+    private Sleeper add(long x, ThreadQueue waitQueue) {
+        long awakeTime = Machine.timer().getTime() + x;
+
+        Sleeper sleeper = freeSleepers;
+        if (sleeper != null)
+            freeSleepers = sleeper.next;
+        else
+            sleeper = new Sleeper();
+
+        sleeper.time = awakeTime;
+        sleeper.thread = KThread.currentThread();
+        sleeper.waitQueue = waitQueue;
+        sleeper.expired = sleeper.timedOut = false;
+        numSleepers++;
+
+        if (highResolution) {
+            if (awakeTime / Stats.TimerTicks <= currentSlot)
+                addDue(sleeper);
+            else
+                insert(sleeper);
+
+            program();
+        }
+        else {
+            insert(sleeper);
+        }
+
+        return sleeper;
+    }
+
+    /**
+     * Add a sleeper to the lowest level of the wheel whose slots reach its
+     * wake time from the current slot. A sleeper due beyond the top level is
+     * put in the furthest slot of the top level, and moved on from there.
+     */
+    private void insert(Sleeper sleeper) {
+        long slot = Math.max(sleeper.time / Stats.TimerTicks, currentSlot);
+        long delta = slot - currentSlot;
+
+        int level = 0;
+        while (delta >= 1L << (levelBits * (level+1))) {
+            if (level == numLevels-1) {
+                delta = (1L << (levelBits * numLevels)) - 1;
+                slot = currentSlot + delta;
+                break;
+            }
+            level++;
+        }
+
+        int index = (int) ((slot >> (levelBits * level)) & wheelMask);
+        sleeper.next = wheel[level][index];
+        wheel[level][index] = sleeper;
+    }
+
+    /**
+     * Having entered <tt>currentSlot</tt>, spread out the sleepers in the
+     * slots of higher levels that it has entered too.
+     */
+    private void cascade() {
+        for (int level=1; level<numLevels; level++) {
+            // only when every level below has wrapped around
+            if ((currentSlot & ((1L << (levelBits * level)) - 1)) != 0)
+                return;
+
+            int index =
+                (int) ((currentSlot >> (levelBits * level)) & wheelMask);
+            Sleeper sleeper = wheel[level][index];
+            wheel[level][index] = null;
+
+            while (sleeper != null) {
+                Sleeper next = sleeper.next;
+                insert(sleeper);
+                sleeper = next;
+            }
+        }
+    }
+
+    /**
+     * Program the one-shot timer for the first sleeper in the current slot.
+     * If there is none, program it for the start of the next slot with
+     * sleepers in the first level, or of the next slot where the wheel
+     * cascades, whichever comes first.
+     */
+    private void program() {
         long time;
-        KThread kThread;
-        public WaitThread(long time, KThread kThread) {
-            this.time = time;
-            this.kThread = kThread;
+
+        if (dueSize > 0) {
+            time = dueHeap[0].time;
+        }
+        else if (numSleepers == 0) {
+            time = Long.MAX_VALUE;
+        }
+        else {
+            long slot = (currentSlot | wheelMask) + 1;
+            for (long s=currentSlot+1; s<slot; s++) {
+                if (wheel[0][(int) (s & wheelMask)] != null) {
+                    slot = s;
+                    break;
+                }
+            }
+            time = slot * Stats.TimerTicks;
+        }
+
+        if (time == programmedTime)
+            return;
+
+        programmedTime = time;
+        if (time == Long.MAX_VALUE)
+            Machine.oneShotTimer().cancel();
+        else
+            Machine.oneShotTimer().schedule(time);
+    }
+
+    private void addDue(Sleeper sleeper) {
+        if (dueSize == dueHeap.length) {
+            Sleeper[] heap = new Sleeper[dueSize*2];
+            System.arraycopy(dueHeap, 0, heap, 0, dueSize);
+            dueHeap = heap;
+        }
+
+        int i = dueSize++;
+        while (i > 0) {
+            int parent = (i-1) / 2;
+            if (dueHeap[parent].time <= sleeper.time)
+                break;
+            dueHeap[i] = dueHeap[parent];
+            i = parent;
         }
+        dueHeap[i] = sleeper;
+    }
+
+    private Sleeper removeDue() {
+        Sleeper first = dueHeap[0];
+        Sleeper last = dueHeap[--dueSize];
+        dueHeap[dueSize] = null;
+
+        if (dueSize > 0) {
+            int i = 0;
+            while (true) {
+                int child = 2*i + 1;
+                if (child >= dueSize)
+                    break;
+                if (child+1 < dueSize &&
+                    dueHeap[child+1].time < dueHeap[child].time)
+                    child++;
+                if (last.time <= dueHeap[child].time)
+                    break;
+                dueHeap[i] = dueHeap[child];
+                i = child;
+            }
+            dueHeap[i] = last;
+        }
+
+        first.next = null;
+        return first;
+    }
+
+    /**
+     * Wake every thread on a list of sleepers.
+     */
+    private void wake(Sleeper sleeper) {
+        while (sleeper != null) {
+            Sleeper next = sleeper.next;
+            due(sleeper);
+            sleeper = next;
+        }
+    }
+
+    /**
+     * Take care of a sleeper that has come due and left the wheel. Wake its
+     * thread, unless it was cancelled or was given access to the queue it
+     * waited on in the meantime.
+     */
+    private void due(Sleeper sleeper) {
+        numSleepers--;
 
-        public int compareTo(Object obj) {
-            WaitThread that = (WaitThread)obj;
-            if (this.time < that.time)
-                return -1;
-            if (this.time > that.time)
-                return 1;
-            return this.kThread.compareTo(that.kThread);
+        if (sleeper.thread == null) {
+            free(sleeper);
+        }
+        else if (sleeper.waitQueue == null) {
+            sleeper.thread.ready();
+            free(sleeper);
+        }
+        else {
+            // the thread recycles the sleeper once it runs again
+            sleeper.expired = true;
+            if (sleeper.waitQueue.cancelWait(sleeper.thread)) {
+                sleeper.timedOut = true;
+                sleeper.thread.ready();
+            }
         }
     }
+
+    private void free(Sleeper sleeper) {
+        sleeper.thread = null;
+        sleeper.waitQueue = null;
+        sleeper.next = freeSleepers;
+        freeSleepers = sleeper;
+    }
+
+    /**
+     * A thread waiting in <tt>waitUntil()</tt>, and its wake time.
+     */
+    private static class Sleeper {
+        long time;
+        /** The thread, or <tt>null</tt> if the sleeper was cancelled. */
+        KThread thread;
+        /** The queue the thread is waiting on with a timeout, if any. */
+        ThreadQueue waitQueue;
+        /** <tt>true</tt> once the sleeper has come due. */
+        boolean expired;
+        /** <tt>true</tt> if the thread gave up waiting on the queue. */
+        boolean timedOut;
+        /** The next sleeper in the same slot, or on the free list. */
+        Sleeper next;
+    }
+
+    /** log<sub>2</sub> of the number of slots in each level of the wheel. */
+    private static final int levelBits = 6;
+    private static final int wheelSize = 1 << levelBits;
+    private static final long wheelMask = wheelSize - 1;
+    /**
+     * The number of levels. The top level reaches
+     * 2<sup>24</sup> slots ahead, or over 8 billion ticks.
+     */
+    private static final int numLevels = 4;
 }
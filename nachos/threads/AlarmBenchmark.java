@@ -0,0 +1,123 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A kernel that measures the cost of many periodic sleepers.
+ * <tt>AlarmBenchmark.sleepers</tt> threads (1000 by default) each call
+ * <tt>Alarm.waitUntil()</tt> <tt>AlarmBenchmark.rounds</tt> times (20 by
+ * default), with a period chosen at random for each thread between 1 and
+ * <tt>AlarmBenchmark.maxPeriod</tt> ticks (100000 by default). The kernel
+ * prints the host time taken for each sleep, how late after it was due the
+ * average and latest sleeper woke up, and a histogram of how late they woke
+ * up in powers of two. Compare with and without
+ * <tt>Alarm.highResolution</tt>, using short periods.
+ *
+ * <p>
+ * Run it by setting <tt>Kernel.kernel</tt> to
+ * <tt>nachos.threads.AlarmBenchmark</tt>, with <tt>TCB.maxThreads</tt> raised
+ * above the number of sleepers.
+ */
+public class AlarmBenchmark extends Benchmark {
+    /**
+     * Allocate a new alarm benchmark.
+     */
+    public AlarmBenchmark() {
+	super();
+    }
+
+    /**
+     * Run the sleepers and print how long they took.
+     */
+    public void run() {
+	int numSleepers = Config.getInteger("AlarmBenchmark.sleepers", 1000);
+	int rounds = Config.getInteger("AlarmBenchmark.rounds", 20);
+	int maxPeriod = Config.getInteger("AlarmBenchmark.maxPeriod", 100000);
+	Lib.assertTrue(numSleepers > 0 && rounds > 0 && maxPeriod > 0);
+
+	Semaphore done = new Semaphore(0);
+	Sleeper[] sleepers = new Sleeper[numSleepers];
+
+	long startTime = System.nanoTime();
+
+	for (int i=0; i<numSleepers; i++) {
+	    sleepers[i] = new Sleeper(1 + Lib.random(maxPeriod), rounds, done);
+	    new KThread(sleepers[i]).setName("sleeper " + i).fork();
+	}
+
+	for (int i=0; i<numSleepers; i++)
+	    done.P();
+
+	long elapsed = System.nanoTime() - startTime;
+
+	long totalLateness = 0, maxLateness = 0;
+	long[] histogram = new long[buckets];
+	for (int i=0; i<numSleepers; i++) {
+	    totalLateness += sleepers[i].totalLateness;
+	    maxLateness = Math.max(maxLateness, sleepers[i].maxLateness);
+	    for (int j=0; j<buckets; j++)
+		histogram[j] += sleepers[i].histogram[j];
+	}
+
+	long sleeps = (long) numSleepers * rounds;
+
+	System.out.println(numSleepers + " sleepers, " + rounds + " rounds: " +
+			   elapsed/sleeps + " ns per sleep, woke " +
+			   totalLateness/sleeps + " ticks late on average, " +
+			   maxLateness + " at most");
+
+	for (int j=0; j<buckets; j++) {
+	    if (histogram[j] == 0)
+		continue;
+
+	    String range = (j == 0) ? "0" : (1L << (j-1)) + "-" + ((1L << j) - 1);
+	    System.out.println("  " + range + " ticks late: " + histogram[j] +
+			       " (" + histogram[j]*100/sleeps + "%)");
+	}
+    }
+
+    /**
+     * Return the histogram bucket for a lateness: 0 for none, and otherwise
+     * <i>b</i> for 2<sup><i>b</i>-1</sup> up to 2<sup><i>b</i></sup>-1 ticks.
+     */
+    private static int bucket(long lateness) {
+	return Math.min(64 - Long.numberOfLeadingZeros(lateness), buckets-1);
+    }
+
+    /** The number of histogram buckets; the last holds everything later. */
+    private static final int buckets = 24;
+
+    /**
+     * A thread that sleeps for the same period over and over.
+     */
+    private static class Sleeper implements Runnable {
+	Sleeper(long period, int rounds, Semaphore done) {
+	    this.period = period;
+	    this.rounds = rounds;
+	    this.done = done;
+	}
+
+	public void run() {
+	    for (int i=0; i<rounds; i++) {
+		long due = Machine.timer().getTime() + period;
+		alarm.waitUntil(period);
+
+		long lateness = Machine.timer().getTime() - due;
+		Lib.assertTrue(lateness >= 0);
+
+		totalLateness += lateness;
+		maxLateness = Math.max(maxLateness, lateness);
+		histogram[bucket(lateness)]++;
+	    }
+
+	    done.V();
+	}
+
+	private long period;
+	private int rounds;
+	private Semaphore done;
+
+	long totalLateness = 0, maxLateness = 0;
+	long[] histogram = new long[buckets];
+    }
+}
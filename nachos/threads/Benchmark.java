@@ -0,0 +1,44 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A multi-threaded kernel that measures something instead of testing itself.
+ * Subclasses implement <tt>run()</tt> to do the measuring and print the
+ * results. Run one by setting <tt>Kernel.kernel</tt> to its class name.
+ */
+public abstract class Benchmark extends ThreadedKernel {
+    /**
+     * Allocate a new benchmark.
+     */
+    public Benchmark() {
+	super();
+    }
+
+    /**
+     * A benchmark has no tests to run, so that they do not disturb its
+     * measurements.
+     */
+    public void selfTest() {
+    }
+
+    /**
+     * Run the benchmark and print the results.
+     */
+    public abstract void run();
+
+    /**
+     * Spend about the specified number of ticks of simulated time without
+     * giving up the processor, except to the timer interrupt. Each time
+     * interrupts are enabled, the clock advances by
+     * <tt>Stats.KernelTick</tt>.
+     *
+     * @param	ticks	the number of ticks to spend.
+     */
+    protected static void spin(long ticks) {
+	for (long i=0; i<ticks/Stats.KernelTick; i++) {
+	    boolean intStatus = Machine.interrupt().disable();
+	    Machine.interrupt().restore(intStatus);
+	}
+    }
+}
@@ -0,0 +1,320 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <i>bounded communicator</i> lets threads exchange 32-bit messages through
+ * a ring buffer, instead of pairing off each speaker with a listener the way
+ * a <tt>Communicator</tt> does. A speaker only waits while the buffer is
+ * full, and a listener only waits while it is empty. Words are received in
+ * the order they were spoken.
+ *
+ * <p>
+ * The batch versions of <tt>speak()</tt> and <tt>listen()</tt> move as many
+ * words as fit in one go. Waiting threads are only woken once a call has
+ * finished with the buffer, or when a speaker finds it full, rather than for
+ * every word, so a single context switch can hand over a whole buffer.
+ */
+public class BoundedCommunicator {
+
+    private Lock lock;
+    private Condition2 speakerCond;
+    private Condition2 listenerCond;
+
+    private int speakerCount;
+    private int listenerCount;
+
+    /** The words spoken and not yet listened to, starting at <tt>head</tt>. */
+    private int[] buffer;
+    private int head;
+    private int count;
+
+    /**
+     * Allocate a new bounded communicator.
+     *
+     * @param	capacity	the most words that can be waiting to be
+     *				listened to.
+     */
+    public BoundedCommunicator(int capacity) {
+        Lib.assertTrue(capacity > 0);
+
+        lock = new Lock();
+        speakerCond = new Condition2(lock);
+        listenerCond = new Condition2(lock);
+        speakerCount = 0;
+        listenerCount = 0;
+        buffer = new int[capacity];
+        head = 0;
+        count = 0;
+    }
+
+    /**
+     * Wait until there is room in the buffer, and then add <i>word</i> to it.
+     *
+     * @param	word	the integer to transfer.
+     */
+    public void speak(int word) {
+        lock.acquire();
+
+        while (count == buffer.length)
+            waitForRoom();
+
+        buffer[(head + count) % buffer.length] = word;
+        count++;
+
+        wakeWaiters();
+        lock.release();
+    }
+
+    /**
+     * Add <i>len</i> words to the buffer, starting from <i>words[off]</i>,
+     * waiting whenever the buffer is full. Exactly one listener receives each
+     * word, but the words may be split between several listeners, and
+     * another speaker's words may come between them.
+     *
+     * @param	words	the integers to transfer.
+     * @param	off	the index of the first integer to transfer.
+     * @param	len	the number of integers to transfer.
+     */
+    public void speak(int[] words, int off, int len) {
+        Lib.assertTrue(off >= 0 && len >= 0 && off+len <= words.length);
+
+        lock.acquire();
+
+        while (len > 0) {
+            while (count == buffer.length)
+                waitForRoom();
+
+            int amount = Math.min(len, buffer.length - count);
+            for (int i=0; i<amount; i++)
+                buffer[(head + count + i) % buffer.length] = words[off + i];
+            count += amount;
+            off += amount;
+            len -= amount;
+        }
+
+        wakeWaiters();
+        lock.release();
+    }
+
+    /**
+     * Wait until there is a word in the buffer, and then remove and return
+     * it.
+     *
+     * @return	the integer transferred.
+     */
+    public int listen() {
+        lock.acquire();
+
+        while (count == 0)
+            waitForWords();
+
+        int word = buffer[head];
+        head = (head + 1) % buffer.length;
+        count--;
+
+        wakeWaiters();
+        lock.release();
+        return word;
+    }
+
+    /**
+     * Wait until there is a word in the buffer, and then remove as many words
+     * as are there, up to the length of <i>dst</i>.
+     *
+     * @param	dst	the array to store the integers transferred in.
+     * @return	the number of integers transferred, which is at least one
+     *		unless <i>dst</i> is empty.
+     */
+    public int listen(int[] dst) {
+        if (dst.length == 0)
+            return 0;
+
+        lock.acquire();
+
+        while (count == 0)
+            waitForWords();
+
+        int amount = Math.min(dst.length, count);
+        for (int i=0; i<amount; i++)
+            dst[i] = buffer[(head + i) % buffer.length];
+        head = (head + amount) % buffer.length;
+        count -= amount;
+
+        wakeWaiters();
+        lock.release();
+        return amount;
+    }
+
+    /**
+     * Wait for a listener to make room in the buffer, which is full. Any
+     * waiting listener is woken first, since nobody else will.
+     */
+    private void waitForRoom() {
+        if (listenerCount > 0)
+            listenerCond.wake();
+
+        speakerCount++;
+        speakerCond.sleep();
+        speakerCount--;
+    }
+
+    /**
+     * Wait for a speaker to add words to the buffer, which is empty.
+     */
+    private void waitForWords() {
+        listenerCount++;
+        listenerCond.sleep();
+        listenerCount--;
+    }
+
+    /**
+     * Having finished with the buffer, wake a waiting listener if there are
+     * words for it, and a waiting speaker if there is room. Each woken thread
+     * wakes the next in turn if there is still something left for it.
+     */
+    private void wakeWaiters() {
+        if (count > 0 && listenerCount > 0)
+            listenerCond.wake();
+        if (count < buffer.length && speakerCount > 0)
+            speakerCond.wake();
+    }
+
+    /**
+     * Test if this module is working. The test threads do all the speaking
+     * and listening, so that a lost wakeup fails an assertion instead of
+     * hanging the test.
+     */
+    public static void selfTest() {
+        Semaphore done = new Semaphore(0);
+
+        // a batch larger than the buffer arrives in order
+        BoundedCommunicator small = new BoundedCommunicator(4);
+        int[] heard = new int[30];
+
+        new KThread(new Speaker(small, 0, 10, 10, done))
+            .setName("batch speaker").fork();
+        new KThread(new Listener(small, heard, 10, 1, true, done))
+            .setName("listener").fork();
+
+        waitFor(done, 2);
+
+        // several listeners can split a batch between them
+        new KThread(new Speaker(small, 10, 20, 20, done))
+            .setName("batch speaker").fork();
+        for (int i=0; i<4; i++) {
+            new KThread(new Listener(small, heard, 5, 3, true, done))
+                .setName("batch listener").fork();
+        }
+
+        waitFor(done, 5);
+        for (int i=0; i<heard.length; i++)
+            Lib.assertTrue(heard[i] == 1);
+
+        // and however several speakers and listeners interleave, none is
+        // left waiting
+        BoundedCommunicator tiny = new BoundedCommunicator(2);
+        heard = new int[120];
+
+        for (int i=0; i<3; i++) {
+            new KThread(new Speaker(tiny, i*40, 40, i+1, done))
+                .setName("speaker").fork();
+        }
+        for (int i=0; i<4; i++) {
+            new KThread(new Listener(tiny, heard, 30, i+1, false, done))
+                .setName("listener").fork();
+        }
+
+        waitFor(done, 7);
+        for (int i=0; i<heard.length; i++)
+            Lib.assertTrue(heard[i] == 1);
+    }
+
+    private static void waitFor(Semaphore done, int threads) {
+        for (int i=0; i<threads; i++)
+            Lib.assertTrue(done.P(1000000));
+    }
+
+    /**
+     * Speaks a run of consecutive words, in batches of the given size, or
+     * one at a time if that is 1.
+     */
+    private static class Speaker implements Runnable {
+        Speaker(BoundedCommunicator communicator, int first, int words,
+                int batchSize, Semaphore done) {
+            this.communicator = communicator;
+            this.first = first;
+            this.words = words;
+            this.batchSize = batchSize;
+            this.done = done;
+        }
+
+        public void run() {
+            int[] batch = new int[batchSize];
+
+            for (int word=first; word<first+words; ) {
+                if (batchSize == 1) {
+                    communicator.speak(word++);
+                }
+                else {
+                    int len = Math.min(batchSize, first+words - word);
+                    for (int i=0; i<len; i++)
+                        batch[i] = word++;
+                    communicator.speak(batch, 0, len);
+                }
+            }
+            done.V();
+        }
+
+        private BoundedCommunicator communicator;
+        private int first, words, batchSize;
+        private Semaphore done;
+    }
+
+    /**
+     * Listens for a number of words, in batches of up to the given size or
+     * one at a time if that is 1, and counts how many times each word was
+     * heard. If there is only one speaker, the words must come in order.
+     */
+    private static class Listener implements Runnable {
+        Listener(BoundedCommunicator communicator, int[] heard, int words,
+                 int batchSize, boolean inOrder, Semaphore done) {
+            this.communicator = communicator;
+            this.heard = heard;
+            this.words = words;
+            this.batchSize = batchSize;
+            this.inOrder = inOrder;
+            this.done = done;
+        }
+
+        public void run() {
+            int last = -1;
+
+            for (int i=0; i<words; ) {
+                int[] batch = new int[Math.min(batchSize, words - i)];
+                int len;
+                if (batchSize == 1) {
+                    batch[0] = communicator.listen();
+                    len = 1;
+                }
+                else {
+                    len = communicator.listen(batch);
+                }
+
+                for (int j=0; j<len; j++) {
+                    Lib.assertTrue(!inOrder || batch[j] > last);
+                    last = batch[j];
+                    heard[batch[j]]++;
+                }
+                i += len;
+            }
+            done.V();
+        }
+
+        private BoundedCommunicator communicator;
+        private int[] heard;
+        private int words, batchSize;
+        private boolean inOrder;
+        private Semaphore done;
+    }
+}
@@ -0,0 +1,567 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.TreeSet;
+
+/**
+ * A completely fair scheduler, which shares the processor among threads in
+ * proportion to their weights by always running the thread that has had the
+ * least virtual runtime.
+ *
+ * <p>
+ * A thread's priority is its nice value, from -20 to 19, and 0 by default.
+ * A thread with nice 0 weighs 1024, and each step of nice divides the weight
+ * by <tt>CFSScheduler.weightRatio</tt> (1.25 by default). Every tick a thread
+ * runs adds 1024 divided by its weight to its virtual runtime. The ticks are
+ * counted with <tt>Timer.getTime()</tt>, which is the sum of the user and
+ * kernel ticks, between the moments it starts and stops running.
+ *
+ * <p>
+ * Each queue is a red-black tree (a <tt>TreeSet</tt>) ordered on virtual
+ * runtime. The queue keeps the largest virtual runtime of any thread it has
+ * dequeued, and a new thread joining the ready queue starts there. A thread
+ * that returns starts no further behind it than
+ * <tt>CFSScheduler.minGranularity</tt> ticks (1000 by default), so that a
+ * thread that slept cannot monopolize the processor. The timer interrupt
+ * preempts a thread that has run for at least the minimum granularity once
+ * another thread is further behind.
+ *
+ * <p>
+ * Threads waiting on a queue that transfers priority add their weight to the
+ * weight of the thread holding it, which then runs faster in virtual time
+ * and is preferred until it releases what the others wait for.
+ */
+public class CFSScheduler extends Scheduler {
+    /**
+     * Allocate a new completely fair scheduler.
+     */
+    public CFSScheduler() {
+	minGranularity = Config.getInteger("CFSScheduler.minGranularity", 1000);
+	Lib.assertTrue(minGranularity > 0,
+		       "bad value for CFSScheduler.minGranularity");
+
+	double ratio = Config.getDouble("CFSScheduler.weightRatio", 1.25);
+	Lib.assertTrue(ratio >= 1.0, "bad value for CFSScheduler.weightRatio");
+
+	weights = new long[niceMaximum-niceMinimum+1];
+	for (int nice=niceMinimum; nice<=niceMaximum; nice++) {
+	    weights[nice-niceMinimum] =
+		Math.max(1, Math.round(niceZeroWeight / Math.pow(ratio, nice)));
+	}
+    }
+
+    /**
+     * Allocate a new CFS thread queue.
+     *
+     * @param	transferPriority	<tt>true</tt> if this queue should
+     *					transfer weight from waiting threads
+     *					to the owning thread.
+     * @return	a new CFS thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new CFSQueue(transferPriority);
+    }
+
+    /**
+     * Allocate a ready queue, marked so that threads joining it are placed
+     * near the other runnable threads.
+     *
+     * @return	a new ready queue.
+     */
+    public ThreadQueue newReadyQueue() {
+	CFSQueue readyQueue = new CFSQueue(false);
+	readyQueue.isReadyQueue = true;
+	return readyQueue;
+    }
+
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getThreadState(thread).nice;
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getThreadState(thread).nice;
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(priority >= niceMinimum && priority <= niceMaximum);
+
+	ThreadState state = getThreadState(thread);
+
+	long delta = weight(priority) - weight(state.nice);
+	state.reweigh(priority, 0);
+	passOn(state, delta);
+    }
+
+    public boolean increasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int nice = getPriority(thread);
+	boolean changed = (nice > niceMinimum);
+	if (changed)
+	    setPriority(thread, nice-1);
+
+	Machine.interrupt().restore(intStatus);
+	return changed;
+    }
+
+    public boolean decreasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int nice = getPriority(thread);
+	boolean changed = (nice < niceMaximum);
+	if (changed)
+	    setPriority(thread, nice+1);
+
+	Machine.interrupt().restore(intStatus);
+	return changed;
+    }
+
+    public void threadRunning(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	ThreadState state = getThreadState(thread);
+	state.running = true;
+	state.lastCharged = state.dispatched = Machine.timer().getTime();
+    }
+
+    public void threadStopping(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	ThreadState state = getThreadState(thread);
+	state.charge();
+	state.running = false;
+    }
+
+    public boolean shouldPreempt() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	// the ready queue of this processor
+	CFSQueue readyQueue = (CFSQueue) KThread.currentReadyQueue();
+	if (readyQueue == null || readyQueue.tree.isEmpty())
+	    return false;
+
+	ThreadState state = getThreadState(KThread.currentThread());
+	if (!state.running)
+	    return false;
+
+	state.charge();
+
+	return state.lastCharged - state.dispatched >= minGranularity &&
+	    state.vruntime > readyQueue.tree.first().vruntime;
+    }
+
+    /**
+     * Test if this module is working, using a scheduler of its own and
+     * threads that never really run.
+     */
+    public static void selfTest() {
+	CFSScheduler scheduler = new CFSScheduler();
+	ThreadQueue readyQueue = scheduler.newReadyQueue();
+
+	KThread heavy = new KThread().setName("CFS test heavy");
+	KThread light = new KThread().setName("CFS test light");
+	ThreadState heavyState = scheduler.getThreadState(heavy);
+	ThreadState lightState = scheduler.getThreadState(light);
+
+	// pretend both run for the same time
+	boolean intStatus = Machine.interrupt().disable();
+	scheduler.setPriority(heavy, -5);
+	scheduler.setPriority(light, 5);
+	readyQueue.waitForAccess(heavy);
+	readyQueue.waitForAccess(light);
+	Lib.assertTrue(readyQueue.nextThread() == heavy);
+	Lib.assertTrue(readyQueue.nextThread() == light);
+	scheduler.threadRunning(heavy);
+	scheduler.threadRunning(light);
+	Machine.interrupt().restore(intStatus);
+
+	ThreadedKernel.alarm.waitUntil(1000);
+
+	intStatus = Machine.interrupt().disable();
+	scheduler.threadStopping(heavy);
+	scheduler.threadStopping(light);
+
+	// their virtual runtimes grew in inverse proportion to their weights
+	long heavyWeight = scheduler.weight(-5), lightWeight = scheduler.weight(5);
+	Lib.assertTrue(heavyState.vruntime > 0);
+	Lib.assertTrue(Math.abs(heavyState.vruntime*heavyWeight -
+				lightState.vruntime*lightWeight) <=
+		       heavyWeight + lightWeight);
+
+	// so the heavy thread comes first, after a new thread, which starts
+	// at the largest virtual runtime of any thread the queue has dequeued
+	KThread fresh = new KThread().setName("CFS test fresh");
+	readyQueue.waitForAccess(light);
+	readyQueue.waitForAccess(heavy);
+	readyQueue.waitForAccess(fresh);
+	Lib.assertTrue(readyQueue.nextThread() == fresh);
+	Lib.assertTrue(readyQueue.nextThread() == heavy);
+	Lib.assertTrue(readyQueue.nextThread() == light);
+
+	// a thread that falls far behind rejoins only the minimum granularity
+	// behind the others
+	KThread later = new KThread().setName("CFS test later");
+	long floor = lightState.vruntime - scheduler.minGranularity;
+	long behind = heavyState.vruntime;
+	readyQueue.waitForAccess(later);
+	readyQueue.waitForAccess(heavy);
+	Lib.assertTrue(scheduler.getThreadState(later).vruntime ==
+		       lightState.vruntime);
+	Lib.assertTrue(heavyState.vruntime == Math.max(behind, floor));
+	Lib.assertTrue(readyQueue.nextThread() == heavy);
+	Lib.assertTrue(readyQueue.nextThread() == later);
+
+	// waiting threads lend their weight along a chain of queues, and take
+	// it back when they stop waiting
+	KThread top = new KThread().setName("CFS test top");
+	KThread holder = new KThread().setName("CFS test holder");
+	KThread waiter = new KThread().setName("CFS test waiter");
+	ThreadQueue first = scheduler.newThreadQueue(true);
+	ThreadQueue second = scheduler.newThreadQueue(true);
+	first.acquire(top);
+	second.acquire(holder);
+	first.waitForAccess(holder);
+	second.waitForAccess(waiter);
+	second.waitForAccess(heavy);
+
+	long weight = scheduler.weight(niceDefault);
+	Lib.assertTrue(scheduler.getThreadState(holder).effectiveWeight() ==
+		       weight*2 + heavyWeight);
+	Lib.assertTrue(scheduler.getThreadState(top).effectiveWeight() ==
+		       weight*3 + heavyWeight);
+
+	Lib.assertTrue(second.cancelWait(heavy));
+	Lib.assertTrue(scheduler.getThreadState(top).effectiveWeight() ==
+		       weight*3);
+	Lib.assertTrue(second.nextThread() == waiter);
+	Lib.assertTrue(scheduler.getThreadState(holder).effectiveWeight() ==
+		       weight);
+	Lib.assertTrue(scheduler.getThreadState(top).effectiveWeight() ==
+		       weight*2);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * The nice value of a new thread.
+     */
+    public static final int niceDefault = 0;
+    /**
+     * The smallest nice value, which gives a thread the most weight.
+     */
+    public static final int niceMinimum = -20;
+    /**
+     * The largest nice value, which gives a thread the least weight.
+     */
+    public static final int niceMaximum = 19;
+
+    /**
+     * Return the weight of a thread with the specified nice value.
+     */
+    private long weight(int nice) {
+	return weights[nice-niceMinimum];
+    }
+
+    /**
+     * Add to the weight donated to a thread, and pass the change on along
+     * the chain of queues that transfer priority and their holders.
+     *
+     * @param	state	the thread receiving the donation, or <tt>null</tt>.
+     * @param	delta	the change in the weight donated.
+     */
+    private void donate(ThreadState state, long delta) {
+	if (state == null || delta == 0)
+	    return;
+
+	state.reweigh(state.nice, delta);
+	passOn(state, delta);
+    }
+
+    /**
+     * Pass a change in the effective weight of a thread on to the thread
+     * holding the queue it waits on, and so on along the chain of queues
+     * that transfer priority.
+     *
+     * @param	state	the thread whose effective weight has changed.
+     * @param	delta	the change.
+     */
+    private void passOn(ThreadState state, long delta) {
+	while (delta != 0) {
+	    CFSQueue queue = state.waitingOn;
+	    if (queue == null || !queue.transferPriority)
+		return;
+
+	    queue.waitingWeight += delta;
+
+	    state = queue.holder;
+	    if (state == null)
+		return;
+
+	    state.reweigh(state.nice, delta);
+	}
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that dequeues the waiting thread with the least
+     * virtual runtime.
+     */
+    protected class CFSQueue extends ThreadQueue {
+	CFSQueue(boolean transferPriority) {
+	    this.transferPriority = transferPriority;
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+
+	    // a thread that yields is filed by its vruntime including the run
+	    // it is giving up
+	    state.charge();
+	    state.running = false;
+
+	    if (isReadyQueue) {
+		// keep the lead or lag of a thread that changes processors
+		if (state.lastReadyQueue != null && state.lastReadyQueue != this)
+		    state.vruntime += minVruntime - state.lastReadyQueue.minVruntime;
+		state.lastReadyQueue = this;
+
+		long floor = minVruntime - minGranularity;
+		if (!state.placed || state.vruntime < floor)
+		    state.vruntime = state.placed ? floor : minVruntime;
+		state.placed = true;
+	    }
+
+	    state.arrival = numArrivals++;
+	    tree.add(state);
+	    state.waitingOn = this;
+
+	    if (transferPriority) {
+		long weight = state.effectiveWeight();
+		waitingWeight += weight;
+		donate(holder, weight);
+	    }
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = tree.pollFirst();
+	    if (state == null)
+		return null;
+
+	    state.waitingOn = null;
+
+	    if (isReadyQueue)
+		minVruntime = Math.max(minVruntime, state.vruntime);
+
+	    if (transferPriority) {
+		long weight = state.effectiveWeight();
+		waitingWeight -= weight;
+		donate(holder, -weight);
+	    }
+
+	    acquire(state.thread);
+
+	    return state.thread;
+	}
+
+	public boolean cancelWait(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    if (state.waitingOn != this)
+		return false;
+
+	    tree.remove(state);
+	    state.waitingOn = null;
+
+	    if (transferPriority) {
+		long weight = state.effectiveWeight();
+		waitingWeight -= weight;
+		donate(holder, -weight);
+	    }
+
+	    return true;
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+
+	    if (transferPriority) {
+		donate(holder, -waitingWeight);
+		donate(state, waitingWeight);
+	    }
+
+	    holder = state;
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (ThreadState state : tree) {
+		System.out.print(" " + state.thread + "(" + state.vruntime +
+				 ")");
+	    }
+	    System.out.println();
+	}
+
+	/**
+	 * <tt>true</tt> if this queue should transfer weight from waiting
+	 * threads to the owning thread.
+	 */
+	public boolean transferPriority;
+
+	/** <tt>true</tt> if this is a ready queue. */
+	private boolean isReadyQueue = false;
+
+	/** The waiting threads, in order of virtual runtime and arrival. */
+	private TreeSet<ThreadState> tree = new TreeSet<ThreadState>();
+
+	/** The thread that last acquired this queue, if any. */
+	private ThreadState holder = null;
+	/** The total effective weight of the waiting threads. */
+	private long waitingWeight = 0;
+
+	/** The largest virtual runtime of any thread dequeued so far. */
+	private long minVruntime = 0;
+	/** The number of threads that have ever waited on this queue. */
+	private long numArrivals = 0;
+    }
+
+    /**
+     * The scheduling state of a thread: its nice value, the weight donated
+     * to it, and its virtual runtime.
+     */
+    protected class ThreadState implements Comparable<ThreadState> {
+	/**
+	 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+	 * specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public ThreadState(KThread thread) {
+	    this.thread = thread;
+	}
+
+	/**
+	 * Return the weight of this thread, including the weight of the
+	 * threads waiting for it.
+	 */
+	long effectiveWeight() {
+	    return weight(nice) + donated;
+	}
+
+	/**
+	 * Change the nice value of this thread and the weight donated to it.
+	 * If it is running, the time it has run so far is charged at its old
+	 * weight. If it is waiting on the ready queue, its lag behind the
+	 * queue is scaled by the ratio of its old weight to its new one, so
+	 * that a thread that is given more weight also catches up sooner.
+	 *
+	 * @param	nice	the new nice value.
+	 * @param	delta	the change in the weight donated.
+	 */
+	void reweigh(int nice, long delta) {
+	    charge();
+
+	    long oldWeight = effectiveWeight();
+	    CFSQueue readyQueue = waitingOn;
+	    boolean queued = (readyQueue != null && readyQueue.isReadyQueue);
+
+	    // the key of a thread in a tree must not change in place
+	    if (queued)
+		readyQueue.tree.remove(this);
+
+	    this.nice = nice;
+	    this.donated += delta;
+
+	    if (queued) {
+		long lag = vruntime - readyQueue.minVruntime;
+		if (lag > 0) {
+		    vruntime = readyQueue.minVruntime +
+			(long) (lag * ((double) oldWeight / effectiveWeight()));
+		}
+
+		readyQueue.tree.add(this);
+	    }
+	}
+
+	/**
+	 * If this thread is running, add the ticks since it was last charged
+	 * to its virtual runtime, scaled by its effective weight.
+	 */
+	void charge() {
+	    if (!running)
+		return;
+
+	    long time = Machine.timer().getTime();
+	    vruntime += (time - lastCharged) * niceZeroWeight / effectiveWeight();
+	    lastCharged = time;
+	}
+
+	public int compareTo(ThreadState that) {
+	    if (this.vruntime != that.vruntime)
+		return (this.vruntime < that.vruntime) ? -1 : 1;
+	    if (this.arrival != that.arrival)
+		return (this.arrival < that.arrival) ? -1 : 1;
+	    return 0;
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** The nice value of the thread. */
+	protected int nice = niceDefault;
+	/** The effective weight of the threads waiting for this one. */
+	protected long donated = 0;
+	/** The virtual runtime of the thread. */
+	protected long vruntime = 0;
+
+	/** <tt>true</tt> if the thread has ever waited on the ready queue. */
+	private boolean placed = false;
+	/** <tt>true</tt> if the thread is running on a processor. */
+	private boolean running = false;
+	/** The time the thread last started running. */
+	private long dispatched;
+	/** The time the thread was last charged while running. */
+	private long lastCharged;
+	/** The order in which the thread joined its current queue. */
+	private long arrival;
+	/** The queue the thread is waiting on, if any. */
+	private CFSQueue waitingOn = null;
+	/** The ready queue the thread last waited on, if any. */
+	private CFSQueue lastReadyQueue = null;
+    }
+
+    private int minGranularity;
+    private long[] weights;
+
+    /** The weight of a thread with a nice value of 0. */
+    private static final long niceZeroWeight = 1024;
+}
@@ -0,0 +1,112 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A kernel that measures how fast a producer thread can pass words to a
+ * consumer thread. It sends <tt>CommunicatorBenchmark.words</tt> words
+ * (20000 by default) through a <tt>Communicator</tt>, then one at a time
+ * through a <tt>BoundedCommunicator</tt> holding
+ * <tt>CommunicatorBenchmark.capacity</tt> words (64 by default), and then in
+ * batches of that size. For each, the kernel prints the simulated ticks and
+ * host time taken for each word.
+ *
+ * <p>
+ * Run it by setting <tt>Kernel.kernel</tt> to
+ * <tt>nachos.threads.CommunicatorBenchmark</tt>.
+ */
+public class CommunicatorBenchmark extends Benchmark {
+    /**
+     * Allocate a new communicator benchmark.
+     */
+    public CommunicatorBenchmark() {
+	super();
+    }
+
+    /**
+     * Pass the words through each kind of communicator and print how long
+     * it took.
+     */
+    public void run() {
+	int words = Config.getInteger("CommunicatorBenchmark.words", 20000);
+	int capacity = Config.getInteger("CommunicatorBenchmark.capacity", 64);
+	Lib.assertTrue(words > 0 && capacity > 0);
+
+	for (int mode=rendezvous; mode<=batched; mode++) {
+	    long startTicks = Machine.timer().getTime();
+	    long startTime = System.nanoTime();
+
+	    transfer(mode, words, capacity);
+
+	    long ticks = Machine.timer().getTime() - startTicks;
+	    long elapsed = System.nanoTime() - startTime;
+
+	    System.out.println(modeNames[mode] + ": " + words + " words in " +
+			       ticks + " ticks, " + ticks/words +
+			       " ticks and " + elapsed/words + " ns per word");
+	}
+    }
+
+    /**
+     * Send the words from a producer thread to a consumer thread, and check
+     * that they all arrived in order.
+     */
+    private static void transfer(final int mode, final int words,
+				 final int capacity) {
+	final Communicator communicator = new Communicator();
+	final BoundedCommunicator bounded = new BoundedCommunicator(capacity);
+
+	KThread producer = new KThread(new Runnable() {
+		public void run() {
+		    int[] batch = new int[capacity];
+
+		    for (int i=0; i<words; ) {
+			if (mode == rendezvous) {
+			    communicator.speak(i++);
+			}
+			else if (mode == single) {
+			    bounded.speak(i++);
+			}
+			else {
+			    int len = Math.min(capacity, words - i);
+			    for (int j=0; j<len; j++)
+				batch[j] = i + j;
+			    bounded.speak(batch, 0, len);
+			    i += len;
+			}
+		    }
+		}
+	    }).setName("producer");
+
+	KThread consumer = new KThread(new Runnable() {
+		public void run() {
+		    int[] batch = new int[capacity];
+
+		    for (int i=0; i<words; ) {
+			if (mode == rendezvous) {
+			    Lib.assertTrue(communicator.listen() == i++);
+			}
+			else if (mode == single) {
+			    Lib.assertTrue(bounded.listen() == i++);
+			}
+			else {
+			    int len = bounded.listen(batch);
+			    for (int j=0; j<len; j++)
+				Lib.assertTrue(batch[j] == i++);
+			}
+		    }
+		}
+	    }).setName("consumer");
+
+	producer.fork();
+	consumer.fork();
+
+	producer.join();
+	consumer.join();
+    }
+
+    private static final int rendezvous = 0, single = 1, batched = 2;
+    private static final String[] modeNames = {
+	"Communicator", "BoundedCommunicator", "BoundedCommunicator, batched"
+    };
+}
@@ -2,8 +2,6 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.LinkedList;
-
 /**
  * An implementation of condition variables that disables interrupt()s for
  * synchronization.
@@ -24,7 +22,7 @@ public class Condition2 {
      */
     public Condition2(Lock conditionLock) {
 		this.conditionLock = conditionLock;
-		waitQueue = new LinkedList<>();
+		waitQueue = ThreadedKernel.scheduler.newThreadQueue(false);
     }
 
     /**
@@ -36,14 +34,38 @@ public class Condition2 {
     public void sleep() {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
-		conditionLock.release();
 		boolean intStatus = Machine.interrupt().disable();
-		waitQueue.add(KThread.currentThread());
+		conditionLock.release();
+		waitQueue.waitForAccess(KThread.currentThread());
 		KThread.sleep();
 		Machine.interrupt().restore(intStatus);
 		conditionLock.acquire();
     }
 
+    /**
+     * Like <tt>sleep()</tt>, but give up waiting once the specified number of
+     * ticks have passed. The thread reacquires the associated lock either
+     * way.
+     *
+     * @param	ticks	the most clock ticks to wait.
+     * @return	<tt>true</tt> if the thread was woken by <tt>wake()</tt> or
+     *		<tt>wakeAll()</tt>, or <tt>false</tt> if the time passed first.
+     */
+    public boolean sleepFor(long ticks) {
+		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+
+		boolean intStatus = Machine.interrupt().disable();
+		conditionLock.release();
+		boolean woken = false;
+		if (ticks > 0) {
+			waitQueue.waitForAccess(KThread.currentThread());
+			woken = ThreadedKernel.alarm.waitUntil(ticks, waitQueue);
+		}
+		Machine.interrupt().restore(intStatus);
+		conditionLock.acquire();
+		return woken;
+    }
+
     /**
      * Wake up at most one thread sleeping on this condition variable. The
      * current thread must hold the associated lock.
@@ -52,8 +74,9 @@ public class Condition2 {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
 		boolean intStatus = Machine.interrupt().disable();
-		if (!waitQueue.isEmpty())
-			waitQueue.removeFirst().ready();
+		KThread thread = waitQueue.nextThread();
+		if (thread != null)
+			thread.ready();
 		Machine.interrupt().restore(intStatus);
     }
 
@@ -64,10 +87,43 @@ public class Condition2 {
     public void wakeAll() {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
-		while (!waitQueue.isEmpty())
-			wake();
+		boolean intStatus = Machine.interrupt().disable();
+		KThread thread;
+		while ((thread = waitQueue.nextThread()) != null)
+			thread.ready();
+		Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Test if this module is working.
+     */
+    public static void selfTest() {
+		final Lock lock = new Lock();
+		final Condition2 cond = new Condition2(lock);
+
+		// a timed sleep gives up if nobody wakes it in time, and holds the
+		// lock again when it returns
+		lock.acquire();
+		long start = Machine.timer().getTime();
+		Lib.assertTrue(!cond.sleepFor(100));
+		Lib.assertTrue(Machine.timer().getTime() >= start+100);
+		Lib.assertTrue(lock.isHeldByCurrentThread());
+
+		// but a wake() that comes in time wakes it
+		new KThread(new Runnable() {
+			public void run() {
+				ThreadedKernel.alarm.waitUntil(50);
+				lock.acquire();
+				cond.wake();
+				lock.release();
+			}
+		}).setName("condition waker").fork();
+
+		Lib.assertTrue(cond.sleepFor(1000000));
+		Lib.assertTrue(lock.isHeldByCurrentThread());
+		lock.release();
     }
 
     private Lock conditionLock;
-    private LinkedList<KThread> waitQueue;
+    private ThreadQueue waitQueue;
 }
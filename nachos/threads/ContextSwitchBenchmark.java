@@ -0,0 +1,71 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A kernel that measures how fast Nachos can context switch. Two threads
+ * yield to each other <tt>ContextSwitchBenchmark.switches</tt> times (100000
+ * by default), and the kernel prints the number of switches per second of
+ * host time. Run it by setting <tt>Kernel.kernel</tt> to
+ * <tt>nachos.threads.ContextSwitchBenchmark</tt>, with the round-robin
+ * scheduler.
+ */
+public class ContextSwitchBenchmark extends Benchmark {
+    /**
+     * Allocate a new context switch benchmark.
+     */
+    public ContextSwitchBenchmark() {
+	super();
+    }
+
+    /**
+     * Ping-pong between two threads and print the switch rate.
+     */
+    public void run() {
+	final int switches = Config.getInteger("ContextSwitchBenchmark.switches",
+					       100000);
+
+	// warm up the JIT before timing anything
+	pingPong(switches/10);
+
+	long start = System.nanoTime();
+	pingPong(switches);
+	long elapsed = System.nanoTime() - start;
+
+	System.out.println(switches + " context switches in " +
+			   elapsed/1000000 + " ms: " +
+			   (long) (switches * 1e9 / elapsed) + " per second, " +
+			   elapsed/switches + " ns each");
+    }
+
+    /**
+     * Fork two threads that yield to each other until they have switched
+     * the specified number of times between them, and wait for them to
+     * finish.
+     */
+    private static void pingPong(int switches) {
+	Runnable yielder = new PingPong(switches/2);
+
+	KThread ping = new KThread(yielder).setName("ping");
+	KThread pong = new KThread(yielder).setName("pong");
+
+	ping.fork();
+	pong.fork();
+
+	ping.join();
+	pong.join();
+    }
+
+    private static class PingPong implements Runnable {
+	PingPong(int count) {
+	    this.count = count;
+	}
+
+	public void run() {
+	    for (int i=0; i<count; i++)
+		KThread.yield();
+	}
+
+	private int count;
+    }
+}
@@ -0,0 +1,133 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A kernel that measures how fast priority donation follows a long chain of
+ * locks. <tt>DonationBenchmark.depth</tt> threads (1000 by default) each
+ * hold a lock and wait for the lock held by the thread before them. One more
+ * thread waits for the last lock, and its priority is changed back and forth
+ * <tt>DonationBenchmark.changes</tt> times (10000 by default), so that every
+ * change is donated down the whole chain. The kernel prints the host time
+ * taken by each change.
+ *
+ * <p>
+ * Run it by setting <tt>Kernel.kernel</tt> to
+ * <tt>nachos.threads.DonationBenchmark</tt>, with the priority scheduler,
+ * and with <tt>TCB.maxThreads</tt> raised above the depth of the chain.
+ */
+public class DonationBenchmark extends Benchmark {
+    /**
+     * Allocate a new donation benchmark.
+     */
+    public DonationBenchmark() {
+	super();
+    }
+
+    /**
+     * Build the chain, time the priority changes, and tear the chain down.
+     */
+    public void run() {
+	Lib.assertTrue(scheduler instanceof PriorityScheduler,
+		       "DonationBenchmark needs a priority scheduler");
+
+	final int depth = Config.getInteger("DonationBenchmark.depth", 1000);
+	final int changes = Config.getInteger("DonationBenchmark.changes",
+					      10000);
+	Lib.assertTrue(depth > 0 && changes > 0);
+
+	Lock[] locks = new Lock[depth];
+	for (int i=0; i<depth; i++)
+	    locks[i] = new Lock();
+
+	Semaphore linked = new Semaphore(0);
+	Semaphore start = new Semaphore(0);
+	Semaphore done = new Semaphore(0);
+
+	// fork each link only once the one before it holds its lock, whatever
+	// order the scheduler runs them in
+	for (int i=0; i<depth; i++) {
+	    new KThread(new Link(locks[i], i == 0 ? null : locks[i-1],
+				 linked, start, done))
+		.setName("link " + i).fork();
+	    linked.P();
+	}
+
+	KThread top = new KThread(new Link(null, locks[depth-1],
+					   linked, null, done))
+	    .setName("top");
+	top.fork();
+	linked.P();
+
+	// warm up the JIT before timing anything
+	changePriority(top, changes/10);
+
+	long startTime = System.nanoTime();
+	changePriority(top, changes);
+	long elapsed = System.nanoTime() - startTime;
+
+	System.out.println(changes + " donations through " + depth +
+			   " locks in " + elapsed/1000000 + " ms: " +
+			   elapsed/changes + " ns each");
+
+	start.V();
+	for (int i=0; i<depth+1; i++)
+	    done.P();
+    }
+
+    /**
+     * Switch the priority of the specified thread between the maximum and
+     * one above the minimum the specified number of times.
+     */
+    private static void changePriority(KThread thread, int changes) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	for (int i=0; i<changes; i++) {
+	    scheduler.setPriority(thread, (i%2 == 0) ?
+				  PriorityScheduler.priorityMaximum :
+				  PriorityScheduler.priorityMinimum+1);
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * One link of the chain. It takes its own lock, then waits for the lock
+     * of the link before it; the first link instead waits for the benchmark
+     * to finish timing.
+     */
+    private static class Link implements Runnable {
+	Link(Lock own, Lock previous, Semaphore linked, Semaphore start,
+	     Semaphore done) {
+	    this.own = own;
+	    this.previous = previous;
+	    this.linked = linked;
+	    this.start = start;
+	    this.done = done;
+	}
+
+	public void run() {
+	    if (own != null)
+		own.acquire();
+
+	    // the next link may now be forked
+	    linked.V();
+
+	    if (previous == null) {
+		start.P();
+	    }
+	    else {
+		previous.acquire();
+		previous.release();
+	    }
+
+	    if (own != null)
+		own.release();
+
+	    done.V();
+	}
+
+	private Lock own, previous;
+	private Semaphore linked, start, done;
+    }
+}
@@ -0,0 +1,653 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * A priority scheduler with an earliest-deadline-first real-time class.
+ *
+ * <p>
+ * A thread is given a reservation with <tt>setReservation()</tt>: every
+ * <i>period</i> ticks it releases a job, which may use up to <i>budget</i>
+ * ticks of the processor, and should finish within <i>deadline</i> ticks of
+ * its release. The thread finishes each job by calling
+ * <tt>waitForNextPeriod()</tt>, which sleeps until the next release. A
+ * reservation is only admitted if the total of <i>budget</i> /
+ * <i>deadline</i> over all reservations stays within
+ * <tt>EDFScheduler.maxUtilization</tt> (1.0 by default), which is enough for
+ * every job to meet its deadline.
+ *
+ * <p>
+ * A thread whose current job has been released and has budget left is
+ * real-time. Real-time threads are chosen before all others, earliest
+ * deadline first, and the others are chosen by priority. The timer interrupt
+ * preempts the current thread when a thread with an earlier deadline is
+ * ready. A thread that has used up its budget, measured with
+ * <tt>Timer.getTime()</tt>, falls back to its priority until its next period
+ * starts and the budget is replenished. A job still running when the next
+ * one is due is carried over into it.
+ *
+ * <p>
+ * Every job that misses its deadline is counted in the <tt>Stats</tt> of the
+ * machine. Through locks and joins, waiting threads donate their deadlines as
+ * well as their priorities, so a thread holding a lock that a real-time
+ * thread needs runs with the earliest deadline of the threads waiting for it.
+ */
+public class EDFScheduler extends PriorityScheduler {
+    /**
+     * Allocate a new EDF scheduler.
+     */
+    public EDFScheduler() {
+	maxUtilization = Config.getDouble("EDFScheduler.maxUtilization", 1.0);
+
+	Lib.assertTrue(maxUtilization > 0,
+		       "bad value for EDFScheduler.maxUtilization");
+    }
+
+    /**
+     * Allocate a new EDF thread queue.
+     *
+     * @param	transferPriority	<tt>true</tt> if this queue should
+     *					transfer priority and deadlines from
+     *					waiting threads to the owning thread.
+     * @return	a new EDF thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new EDFQueue(transferPriority);
+    }
+
+    /**
+     * Allocate a ready queue. Only the kernel's scheduler is asked for one,
+     * so this is where it tells the autograder that it counts missed
+     * deadlines.
+     *
+     * @return	a new ready queue.
+     */
+    public ThreadQueue newReadyQueue() {
+	Machine.autoGrader().countingDeadlineMisses();
+
+	return newThreadQueue(false);
+    }
+
+    public boolean setReservation(KThread thread, long period, long budget,
+				  long deadline) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(budget > 0 && budget <= deadline && deadline <= period);
+
+	ThreadState state = getThreadState(thread);
+
+	double density = (double) budget / deadline;
+	if (utilization - state.density + density > maxUtilization)
+	    return false;
+
+	utilization += density - state.density;
+	state.reserve(period, budget, deadline, density);
+
+	return true;
+    }
+
+    public void cancelReservation(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	release(getThreadState(thread));
+    }
+
+    /**
+     * Give back the density of a thread's reservation, if it has one, and
+     * stop waiting to refill its budget.
+     */
+    private void release(ThreadState state) {
+	utilization -= state.density;
+	state.reserve(0, 0, 0, 0);
+
+	if (state.throttled)
+	    state.unthrottle();
+    }
+
+    public void waitForNextPeriod() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	ThreadState state = getThreadState(KThread.currentThread());
+	long release = state.finishJob();
+
+	Machine.interrupt().restore(intStatus);
+
+	long wait = release - Machine.timer().getTime();
+	if (wait > 0)
+	    ThreadedKernel.alarm.waitUntil(wait);
+    }
+
+    public void threadRunning(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	ThreadState state = getThreadState(thread);
+	state.running = true;
+	state.lastCharged = Machine.timer().getTime();
+	state.refresh();
+    }
+
+    public void threadStopping(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	ThreadState state = getThreadState(thread);
+	state.refresh();
+	state.running = false;
+
+	// a finished thread has no more jobs to run
+	if (thread.isFinished())
+	    release(state);
+    }
+
+    public boolean shouldPreempt() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	// give threads whose next period has started their budget back
+	for (ThreadState state=firstThrottled; state!=null; ) {
+	    ThreadState next = state.nextThrottled;
+	    state.refresh();
+	    if (state.remaining > 0 || state.period == 0)
+		state.unthrottle();
+	    state = next;
+	}
+
+	ThreadState state = getThreadState(KThread.currentThread());
+	if (!state.running)
+	    return false;
+
+	state.refresh();
+
+	// the ready queue of this processor
+	EDFQueue readyQueue = (EDFQueue) KThread.currentReadyQueue();
+	if (readyQueue == null)
+	    return false;
+
+	ThreadState next = readyQueue.pickNextThread();
+
+	return next != null && next.effectiveDeadline < state.effectiveDeadline;
+    }
+
+    /**
+     * Test if this module is working, using a scheduler of its own and
+     * threads that never really run.
+     */
+    public static void selfTest() {
+	EDFScheduler scheduler = new EDFScheduler();
+
+	KThread early = new KThread().setName("EDF test early");
+	KThread late = new KThread().setName("EDF test late");
+	KThread high = new KThread().setName("EDF test high");
+	KThread low = new KThread().setName("EDF test low");
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	// reservations are admitted only while they fit
+	Lib.assertTrue(scheduler.setReservation(late, 100000, 1000, 50000));
+	Lib.assertTrue(scheduler.setReservation(early, 100000, 1000, 30000));
+	boolean fits = (scheduler.utilization + 1 <= scheduler.maxUtilization);
+	Lib.assertTrue(scheduler.setReservation(high, 10000, 10000, 10000) ==
+		       fits);
+	scheduler.cancelReservation(high);
+
+	scheduler.setPriority(high, priorityMaximum);
+	scheduler.setPriority(low, priorityMinimum);
+
+	// real-time threads come first, earliest deadline first, and then the
+	// others by priority
+	ThreadQueue queue = scheduler.newThreadQueue(false);
+	queue.waitForAccess(high);
+	queue.waitForAccess(late);
+	queue.waitForAccess(low);
+	queue.waitForAccess(early);
+	Lib.assertTrue(queue.nextThread() == early);
+	Lib.assertTrue(queue.nextThread() == late);
+	Lib.assertTrue(queue.nextThread() == high);
+	Lib.assertTrue(queue.nextThread() == low);
+
+	// a thread holding what a real-time thread waits for has its deadline
+	// until the real-time thread stops waiting
+	ThreadQueue lock = scheduler.newThreadQueue(true);
+	lock.acquire(low);
+	lock.waitForAccess(early);
+	queue.waitForAccess(high);
+	queue.waitForAccess(late);
+	queue.waitForAccess(low);
+	Lib.assertTrue(queue.nextThread() == low);
+	Lib.assertTrue(lock.cancelWait(early));
+	Lib.assertTrue(scheduler.getThreadState(low).effectiveDeadline ==
+		       noDeadline);
+	Lib.assertTrue(queue.nextThread() == late);
+	Lib.assertTrue(queue.nextThread() == high);
+
+	// pretend the early thread uses up its budget; it falls back to its
+	// priority
+	scheduler.threadRunning(early);
+	Machine.interrupt().restore(intStatus);
+
+	ThreadedKernel.alarm.waitUntil(1000);
+
+	intStatus = Machine.interrupt().disable();
+	scheduler.threadStopping(early);
+
+	queue.waitForAccess(early);
+	queue.waitForAccess(high);
+	Lib.assertTrue(queue.nextThread() == high);
+	Lib.assertTrue(queue.nextThread() == early);
+
+	scheduler.cancelReservation(early);
+	scheduler.cancelReservation(late);
+	Lib.assertTrue(Math.abs(scheduler.utilization) < 1e-9);
+	Lib.assertTrue(scheduler.firstThrottled == null);
+
+	Machine.interrupt().restore(intStatus);
+
+	// a thread that finishes gives its reservation back
+	if (ThreadedKernel.scheduler instanceof EDFScheduler) {
+	    final EDFScheduler kernelScheduler =
+		(EDFScheduler) ThreadedKernel.scheduler;
+	    final double before = kernelScheduler.utilization;
+
+	    KThread reserved = new KThread(new Runnable() {
+		    public void run() {
+			boolean intStatus = Machine.interrupt().disable();
+			Lib.assertTrue(kernelScheduler.setReservation(
+			    KThread.currentThread(), 100000, 1000, 100000));
+			Machine.interrupt().restore(intStatus);
+
+			// use up the budget, so the thread is throttled too
+			while (!kernelScheduler.getThreadState(
+				   KThread.currentThread()).throttled)
+			    KThread.yield();
+		    }
+		}).setName("EDF test reserved");
+	    reserved.fork();
+	    reserved.join();
+
+	    Lib.assertTrue(Math.abs(kernelScheduler.utilization - before) <
+			   1e-9);
+	    Lib.assertTrue(!kernelScheduler.getThreadState(reserved).throttled);
+	}
+    }
+
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that keeps its real-time waiting threads in a
+     * tree ordered by deadline, as well as keeping every waiting thread in
+     * the priority buckets of a priority queue, which then decide among the
+     * others.
+     */
+    protected class EDFQueue extends PriorityScheduler.PriorityQueue {
+	EDFQueue(boolean transferPriority) {
+	    super(transferPriority);
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    // move the deadline donation; the priority queue then updates the
+	    // old and new holders
+	    if (transferPriority) {
+		if (holder != null)
+		    ((ThreadState) holder).removeDeadline(deadlineDonation);
+		deadlineDonation = computeDeadlineDonation();
+		getThreadState(thread).addDeadline(deadlineDonation);
+	    }
+
+	    super.acquire(thread);
+	}
+
+	protected ThreadState pickNextThread() {
+	    if (!realTime.isEmpty())
+		return realTime.first();
+
+	    return (ThreadState) super.pickNextThread();
+	}
+
+	protected void add(PriorityScheduler.ThreadState state) {
+	    ThreadState edfState = (ThreadState) state;
+
+	    super.add(edfState);
+
+	    edfState.queuedDeadline = edfState.effectiveDeadline;
+	    if (edfState.queuedDeadline != noDeadline) {
+		edfState.arrival = numArrivals++;
+		realTime.add(edfState);
+	    }
+	}
+
+	protected void remove(PriorityScheduler.ThreadState state) {
+	    ThreadState edfState = (ThreadState) state;
+
+	    super.remove(edfState);
+
+	    if (edfState.queuedDeadline != noDeadline)
+		realTime.remove(edfState);
+	}
+
+	protected void reposition(PriorityScheduler.ThreadState state) {
+	    ThreadState edfState = (ThreadState) state;
+
+	    if (edfState.effectiveDeadline != edfState.queuedDeadline ||
+		edfState.getEffectivePriority() != edfState.queuedPriority) {
+		remove(edfState);
+		add(edfState);
+	    }
+	}
+
+	protected ThreadState updateDonation() {
+	    ThreadState changed = (ThreadState) super.updateDonation();
+
+	    long newDeadline = computeDeadlineDonation();
+	    if (newDeadline == deadlineDonation)
+		return changed;
+
+	    if (holder != null) {
+		((ThreadState) holder).removeDeadline(deadlineDonation);
+		((ThreadState) holder).addDeadline(newDeadline);
+	    }
+	    deadlineDonation = newDeadline;
+
+	    return (ThreadState) holder;
+	}
+
+	/**
+	 * Return the deadline this queue should donate to its holder: the
+	 * earliest deadline of any real-time waiting thread, or
+	 * <tt>noDeadline</tt>.
+	 */
+	private long computeDeadlineDonation() {
+	    if (transferPriority == false || realTime.isEmpty())
+		return noDeadline;
+
+	    return realTime.first().queuedDeadline;
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (ThreadState state : realTime) {
+		System.out.print(" " + state.thread + "(deadline " +
+				 state.queuedDeadline + ")");
+	    }
+	    super.print();
+	}
+
+	/** The real-time waiting threads, in order of deadline and arrival. */
+	private TreeSet<ThreadState> realTime = new TreeSet<ThreadState>();
+
+	/** The deadline this queue donates to its holder. */
+	private long deadlineDonation = noDeadline;
+	/** The number of real-time threads that have ever waited here. */
+	private long numArrivals = 0;
+    }
+
+    /**
+     * The scheduling state of a thread: its priority, its reservation if it
+     * has one, the progress of its current job, and its effective deadline.
+     */
+    protected class ThreadState extends PriorityScheduler.ThreadState
+	implements Comparable<ThreadState> {
+	public ThreadState(KThread thread) {
+	    super(thread);
+	}
+
+	/**
+	 * Replace the reservation of this thread, releasing its first job now.
+	 * A period of 0 means no reservation.
+	 */
+	void reserve(long period, long budget, long deadline, double density) {
+	    this.period = period;
+	    this.budget = budget;
+	    this.deadline = deadline;
+	    this.density = density;
+
+	    jobRelease = Machine.timer().getTime();
+	    remaining = budget;
+	    missed = false;
+
+	    updateEffectivePriority();
+	}
+
+	/**
+	 * Finish the current job, counting it if it missed its deadline, and
+	 * release the next one at the start of the next period.
+	 *
+	 * @return	the time the next job is released.
+	 */
+	long finishJob() {
+	    refresh();
+
+	    if (period == 0)
+		return 0;
+
+	    jobRelease += period;
+	    remaining = budget;
+	    missed = false;
+
+	    updateEffectivePriority();
+
+	    return jobRelease;
+	}
+
+	/**
+	 * Charge this thread for the time it has been running, carry an
+	 * unfinished job over into any periods that have started since, and
+	 * count a miss if the job is past its deadline. Then bring the
+	 * effective deadline up to date.
+	 */
+	void refresh() {
+	    long time = Machine.timer().getTime();
+
+	    if (running) {
+		remaining -= time - lastCharged;
+		lastCharged = time;
+	    }
+
+	    if (period != 0) {
+		if (time >= jobRelease + period) {
+		    missDeadline();
+
+		    jobRelease += (time - jobRelease) / period * period;
+		    remaining = budget;
+		    missed = false;
+		}
+
+		if (time > jobRelease + deadline)
+		    missDeadline();
+
+		if (remaining <= 0 && !throttled)
+		    throttle();
+	    }
+
+	    updateEffectivePriority();
+	}
+
+	/**
+	 * Add this thread to the front of the scheduler's list of threads
+	 * waiting for their budget back.
+	 */
+	private void throttle() {
+	    throttled = true;
+	    prevThrottled = null;
+	    nextThrottled = firstThrottled;
+	    if (firstThrottled != null)
+		firstThrottled.prevThrottled = this;
+	    firstThrottled = this;
+	}
+
+	/**
+	 * Take this thread off the list of throttled threads.
+	 */
+	private void unthrottle() {
+	    throttled = false;
+	    if (prevThrottled == null)
+		firstThrottled = nextThrottled;
+	    else
+		prevThrottled.nextThrottled = nextThrottled;
+	    if (nextThrottled != null)
+		nextThrottled.prevThrottled = prevThrottled;
+	    prevThrottled = nextThrottled = null;
+	}
+
+	/**
+	 * Count the current job as having missed its deadline, unless it
+	 * already has been.
+	 */
+	private void missDeadline() {
+	    if (!missed) {
+		missed = true;
+		Machine.autoGrader().missedDeadline(thread);
+	    }
+	}
+
+	/**
+	 * Return the deadline of the current job, or <tt>noDeadline</tt> if
+	 * it has not been released or has used up its budget.
+	 */
+	private long ownDeadline() {
+	    if (period == 0 || remaining <= 0 ||
+		Machine.timer().getTime() < jobRelease)
+		return noDeadline;
+
+	    return jobRelease + deadline;
+	}
+
+	/**
+	 * Record that a queue held by this thread donates the specified
+	 * deadline. The effective deadline is not updated.
+	 */
+	void addDeadline(long deadline) {
+	    if (deadline == noDeadline)
+		return;
+
+	    if (donatedDeadlines == null)
+		donatedDeadlines = new TreeMap<Long, Integer>();
+
+	    Integer count = donatedDeadlines.get(deadline);
+	    donatedDeadlines.put(deadline, (count == null) ? 1 : count+1);
+	}
+
+	/**
+	 * Forget a deadline recorded by <tt>addDeadline()</tt>. The effective
+	 * deadline is not updated.
+	 */
+	void removeDeadline(long deadline) {
+	    if (deadline == noDeadline)
+		return;
+
+	    int count = donatedDeadlines.get(deadline);
+	    if (count == 1)
+		donatedDeadlines.remove(deadline);
+	    else
+		donatedDeadlines.put(deadline, count-1);
+	}
+
+	/**
+	 * Return the earlier of the deadline of the current job and the
+	 * deadlines donated to this thread.
+	 */
+	protected long computeEffectiveDeadline() {
+	    long deadline = ownDeadline();
+
+	    if (donatedDeadlines != null && !donatedDeadlines.isEmpty())
+		deadline = Math.min(deadline, donatedDeadlines.firstKey());
+
+	    return deadline;
+	}
+
+	/**
+	 * Recompute the effective priority and effective deadline of this
+	 * thread, and push any change along the chain of queues being waited
+	 * on and their holders, until neither is affected.
+	 */
+	protected void updateEffectivePriority() {
+	    ThreadState state = this;
+
+	    while (state != null) {
+		int newPriority = state.computeEffectivePriority();
+		long newDeadline = state.computeEffectiveDeadline();
+		if (newPriority == state.effectivePriority &&
+		    newDeadline == state.effectiveDeadline)
+		    return;
+
+		state.effectivePriority = newPriority;
+		state.effectiveDeadline = newDeadline;
+
+		PriorityQueue waitQueue = state.currentWaitingQueue;
+		if (waitQueue == null)
+		    return;
+
+		waitQueue.reposition(state);
+		state = (ThreadState) waitQueue.updateDonation();
+	    }
+	}
+
+	public void waitForAccess(PriorityQueue waitQueue) {
+	    // a job that yields is filed with the budget it has left
+	    refresh();
+	    running = false;
+
+	    super.waitForAccess(waitQueue);
+	}
+
+	public int compareTo(ThreadState that) {
+	    if (this.queuedDeadline != that.queuedDeadline)
+		return (this.queuedDeadline < that.queuedDeadline) ? -1 : 1;
+	    if (this.arrival != that.arrival)
+		return (this.arrival < that.arrival) ? -1 : 1;
+	    return 0;
+	}
+
+	/** The ticks between releases, or 0 if there is no reservation. */
+	protected long period = 0;
+	/** The ticks of the processor each job may use. */
+	protected long budget;
+	/** The ticks after its release by which each job should finish. */
+	protected long deadline;
+	/** <tt>budget / deadline</tt>, counted against admission. */
+	protected double density = 0;
+
+	/** The time the current job was released. */
+	protected long jobRelease;
+	/** The ticks of budget the current job has left. */
+	protected long remaining;
+	/** <tt>true</tt> if the current job has been counted as missed. */
+	private boolean missed;
+
+	/** The earlier of the job's deadline and the donated deadlines. */
+	protected long effectiveDeadline = noDeadline;
+	/** The deadline this thread is filed under in its waiting queue. */
+	private long queuedDeadline;
+	/** Breaks ties in deadline in favour of the longest waiting thread. */
+	private long arrival;
+	/** The number of held queues donating each deadline, if any. */
+	private TreeMap<Long, Integer> donatedDeadlines = null;
+
+	/** <tt>true</tt> if the thread is running on a processor. */
+	private boolean running = false;
+	/** The time the thread was last charged while running. */
+	private long lastCharged;
+	/** <tt>true</tt> if the thread is waiting for its budget back. */
+	private boolean throttled = false;
+	/** The threads before and after this one in the throttled list. */
+	private ThreadState prevThrottled = null, nextThrottled = null;
+    }
+
+    private double maxUtilization;
+    /** The total density of the admitted reservations. */
+    private double utilization = 0;
+
+    /** The first of the threads that wait for a new period's budget. */
+    private ThreadState firstThrottled = null;
+
+    /** The effective deadline of a thread that is not real-time. */
+    private static final long noDeadline = Long.MAX_VALUE;
+}
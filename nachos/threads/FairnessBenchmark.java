@@ -0,0 +1,163 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A kernel that measures how fairly and how smoothly a proportional-share
+ * scheduler divides the processor. It forks one thread for each priority
+ * from 1 to <tt>PriorityScheduler.priorityMaximum</tt>, with that many
+ * tickets, and each thread yields until <tt>FairnessBenchmark.turns</tt>
+ * turns (100000 by default) have been taken between them.
+ *
+ * <p>
+ * For each thread the kernel prints the share of turns it was given next to
+ * the share its tickets entitle it to, and the mean, standard deviation and
+ * maximum of the number of turns taken by others between two of its own.
+ * The spread of those gaps is the latency variance a thread sees. Run it by
+ * setting <tt>Kernel.kernel</tt> to <tt>nachos.threads.FairnessBenchmark</tt>,
+ * once with the lottery scheduler and once with the stride scheduler.
+ */
+public class FairnessBenchmark extends Benchmark {
+    /**
+     * Allocate a new fairness benchmark.
+     */
+    public FairnessBenchmark() {
+	super();
+    }
+
+    /**
+     * Run the competing threads and print what each of them was given.
+     */
+    public void run() {
+	Lib.assertTrue(scheduler instanceof PriorityScheduler,
+		       "FairnessBenchmark needs a proportional-share scheduler");
+
+	int turns = Config.getInteger("FairnessBenchmark.turns", 100000);
+	Lib.assertTrue(turns > 0);
+
+	int numThreads = PriorityScheduler.priorityMaximum;
+	Semaphore done = new Semaphore(0);
+	Competitor[] competitors = new Competitor[numThreads];
+	int totalTickets = 0;
+
+	Counter counter = new Counter(turns);
+
+	boolean intStatus = Machine.interrupt().disable();
+	for (int i=0; i<numThreads; i++) {
+	    int tickets = i+1;
+	    totalTickets += tickets;
+
+	    competitors[i] = new Competitor(tickets, counter, done);
+
+	    KThread thread = new KThread(competitors[i])
+		.setName("competitor " + tickets);
+	    scheduler.setPriority(thread, tickets);
+	    thread.fork();
+	}
+	Machine.interrupt().restore(intStatus);
+
+	for (int i=0; i<numThreads; i++)
+	    done.P();
+
+	System.out.println(scheduler.getClass().getName() + ", " + turns +
+			   " turns:");
+	System.out.println("tickets  share  expected  mean gap  " +
+			   "stddev gap  max gap");
+
+	for (int i=0; i<numThreads; i++) {
+	    Competitor c = competitors[i];
+
+	    double share = 100.0 * c.runs / counter.taken;
+	    double expected = 100.0 * c.tickets / totalTickets;
+	    double mean = (double) c.gapSum / c.gaps;
+	    double stddev = Math.sqrt((double) c.gapSquareSum / c.gaps -
+				      mean*mean);
+
+	    // String.format() would load locale data, which the security
+	    // manager does not let kernel threads do
+	    System.out.println(pad("" + c.tickets, 7) + " " +
+			       pad(fixed(share, 1), 5) + "% " +
+			       pad(fixed(expected, 1), 8) + "% " +
+			       pad(fixed(mean, 2), 9) + " " +
+			       pad(fixed(stddev, 2), 11) + " " +
+			       pad("" + c.maxGap, 8));
+	}
+    }
+
+    /**
+     * Pad a string with spaces on the left to the specified width.
+     */
+    private static String pad(String s, int width) {
+	while (s.length() < width)
+	    s = " " + s;
+
+	return s;
+    }
+
+    /**
+     * Format a non-negative number with the specified number of decimals,
+     * rounding half up.
+     */
+    private static String fixed(double value, int decimals) {
+	long scale = 1;
+	for (int i=0; i<decimals; i++)
+	    scale *= 10;
+
+	long scaled = Math.round(value * scale);
+	String fraction = "" + (scaled % scale + scale);
+
+	return (scaled / scale) + "." + fraction.substring(1);
+    }
+
+    /**
+     * Counts the turns taken by all the competitors together.
+     */
+    private static class Counter {
+	Counter(int limit) {
+	    this.limit = limit;
+	}
+
+	int limit;
+	int taken = 0;
+    }
+
+    /**
+     * A thread that takes turns until the counter reaches its limit,
+     * recording the gaps between its turns.
+     */
+    private static class Competitor implements Runnable {
+	Competitor(int tickets, Counter counter, Semaphore done) {
+	    this.tickets = tickets;
+	    this.counter = counter;
+	    this.done = done;
+	}
+
+	public void run() {
+	    int lastTurn = -1;
+
+	    while (counter.taken < counter.limit) {
+		if (lastTurn >= 0) {
+		    long gap = counter.taken - lastTurn - 1;
+		    gaps++;
+		    gapSum += gap;
+		    gapSquareSum += gap*gap;
+		    maxGap = Math.max(maxGap, gap);
+		}
+
+		lastTurn = counter.taken++;
+		runs++;
+
+		KThread.yield();
+	    }
+
+	    done.V();
+	}
+
+	int tickets;
+	Counter counter;
+	Semaphore done;
+
+	int runs = 0;
+	long gaps = 0, gapSum = 0, gapSquareSum = 0, maxGap = 0;
+    }
+}
@@ -26,6 +26,18 @@ import nachos.machine.*;
  * PiRun p = new PiRun();
  * new KThread(p).fork();
  * </pre></blockquote>
+ *
+ * <p>
+ * On a machine with more than one processor, each processor has its own
+ * current thread and idle thread, and they all share one ready queue. A
+ * thread made ready while a processor is idle wakes that processor up.
+ *
+ * <p>
+ * If <tt>KThread.perProcessorQueues</tt> is set, each processor has a ready
+ * queue of its own instead. A thread is made ready on the processor given by
+ * its affinity hint, or else on the processor it last ran on unless another
+ * one is idle. A processor whose queue is empty steals from the busiest
+ * queue, and every timer interrupt evens out the lengths of the queues.
  */
 public class KThread {
     /**
@@ -34,23 +46,45 @@ public class KThread {
      * @return	the current thread.
      */
     public static KThread currentThread() {
+	KThread currentThread = getCurrentThread();
 	Lib.assertTrue(currentThread != null);
 	return currentThread;
     }
+
+    private static KThread getCurrentThread() {
+	if (currentThreads == null)
+	    return null;
+
+	return currentThreads[Machine.currentProcessor()];
+    }
+
+    private static void setCurrentThread(KThread thread) {
+	currentThreads[Machine.currentProcessor()] = thread;
+    }
     
     /**
      * Allocate a new <tt>KThread</tt>. If this is the first <tt>KThread</tt>,
      * create an idle thread as well.
      */
     public KThread() {
-	if (currentThread != null) {
+	if (currentThreads != null) {
 	    tcb = new TCB();
 	}	    
 	else {
-	    readyQueue = ThreadedKernel.scheduler.newThreadQueue(false);
-	    readyQueue.acquire(this);	    
-
-	    currentThread = this;
+	    perProcessorQueues =
+		Config.getBoolean("KThread.perProcessorQueues", false);
+
+	    readyQueues = new ThreadQueue[perProcessorQueues ?
+					  Machine.numProcessors() : 1];
+	    numReadyThreads = new int[readyQueues.length];
+	    lastReady = new KThread[readyQueues.length];
+	    for (int i=0; i<readyQueues.length; i++)
+		readyQueues[i] = ThreadedKernel.scheduler.newReadyQueue();
+	    readyQueues[0].acquire(this);	    
+
+	    currentThreads = new KThread[Machine.numProcessors()];
+	    idleThreads = new KThread[Machine.numProcessors()];
+	    setCurrentThread(this);
 	    tcb = TCB.currentTCB();
 	    name = "main";
 	    restoreState();
@@ -104,6 +138,42 @@ public class KThread {
 	return name;
     }
 
+    /**
+     * Suggest a processor for this thread to run on. With per-processor
+     * ready queues, the thread is always made ready on that processor's
+     * queue, although an idle processor may still steal it, or the timer
+     * may move it to balance the queues.
+     *
+     * @param	processor	the number of the processor, or <tt>-1</tt> to
+     *				let the thread run anywhere.
+     * @return	this thread.
+     */
+    public KThread setAffinity(int processor) {
+	Lib.assertTrue(processor >= -1 && processor < Machine.numProcessors());
+
+	this.affinity = processor;
+	return this;
+    }
+
+    /**
+     * Get the processor suggested for this thread by <tt>setAffinity()</tt>.
+     *
+     * @return	the number of the processor, or <tt>-1</tt> if there is none.
+     */
+    public int getAffinity() {
+	return affinity;
+    }
+
+    /**
+     * Tell whether this thread has finished, so that the scheduler can let go
+     * of anything it was keeping for it.
+     *
+     * @return	<tt>true</tt> if this thread has called <tt>finish()</tt>.
+     */
+    boolean isFinished() {
+	return status == statusFinished;
+    }
+
     /**
      * Get the full name of this thread. This includes its name along with its
      * numerical ID. This name is used for debugging purposes only.
@@ -171,7 +241,7 @@ public class KThread {
     private void begin() {
 	Lib.debug(dbgThread, "Beginning thread: " + toString());
 	
-	Lib.assertTrue(this == currentThread);
+	Lib.assertTrue(this == currentThread());
 
 	restoreState();
 
@@ -189,9 +259,9 @@ public class KThread {
      * delete this thread.
      */
     public static void finish() {
-		Lib.debug(dbgThread, "Finishing thread: " + currentThread.toString());
+		Lib.debug(dbgThread, "Finishing thread: " + currentThread().toString());
 
-		ThreadQueue curJoinQueue = currentThread.joinQueue;
+		ThreadQueue curJoinQueue = currentThread().joinQueue;
 		if (curJoinQueue != null) {
 			KThread thread = curJoinQueue.nextThread();
 			while (thread != null) {
@@ -205,10 +275,10 @@ public class KThread {
 		Machine.autoGrader().finishingCurrentThread();
 
 		Lib.assertTrue(toBeDestroyed == null);
-		toBeDestroyed = currentThread;
+		toBeDestroyed = currentThread();
 
 
-		currentThread.status = statusFinished;
+		currentThread().status = statusFinished;
 
 		sleep();
     }
@@ -221,7 +291,7 @@ public class KThread {
      * <p>
      * Returns immediately if no other thread is ready to run. Otherwise
      * returns when the current thread is chosen to run again by
-     * <tt>readyQueue.nextThread()</tt>.
+     * the <tt>nextThread()</tt> of a ready queue.
      *
      * <p>
      * Interrupts are disabled, so that the current thread can atomically add
@@ -230,13 +300,13 @@ public class KThread {
      * called with interrupts disabled.
      */
     public static void yield() {
-	Lib.debug(dbgThread, "Yielding thread: " + currentThread.toString());
+	Lib.debug(dbgThread, "Yielding thread: " + currentThread().toString());
 	
-	Lib.assertTrue(currentThread.status == statusRunning);
+	Lib.assertTrue(currentThread().status == statusRunning);
 	
 	boolean intStatus = Machine.interrupt().disable();
 
-	currentThread.ready();
+	currentThread().ready();
 
 	runNextThread();
 	
@@ -255,12 +325,12 @@ public class KThread {
      * scheduled this thread to be destroyed by the next thread to run.
      */
     public static void sleep() {
-	Lib.debug(dbgThread, "Sleeping thread: " + currentThread.toString());
+	Lib.debug(dbgThread, "Sleeping thread: " + currentThread().toString());
 	
 	Lib.assertTrue(Machine.interrupt().disabled());
 
-	if (currentThread.status != statusFinished)
-	    currentThread.status = statusBlocked;
+	if (currentThread().status != statusFinished)
+	    currentThread().status = statusBlocked;
 
 	runNextThread();
     }
@@ -276,8 +346,17 @@ public class KThread {
 	Lib.assertTrue(status != statusReady);
 	
 	status = statusReady;
-	if (this != idleThread)
-	    readyQueue.waitForAccess(this);
+	if (this != idleThreads[Machine.currentProcessor()]) {
+	    int processor = chooseProcessor();
+
+	    joinReadyQueue(queueOf(processor));
+
+	    // let an idle processor pick it up
+	    if (!Machine.interrupt().isIdle(processor))
+		processor = Machine.interrupt().getIdleProcessor();
+	    if (processor != -1)
+		Machine.interrupt().sendIPI(processor);
+	}
 	
 	Machine.autoGrader().readyThread(this);
     }
@@ -293,7 +372,7 @@ public class KThread {
     public void join() {
 		Lib.debug(dbgThread, "Joining to thread: " + toString());
 
-		Lib.assertTrue(this != currentThread);
+		Lib.assertTrue(this != currentThread());
 
 		if (status != statusFinished) {
 			if (cond1 == null)
@@ -312,19 +391,50 @@ public class KThread {
      * all other threads are blocked.
      *
      * <p>
+     * Each processor has its own idle thread. Those of the other processors
+     * start them running. Whenever the ready queue is empty, an idle thread
+     * calls <tt>Interrupt.idle()</tt>, which waits for another processor to
+     * make a thread ready or skips ahead to the next interrupt.
+     *
+     * <p>
      * Note that <tt>ready()</tt> never adds the idle thread to the ready set.
      */
     private static void createIdleThread() {
-	Lib.assertTrue(idleThread == null);
-	
-	idleThread = new KThread(new Runnable() {
-	    public void run() { while (true) yield(); }
-	});
-	idleThread.setName("idle");
+	Lib.assertTrue(idleThreads[0] == null);
 
-	Machine.autoGrader().setIdleThread(idleThread);
+	Runnable idleLoop = new Runnable() {
+		public void run() {
+		    while (true) {
+			if (totalReadyThreads == 0)
+			    Machine.interrupt().idle();
+			yield();
+		    }
+		}
+	    };
 	
-	idleThread.fork();
+	for (int i=0; i<idleThreads.length; i++) {
+	    final KThread idleThread = new KThread(idleLoop);
+	    idleThread.setName((i == 0) ? "idle" : "idle" + i);
+	    idleThreads[i] = idleThread;
+
+	    Machine.autoGrader().setIdleThread(idleThread);
+
+	    if (i == 0) {
+		idleThread.fork();
+		continue;
+	    }
+
+	    // the idle thread becomes the first thread on its processor
+	    currentThreads[i] = idleThread;
+	    
+	    idleThread.status = statusReady;
+	    idleThread.tcb.start(new Runnable() {
+		    public void run() {
+			Machine.interrupt().disable();
+			idleThread.runThread();
+		    }
+		}, i);
+	}
     }
     
     /**
@@ -332,13 +442,143 @@ public class KThread {
      * using <tt>run()</tt>.
      */
     private static void runNextThread() {
-	KThread nextThread = readyQueue.nextThread();
+	int queue = queueOf(Machine.currentProcessor());
+
+	KThread nextThread = readyQueues[queue].nextThread();
+	if (nextThread == null && perProcessorQueues) {
+	    // steal from the busiest queue
+	    for (int i=0; i<readyQueues.length; i++) {
+		if (numReadyThreads[i] > numReadyThreads[queue])
+		    queue = i;
+	    }
+	    nextThread = readyQueues[queue].nextThread();
+	}
+
 	if (nextThread == null)
-	    nextThread = idleThread;
+	    nextThread = idleThreads[Machine.currentProcessor()];
+	else
+	    nextThread.leftReadyQueue(queue);
 
 	nextThread.run();
     }
 
+    /**
+     * Add this thread to the specified ready queue, and to the end of the
+     * list of the threads in it in the order they joined.
+     */
+    private void joinReadyQueue(int queue) {
+	readyQueues[queue].waitForAccess(this);
+
+	prevReady = lastReady[queue];
+	nextReady = null;
+	if (prevReady != null)
+	    prevReady.nextReady = this;
+	lastReady[queue] = this;
+
+	numReadyThreads[queue]++;
+	totalReadyThreads++;
+    }
+
+    /**
+     * Take this thread off the list of threads that joined the specified
+     * ready queue, once the queue itself has let go of it.
+     */
+    private void leftReadyQueue(int queue) {
+	if (prevReady != null)
+	    prevReady.nextReady = nextReady;
+
+	if (nextReady == null)
+	    lastReady[queue] = prevReady;
+	else
+	    nextReady.prevReady = prevReady;
+
+	prevReady = nextReady = null;
+
+	numReadyThreads[queue]--;
+	totalReadyThreads--;
+    }
+
+    /**
+     * Choose the processor whose ready queue this thread should join: the one
+     * given by its affinity hint, or else the one it last ran on, unless that
+     * one is busy and another is idle.
+     */
+    private int chooseProcessor() {
+	if (!perProcessorQueues)
+	    return Machine.currentProcessor();
+
+	if (affinity != -1)
+	    return affinity;
+
+	int processor = (lastProcessor != -1) ? lastProcessor :
+	    Machine.currentProcessor();
+
+	if (!Machine.interrupt().isIdle(processor)) {
+	    int idle = Machine.interrupt().getIdleProcessor();
+	    if (idle != -1)
+		processor = idle;
+	}
+
+	return processor;
+    }
+
+    /**
+     * Return the index in <tt>readyQueues</tt> of the ready queue of the
+     * specified processor.
+     */
+    private static int queueOf(int processor) {
+	return perProcessorQueues ? processor : 0;
+    }
+
+    /**
+     * Return the ready queue of the current processor.
+     */
+    static ThreadQueue currentReadyQueue() {
+	if (readyQueues == null)
+	    return null;
+
+	return readyQueues[queueOf(Machine.currentProcessor())];
+    }
+
+    /**
+     * With per-processor ready queues, move threads from the longest ready
+     * queue to the shortest until their lengths differ by at most one. Called
+     * by the timer interrupt handler.
+     *
+     * <p>
+     * The thread moved is the one that joined the longest queue last, which
+     * would have waited longest there. It is taken out with
+     * <tt>cancelWait()</tt>, so that the scheduler keeps its place relative
+     * to the other threads and picks no thread to run.
+     */
+    public static void balanceReadyQueues() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	if (!perProcessorQueues)
+	    return;
+
+	while (true) {
+	    int longest = 0, shortest = 0;
+	    for (int i=1; i<readyQueues.length; i++) {
+		if (numReadyThreads[i] > numReadyThreads[longest])
+		    longest = i;
+		if (numReadyThreads[i] < numReadyThreads[shortest])
+		    shortest = i;
+	    }
+
+	    if (numReadyThreads[longest] - numReadyThreads[shortest] <= 1)
+		return;
+
+	    KThread thread = lastReady[longest];
+	    Lib.assertTrue(readyQueues[longest].cancelWait(thread));
+	    thread.leftReadyQueue(longest);
+	    thread.joinReadyQueue(shortest);
+
+	    if (Machine.interrupt().isIdle(shortest))
+		Machine.interrupt().sendIPI(shortest);
+	}
+    }
+
     /**
      * Dispatch the CPU to this thread. Save the state of the current thread,
      * switch to the new thread by calling <tt>TCB.contextSwitch()</tt>, and
@@ -364,16 +604,16 @@ public class KThread {
 
 	Machine.yield();
 
-	currentThread.saveState();
+	currentThread().saveState();
 
-	Lib.debug(dbgThread, "Switching from: " + currentThread.toString()
+	Lib.debug(dbgThread, "Switching from: " + currentThread().toString()
 		  + " to: " + toString());
 
-	currentThread = this;
+	setCurrentThread(this);
 
 	tcb.contextSwitch();
 
-	currentThread.restoreState();
+	currentThread().restoreState();
     }
 
     /**
@@ -381,13 +621,15 @@ public class KThread {
      * <tt>statusRunning</tt> and check <tt>toBeDestroyed</tt>.
      */
     protected void restoreState() {
-	Lib.debug(dbgThread, "Running thread: " + currentThread.toString());
+	Lib.debug(dbgThread, "Running thread: " + currentThread().toString());
 	
 	Lib.assertTrue(Machine.interrupt().disabled());
-	Lib.assertTrue(this == currentThread);
+	Lib.assertTrue(this == currentThread());
 	Lib.assertTrue(tcb == TCB.currentTCB());
 
 	Machine.autoGrader().runningThread(this);
+	ThreadedKernel.scheduler.threadRunning(this);
+	lastProcessor = Machine.currentProcessor();
 	
 	status = statusRunning;
 
@@ -404,7 +646,9 @@ public class KThread {
      */
     protected void saveState() {
 	Lib.assertTrue(Machine.interrupt().disabled());
-	Lib.assertTrue(this == currentThread);
+	Lib.assertTrue(this == currentThread());
+
+	ThreadedKernel.scheduler.threadStopping(this);
     }
 
     private static class PingTest implements Runnable {
@@ -416,7 +660,7 @@ public class KThread {
 	    for (int i=0; i<5; i++) {
 		System.out.println("*** thread " + which + " looped "
 				   + i + " times");
-		currentThread.yield();
+		currentThread().yield();
 	    }
 	}
 
@@ -574,7 +818,7 @@ public class KThread {
 		KThread thread1=new KThread(new Runnable(){
 			public void run(){
 				for(int i=0;i<3;i++){
-					KThread.currentThread.yield();
+					KThread.currentThread().yield();
 					System.out.println("thread1");
 					
 				}
@@ -584,7 +828,7 @@ public class KThread {
 		KThread thread2=new KThread(new Runnable(){
 			public void run(){
 				for(int i=0;i<3;i++){
-					KThread.currentThread.yield();
+					KThread.currentThread().yield();
 					System.out.println("thread2");
 					
 				}
@@ -595,7 +839,7 @@ public class KThread {
 			public void run(){
 				thread1.join();
 				for(int i=0;i<3;i++){
-					KThread.currentThread.yield();
+					KThread.currentThread().yield();
 					System.out.println("thread3");
 				}
 			}
@@ -677,10 +921,28 @@ public class KThread {
     /** Number of times the KThread constructor was called. */
     private static int numCreated = 0;
 
-    private static ThreadQueue readyQueue = null;
-    private static KThread currentThread = null;
+    /** The processor suggested by <tt>setAffinity()</tt>, or -1. */
+    private int affinity = -1;
+    /** The processor this thread last ran on, or -1. */
+    private int lastProcessor = -1;
+
+    /** <tt>true</tt> if each processor has its own ready queue. */
+    private static boolean perProcessorQueues;
+    /** The ready queue of each processor, or just one shared queue. */
+    private static ThreadQueue[] readyQueues = null;
+    /** The number of threads in each ready queue. */
+    private static int[] numReadyThreads;
+    /** The last thread to join each ready queue that is still in it. */
+    private static KThread[] lastReady;
+    /** The threads that joined the same ready queue just before and after. */
+    private KThread prevReady = null, nextReady = null;
+    /** The number of threads in all the ready queues. */
+    private static int totalReadyThreads = 0;
+    /** The current thread of each processor. */
+    private static KThread[] currentThreads = null;
     private static KThread toBeDestroyed = null;
-    private static KThread idleThread = null;
+    /** The idle thread of each processor. */
+    private static KThread[] idleThreads = null;
 	private Lock condLock = new Lock();
 	private Condition cond1 = null;
 
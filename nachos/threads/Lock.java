@@ -18,6 +18,11 @@ import nachos.machine.*;
  * Also, only the thread that acquired a lock may release it. As with
  * semaphores, the API does not allow you to read the lock state (because the
  * value could change immediately after you read it).
+ *
+ * <p>
+ * <tt>tryAcquire()</tt> and <tt>acquire(ticks)</tt> give up if the lock
+ * does not become free in time. A thread that gives up no longer donates
+ * priority to the lock holder.
  */
 public class Lock {
     /**
@@ -50,6 +55,51 @@ public class Lock {
 	Machine.interrupt().restore(intStatus);
     }
 
+    /**
+     * Atomically acquire this lock if it is free, without waiting. The
+     * current thread must not already hold this lock.
+     *
+     * @return	<tt>true</tt> if the lock was acquired.
+     */
+    public boolean tryAcquire() {
+	return acquire(0);
+    }
+
+    /**
+     * Atomically acquire this lock, giving up once the specified number of
+     * ticks have passed. The current thread must not already hold this lock.
+     *
+     * @param	ticks	the most clock ticks to wait.
+     * @return	<tt>true</tt> if the lock was acquired, or <tt>false</tt> if
+     *		the time passed first.
+     */
+    public boolean acquire(long ticks) {
+	Lib.assertTrue(!isHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+	boolean acquired = true;
+
+	if (lockHolder != null) {
+	    if (ticks > 0) {
+		waitQueue.waitForAccess(thread);
+		acquired = ThreadedKernel.alarm.waitUntil(ticks, waitQueue);
+	    }
+	    else {
+		acquired = false;
+	    }
+	}
+	else {
+	    waitQueue.acquire(thread);
+	    lockHolder = thread;
+	}
+
+	Lib.assertTrue((lockHolder == thread) == acquired);
+
+	Machine.interrupt().restore(intStatus);
+	return acquired;
+    }
+
     /**
      * Atomically release this lock, allowing other threads to acquire it.
      */
@@ -73,6 +123,84 @@ public class Lock {
 	return (lockHolder == KThread.currentThread());
     }
 
+    /**
+     * Test if this module is working.
+     */
+    public static void selfTest() {
+	final Lock lock = new Lock();
+	final Semaphore held = new Semaphore(0);
+	final Semaphore done = new Semaphore(0);
+
+	final KThread holder = new KThread(new Runnable() {
+		public void run() {
+		    lock.acquire();
+		    held.V();
+		    done.P();
+		    lock.release();
+		}
+	    }).setName("lock holder");
+
+	boolean intStatus = Machine.interrupt().disable();
+	int priority = ThreadedKernel.scheduler.getPriority();
+	ThreadedKernel.scheduler.setPriority(holder,
+					     PriorityScheduler.priorityMinimum+1);
+	ThreadedKernel.scheduler.setPriority(PriorityScheduler.priorityMaximum);
+	Machine.interrupt().restore(intStatus);
+
+	holder.fork();
+	held.P();
+
+	intStatus = Machine.interrupt().disable();
+	int before = ThreadedKernel.scheduler.getEffectivePriority(holder);
+	Machine.interrupt().restore(intStatus);
+
+	// a timed acquire() gives up while the lock is held, and then no longer
+	// donates its priority to the holder
+	final int[] donated = new int[1];
+	KThread observer = new KThread(new Runnable() {
+		public void run() {
+		    ThreadedKernel.alarm.waitUntil(100);
+
+		    boolean intStatus = Machine.interrupt().disable();
+		    donated[0] =
+			ThreadedKernel.scheduler.getEffectivePriority(holder);
+		    Machine.interrupt().restore(intStatus);
+		}
+	    }).setName("donation observer");
+	observer.fork();
+
+	Lib.assertTrue(!lock.tryAcquire());
+	long start = Machine.timer().getTime();
+	Lib.assertTrue(!lock.acquire(1000));
+	Lib.assertTrue(Machine.timer().getTime() >= start+1000);
+	observer.join();
+
+	intStatus = Machine.interrupt().disable();
+	int after = ThreadedKernel.scheduler.getEffectivePriority(holder);
+	Machine.interrupt().restore(intStatus);
+
+	if (ThreadedKernel.scheduler instanceof PriorityScheduler)
+	    Lib.assertTrue(donated[0] > before);
+	Lib.assertTrue(after == before);
+
+	// but gets the lock if it is released in time
+	new KThread(new Runnable() {
+		public void run() {
+		    ThreadedKernel.alarm.waitUntil(100);
+		    done.V();
+		}
+	    }).setName("lock releaser").fork();
+
+	Lib.assertTrue(lock.acquire(1000000));
+	Lib.assertTrue(lock.isHeldByCurrentThread());
+	lock.release();
+	holder.join();
+
+	intStatus = Machine.interrupt().disable();
+	ThreadedKernel.scheduler.setPriority(priority);
+	Machine.interrupt().restore(intStatus);
+    }
+
     private KThread lockHolder = null;
     private ThreadQueue waitQueue =
 	ThreadedKernel.scheduler.newThreadQueue(true);
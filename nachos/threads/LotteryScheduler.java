@@ -2,11 +2,6 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.Random;
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
-
 /**
  * A scheduler that chooses threads using a lottery.
  *
@@ -55,81 +50,306 @@ public class LotteryScheduler extends PriorityScheduler {
         return (ThreadState) thread.schedulingState;
     }
 
+    /**
+     * Test if this module is working, using a scheduler of its own and
+     * threads that never run.
+     */
+    public static void selfTest() {
+        LotteryScheduler scheduler = new LotteryScheduler();
+
+        boolean intStatus = Machine.interrupt().disable();
+
+        KThread[] threads = new KThread[initialSlots*2 + 1];
+        for (int i=0; i<threads.length; i++)
+            threads[i] = new KThread().setName("lottery test " + i);
+
+        // while no waiting thread has any tickets, the one in the lowest
+        // slot wins, also once the queue has grown past its first slots
+        ThreadQueue queue = scheduler.newThreadQueue(false);
+
+        for (int i=0; i<threads.length; i++) {
+            scheduler.setPriority(threads[i], 0);
+            queue.waitForAccess(threads[i]);
+        }
+        for (int i=0; i<initialSlots; i++)
+            Lib.assertTrue(queue.cancelWait(threads[i]));
+        for (int i=initialSlots; i<threads.length; i++)
+            Lib.assertTrue(queue.nextThread() == threads[i]);
+        Lib.assertTrue(queue.nextThread() == null);
+
+        // holding lotteries uses up the random numbers that would otherwise
+        // go to the timer, so only do it when the kernel holds them anyway
+        if (ThreadedKernel.scheduler.getClass() == LotteryScheduler.class) {
+            // threads win in proportion to their tickets, and a thread with
+            // none never wins
+            int[] wins = new int[threads.length];
+            int tickets = 0;
+
+            for (int i=0; i<threads.length; i++) {
+                scheduler.setPriority(threads[i], i%5);
+                tickets += i%5;
+                queue.waitForAccess(threads[i]);
+            }
+
+            int draws = 40000;
+            for (int i=0; i<draws; i++) {
+                KThread winner = queue.nextThread();
+                for (int j=0; j<threads.length; j++) {
+                    if (threads[j] == winner)
+                        wins[j]++;
+                }
+                queue.waitForAccess(winner);
+            }
+
+            // allow a fifth either way of each thread's fair share
+            for (int i=0; i<threads.length; i++) {
+                int expected = draws * (i%5) / tickets;
+                Lib.assertTrue(Math.abs(wins[i] - expected) <= expected/5);
+            }
+        }
+
+        // tickets are donated through queues, and add up
+        KThread holder = new KThread().setName("donation test holder");
+        KThread two = new KThread().setName("donation test two");
+        KThread three = new KThread().setName("donation test three");
+        scheduler.setPriority(holder, 1);
+        scheduler.setPriority(two, 2);
+        scheduler.setPriority(three, 3);
+
+        ThreadQueue lock = scheduler.newThreadQueue(true);
+        lock.acquire(holder);
+        lock.waitForAccess(two);
+        lock.waitForAccess(three);
+        Lib.assertTrue(scheduler.getEffectivePriority(holder) == 6);
+
+        Lib.assertTrue(lock.cancelWait(three));
+        Lib.assertTrue(scheduler.getEffectivePriority(holder) == 3);
+
+        // a waiting thread's new tickets are passed on, and once it acquires
+        // the queue it stops donating (with no tickets left waiting, no
+        // lottery is held)
+        scheduler.setPriority(two, 0);
+        Lib.assertTrue(scheduler.getEffectivePriority(holder) == 1);
+        lock.waitForAccess(three);
+        Lib.assertTrue(scheduler.getEffectivePriority(holder) == 4);
+
+        Lib.assertTrue(lock.cancelWait(three));
+        Lib.assertTrue(lock.nextThread() == two);
+        Lib.assertTrue(scheduler.getEffectivePriority(holder) == 1);
+        Lib.assertTrue(scheduler.getEffectivePriority(two) == 0);
+
+        Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that holds a lottery among its waiting threads.
+     *
+     * <p>
+     * Each waiting thread has a slot, and the tickets of the slots are kept
+     * in a Fenwick (binary indexed) tree, so that adding, removing or
+     * changing the tickets of a thread and drawing the winning ticket all
+     * take time logarithmic in the number of slots. Slots freed by threads
+     * that leave the queue are reused by threads that arrive later. A second
+     * Fenwick tree counts the threads in the slots, so that the lowest one
+     * can be found just as fast when nobody has any tickets.
+     */
     protected class LotteryQueue extends PriorityScheduler.PriorityQueue {
+        /** The waiting thread in each slot, or <tt>null</tt> if it is free. */
+        private ThreadState[] slots = new ThreadState[initialSlots];
+        /**
+         * The Fenwick tree over the tickets of the slots. Entry <i>i</i>
+         * (numbered from 1) is the total of the slots from <i>i - (i &amp;
+         * -i)</i> up to <i>i - 1</i>.
+         */
+        private int[] tree = new int[initialSlots+1];
+        /** The same over the number of waiting threads in each slot. */
+        private int[] occupied = new int[initialSlots+1];
+        /** The number of slots that have ever been used. */
+        private int usedSlots = 0;
+        /** Slots below <tt>usedSlots</tt> that are free again. */
+        private int[] freeSlots = new int[initialSlots];
+        private int numFreeSlots = 0;
+
+        /** The total tickets of all the waiting threads. */
+        protected int tickets = 0;
+
         LotteryQueue(boolean transferPriority) {
             super(transferPriority);
         }
 
-        protected ThreadState pickNextThread() {
-            // implement me
-            ThreadState returnThreadState = null;
-            int sum = 0;
+        protected boolean isEmpty() {
+            return usedSlots == numFreeSlots;
+        }
+
+        protected void add(PriorityScheduler.ThreadState state) {
+            ThreadState lotteryState = (ThreadState) state;
 
-            for (KThread kThread : waitQueue) {
-                ThreadState thisThreadState = getThreadState(kThread);
-                sum += thisThreadState.getEffectivePriority();
+            int slot;
+            if (numFreeSlots > 0) {
+                slot = freeSlots[--numFreeSlots];
+            }
+            else {
+                if (usedSlots == slots.length)
+                    grow();
+                slot = usedSlots++;
             }
 
-            Random random = new Random();
-            int lotteryValue = random.nextInt(sum) + 1;
+            slots[slot] = lotteryState;
+            lotteryState.slot = slot;
+            lotteryState.queuedPriority = lotteryState.getEffectivePriority();
 
-            sum = 0;
+            update(occupied, slot, 1);
+            addTickets(slot, lotteryState.queuedPriority);
+        }
 
-            for (KThread kThread : waitQueue) {
-                ThreadState thisThreadState = getThreadState(kThread);
-                sum += thisThreadState.getEffectivePriority();
-                if (sum >= lotteryValue) {
-                    returnThreadState = thisThreadState;
-                    break;
-                }
-            }
+        protected void remove(PriorityScheduler.ThreadState state) {
+            ThreadState lotteryState = (ThreadState) state;
+            int slot = lotteryState.slot;
 
-            return returnThreadState;
+            update(occupied, slot, -1);
+            addTickets(slot, -lotteryState.queuedPriority);
+
+            slots[slot] = null;
+            freeSlots[numFreeSlots++] = slot;
         }
 
-        public int getEffectivePriority() {
-            //added by me
+        protected void reposition(PriorityScheduler.ThreadState state) {
+            ThreadState lotteryState = (ThreadState) state;
+            int newTickets = lotteryState.getEffectivePriority();
+
+            addTickets(lotteryState.slot,
+                       newTickets - lotteryState.queuedPriority);
+            lotteryState.queuedPriority = newTickets;
+        }
+
+        /**
+         * Hold a lottery among the waiting threads, using the random number
+         * generator in <tt>Lib</tt>. If no waiting thread has any tickets,
+         * the thread in the lowest slot wins.
+         */
+        protected ThreadState pickNextThread() {
+            if (isEmpty())
+                return null;
+
+            if (tickets == 0)
+                return slots[findSlot(occupied, 0)];
+
+            return slots[findSlot(tree, Lib.random(tickets))];
+        }
+
+        protected int computeDonation() {
             if (transferPriority == false)
                 return priorityMinimum;
-            cachedEffectivePriority = priorityMinimum;
-            for (KThread kThread : waitQueue) {
-                int thisEffectivePriority = getThreadState(kThread).getEffectivePriority();
-                /*if (thisEffectivePriority > cachedEffectivePriority)
-                    cachedEffectivePriority = thisEffectivePriority;*/
-                cachedEffectivePriority += thisEffectivePriority;
+
+            return tickets;
+        }
+
+        /**
+         * Add the specified number of tickets to a slot and to the total.
+         */
+        private void addTickets(int slot, int delta) {
+            if (delta == 0)
+                return;
+
+            update(tree, slot, delta);
+            tickets += delta;
+        }
+
+        /**
+         * Add to the count of a slot in a Fenwick tree over the slots.
+         */
+        private void update(int[] fenwick, int slot, int delta) {
+            for (int i=slot+1; i<fenwick.length; i+=i&-i)
+                fenwick[i] += delta;
+        }
+
+        /**
+         * Find the slot that holds the specified unit of a Fenwick tree's
+         * total, counting from 0, by descending the tree and subtracting the
+         * total of every subtree skipped over.
+         */
+        private int findSlot(int[] fenwick, int unit) {
+            int index = 0;
+
+            for (int step=Integer.highestOneBit(slots.length); step>0;
+                 step>>=1) {
+                if (index+step <= slots.length &&
+                    fenwick[index+step] <= unit) {
+                    index += step;
+                    unit -= fenwick[index];
+                }
+            }
+
+            return index;
+        }
+
+        /**
+         * Double the number of slots, rebuilding the trees in linear time.
+         */
+        private void grow() {
+            int capacity = slots.length*2;
+
+            ThreadState[] newSlots = new ThreadState[capacity];
+            System.arraycopy(slots, 0, newSlots, 0, slots.length);
+            slots = newSlots;
+
+            int[] newFreeSlots = new int[capacity];
+            System.arraycopy(freeSlots, 0, newFreeSlots, 0, numFreeSlots);
+            freeSlots = newFreeSlots;
+
+            tree = new int[capacity+1];
+            occupied = new int[capacity+1];
+            for (int i=1; i<=capacity; i++) {
+                if (slots[i-1] != null) {
+                    tree[i] += slots[i-1].queuedPriority;
+                    occupied[i]++;
+                }
+
+                int parent = i + (i&-i);
+                if (parent <= capacity) {
+                    tree[parent] += tree[i];
+                    occupied[parent] += occupied[i];
+                }
+            }
+        }
+
+        public void print() {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            for (int slot=0; slot<usedSlots; slot++) {
+                if (slots[slot] != null)
+                    System.out.print(" " + slots[slot].thread + "(" +
+                                     slots[slot].queuedPriority + ")");
             }
-            isQueueDirty = false;
-            return cachedEffectivePriority;
+            System.out.println();
         }
     }
 
 
     protected class ThreadState extends PriorityScheduler.ThreadState {
+        /** The total tickets donated by the queues this thread holds. */
+        protected int donatedTickets = 0;
+
+        /** The slot this thread occupies in the queue it is waiting on. */
+        protected int slot;
+
         public ThreadState(KThread thread) {
             super(thread);
         }
 
-        /**
-         * Return the effective priority of the associated thread.
-         *
-         * @return	the effective priority of the associated thread.
-         */
-        public int getEffectivePriority() {
-            // implement me
-            //return priority;
-
-            if (isThreadDirty) {
-                cachedEffectivePriority = this.priority;
-                for (ThreadQueue queue : resources) {
-                    int thisQueueEffectivePriority = ((PriorityQueue) queue).getEffectivePriority();
-                    /*if (thisQueueEffectivePriority > this.cachedEffectivePriority) {
-                        cachedEffectivePriority = thisQueueEffectivePriority;
-                    }*/
-                    cachedEffectivePriority += thisQueueEffectivePriority;
-                }
-            }
-            isThreadDirty = false;
-            return cachedEffectivePriority;
+        protected void addDonation(int donation) {
+            donatedTickets += donation;
+        }
+
+        protected void removeDonation(int donation) {
+            donatedTickets -= donation;
+        }
+
+        protected int computeEffectivePriority() {
+            return priority + donatedTickets;
         }
     }
+
+    /** The number of slots a new lottery queue starts with. */
+    private static final int initialSlots = 8;
 }
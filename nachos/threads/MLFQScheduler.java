@@ -0,0 +1,418 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A multi-level feedback queue scheduler, which favours threads that use
+ * little of the processor over threads that use a lot of it.
+ *
+ * <p>
+ * There are <tt>MLFQScheduler.levels</tt> levels (3 by default), and threads
+ * start at level 0, the highest. A thread at level <i>i</i> has a quantum of
+ * <tt>MLFQScheduler.quantum</tt> (1000 by default) times 2<sup><i>i</i></sup>
+ * ticks, measured with <tt>Timer.getTime()</tt> from the moment it starts
+ * running, and summed over every time it runs. A thread that uses up its
+ * quantum drops a level, and its use is counted again from zero. The timer
+ * interrupt preempts a thread that has used up its quantum, or that is below
+ * a ready thread.
+ *
+ * <p>
+ * A thread that blocks waiting for I/O rises a level, so interactive threads
+ * stay near the top. Every <tt>MLFQScheduler.boostInterval</tt> ticks
+ * (100000 by default) every thread is put back at level 0, so that threads
+ * at the bottom cannot starve.
+ *
+ * <p>
+ * Each queue dequeues the thread that has been waiting longest at its
+ * highest level. Priority is not transferred.
+ */
+public class MLFQScheduler extends Scheduler {
+    /**
+     * Allocate a new MLFQ scheduler.
+     */
+    public MLFQScheduler() {
+	levels = Config.getInteger("MLFQScheduler.levels", 3);
+	quantum = Config.getInteger("MLFQScheduler.quantum", 1000);
+	boostInterval = Config.getInteger("MLFQScheduler.boostInterval",
+					  100000);
+
+	Lib.assertTrue(levels >= 1 && levels <= 32,
+		       "bad value for MLFQScheduler.levels");
+	Lib.assertTrue(quantum > 0, "bad value for MLFQScheduler.quantum");
+	Lib.assertTrue(boostInterval > 0,
+		       "bad value for MLFQScheduler.boostInterval");
+
+	nextBoost = boostInterval;
+    }
+
+    /**
+     * Allocate a new MLFQ thread queue.
+     *
+     * @param	transferPriority	ignored, since this scheduler does not
+     *					transfer priority.
+     * @return	a new MLFQ thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new MLFQQueue();
+    }
+
+    public void threadRunning(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	ThreadState state = getThreadState(thread);
+	state.running = true;
+	state.runStart = Machine.timer().getTime();
+    }
+
+    public void threadStopping(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	ThreadState state = getThreadState(thread);
+	state.charge();
+	state.running = false;
+    }
+
+    public boolean shouldPreempt() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	long time = Machine.timer().getTime();
+	if (time >= nextBoost) {
+	    boostEpoch++;
+	    nextBoost = time + boostInterval;
+	}
+
+	// the ready queue of this processor
+	MLFQQueue readyQueue = (MLFQQueue) KThread.currentReadyQueue();
+	if (readyQueue == null || readyQueue.isEmpty())
+	    return false;
+
+	ThreadState state = getThreadState(KThread.currentThread());
+	if (!state.running)
+	    return false;
+
+	int level = state.getLevel();
+
+	return readyQueue.topLevel() < level ||
+	    state.used + (time - state.runStart) >= quantum(level);
+    }
+
+    public void waitingForIO() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	ThreadState state = getThreadState(KThread.currentThread());
+	state.charge();
+	if (state.getLevel() > 0)
+	    state.level--;
+	state.used = 0;
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Test if this module is working, using a scheduler of its own and
+     * threads that never really run.
+     */
+    public static void selfTest() {
+	MLFQScheduler scheduler = new MLFQScheduler();
+	if (scheduler.levels == 1)
+	    return;
+
+	ThreadQueue queue = scheduler.newThreadQueue(false);
+	KThread hog = new KThread().setName("MLFQ test hog");
+	KThread first = new KThread().setName("MLFQ test first");
+	KThread second = new KThread().setName("MLFQ test second");
+
+	// pretend the hog runs for a whole quantum
+	boolean intStatus = Machine.interrupt().disable();
+	scheduler.threadRunning(hog);
+	Machine.interrupt().restore(intStatus);
+
+	ThreadedKernel.alarm.waitUntil(scheduler.quantum(0));
+
+	intStatus = Machine.interrupt().disable();
+	scheduler.threadStopping(hog);
+
+	// it drops below the threads that have not used theirs, even though
+	// it came first
+	queue.waitForAccess(hog);
+	queue.waitForAccess(first);
+	queue.waitForAccess(second);
+	Lib.assertTrue(queue.nextThread() == first);
+	Lib.assertTrue(queue.nextThread() == second);
+	Lib.assertTrue(queue.nextThread() == hog);
+
+	// a thread can leave from the middle of its level
+	queue.waitForAccess(first);
+	queue.waitForAccess(second);
+	queue.waitForAccess(hog);
+	Lib.assertTrue(queue.cancelWait(second));
+	Lib.assertTrue(queue.nextThread() == first);
+	Lib.assertTrue(queue.nextThread() == hog);
+	Lib.assertTrue(queue.nextThread() == null);
+
+	// after a boost it is back at level 0, with the others
+	scheduler.boostEpoch++;
+	queue.waitForAccess(hog);
+	queue.waitForAccess(first);
+	Lib.assertTrue(queue.nextThread() == hog);
+	Lib.assertTrue(queue.nextThread() == first);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Return the quantum of a thread at the specified level.
+     */
+    private long quantum(int level) {
+	return (long) quantum << level;
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> with a FIFO list of waiting threads for each
+     * level.
+     */
+    protected class MLFQQueue extends ThreadQueue {
+	MLFQQueue() {
+	    heads = new ThreadState[levels];
+	    tails = new ThreadState[levels];
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+
+	    // a thread that yields is filed at the level its time so far
+	    // leaves it at
+	    state.charge();
+	    state.running = false;
+
+	    catchUp();
+
+	    int level = state.getLevel();
+	    state.next = null;
+	    state.prev = tails[level];
+	    if (tails[level] == null)
+		heads[level] = state;
+	    else
+		tails[level].next = state;
+	    tails[level] = state;
+
+	    state.waitingOn = this;
+	    state.queuedLevel = level;
+	    state.queuedEpoch = epoch;
+
+	    occupied |= 1 << level;
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    if (isEmpty())
+		return null;
+
+	    int level = topLevel();
+	    ThreadState state = heads[level];
+
+	    heads[level] = state.next;
+	    if (heads[level] == null) {
+		tails[level] = null;
+		occupied &= ~(1 << level);
+	    }
+	    else {
+		heads[level].prev = null;
+	    }
+	    state.next = null;
+	    state.waitingOn = null;
+
+	    return state.thread;
+	}
+
+	public boolean cancelWait(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    if (state.waitingOn != this)
+		return false;
+
+	    // a boost since the thread was filed moved it to level 0
+	    catchUp();
+	    int level = (state.queuedEpoch == epoch) ? state.queuedLevel : 0;
+
+	    if (state.prev == null)
+		heads[level] = state.next;
+	    else
+		state.prev.next = state.next;
+
+	    if (state.next == null)
+		tails[level] = state.prev;
+	    else
+		state.next.prev = state.prev;
+
+	    if (heads[level] == null)
+		occupied &= ~(1 << level);
+
+	    state.prev = state.next = null;
+	    state.waitingOn = null;
+
+	    return true;
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    Lib.assertTrue(isEmpty());
+	}
+
+	/**
+	 * Return <tt>true</tt> if no threads are waiting on this queue.
+	 */
+	boolean isEmpty() {
+	    return occupied == 0;
+	}
+
+	/**
+	 * Return the highest level of any waiting thread. The queue must not
+	 * be empty.
+	 */
+	int topLevel() {
+	    catchUp();
+	    return Integer.numberOfTrailingZeros(occupied);
+	}
+
+	/**
+	 * If every thread has been put back at level 0 since this queue last
+	 * looked, move all the waiting threads to level 0, in order of level.
+	 */
+	private void catchUp() {
+	    if (epoch == boostEpoch)
+		return;
+
+	    epoch = boostEpoch;
+
+	    for (int level=1; level<levels; level++) {
+		if (heads[level] == null)
+		    continue;
+
+		if (tails[0] == null)
+		    heads[0] = heads[level];
+		else
+		    tails[0].next = heads[level];
+		heads[level].prev = tails[0];
+		tails[0] = tails[level];
+
+		heads[level] = tails[level] = null;
+	    }
+
+	    if (occupied != 0)
+		occupied = 1;
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int level=0; level<levels; level++) {
+		for (ThreadState state=heads[level]; state!=null;
+		     state=state.next)
+		    System.out.print(" " + state.thread + "(" + level + ")");
+	    }
+	    System.out.println();
+	}
+
+	private ThreadState[] heads, tails;
+	/** Bit <i>i</i> is set if some thread is waiting at level <i>i</i>. */
+	private int occupied = 0;
+	/** The boost epoch the levels of the waiting threads are from. */
+	private int epoch = boostEpoch;
+    }
+
+    /**
+     * The scheduling state of a thread: its level, and how much of its
+     * quantum it has used.
+     */
+    protected class ThreadState {
+	/**
+	 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+	 * specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public ThreadState(KThread thread) {
+	    this.thread = thread;
+	}
+
+	/**
+	 * Return the level of this thread, first putting it back at level 0
+	 * if everyone has been boosted since it last looked.
+	 */
+	int getLevel() {
+	    if (epoch != boostEpoch) {
+		epoch = boostEpoch;
+		level = 0;
+		used = 0;
+	    }
+
+	    return level;
+	}
+
+	/**
+	 * If this thread is running, add the time since it was last charged to
+	 * what it has used, and drop it a level if it has used up its quantum.
+	 */
+	void charge() {
+	    if (!running)
+		return;
+
+	    long time = Machine.timer().getTime();
+	    getLevel();
+	    used += time - runStart;
+	    runStart = time;
+
+	    if (used >= quantum(level)) {
+		if (level < levels-1)
+		    level++;
+		used = 0;
+	    }
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** The level of the thread, 0 being the highest. */
+	protected int level = 0;
+	/** The ticks of its quantum the thread has used at this level. */
+	protected long used = 0;
+	/** <tt>true</tt> if the thread is running on a processor. */
+	protected boolean running = false;
+	/** The time the thread was last charged while running. */
+	protected long runStart;
+	/** The boost epoch <tt>level</tt> and <tt>used</tt> are from. */
+	private int epoch = boostEpoch;
+	/** The neighbours of the thread at its level of the queue. */
+	private ThreadState prev = null, next = null;
+	/** The queue the thread is waiting on, if any. */
+	private MLFQQueue waitingOn = null;
+	/** The level the thread was filed at, and the boost epoch of that. */
+	private int queuedLevel, queuedEpoch;
+    }
+
+    private int levels;
+    private int quantum;
+    private int boostInterval;
+
+    /** Incremented every time all threads are put back at level 0. */
+    private int boostEpoch = 0;
+    /** The time of the next boost. */
+    private long nextBoost;
+}
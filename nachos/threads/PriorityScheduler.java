@@ -2,8 +2,6 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.LinkedList;
-
 /**
  * A scheduler that chooses threads based on their priorities.
  *
@@ -94,6 +92,70 @@ public class PriorityScheduler extends Scheduler {
 		return true;
     }
 
+    /**
+     * Test if this module is working, using a scheduler of its own and
+     * threads that never run.
+     */
+    public static void selfTest() {
+	PriorityScheduler scheduler = new PriorityScheduler();
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	// threads leave in order of priority, and in the order they came
+	// among threads of the same priority; a waiting thread whose priority
+	// changes goes to the back of its new priority
+	int[] priorities = { 1, 5, 3, 5, 0, 7, 3 };
+	KThread[] threads = new KThread[priorities.length];
+	ThreadQueue queue = scheduler.newThreadQueue(false);
+
+	for (int i=0; i<threads.length; i++) {
+	    threads[i] = new KThread().setName("priority test " + i);
+	    scheduler.setPriority(threads[i], priorities[i]);
+	    queue.waitForAccess(threads[i]);
+	}
+	scheduler.setPriority(threads[2], 5);
+
+	int[] order = { 5, 1, 3, 2, 6, 0, 4 };
+	for (int i=0; i<order.length; i++)
+	    Lib.assertTrue(queue.nextThread() == threads[order[i]]);
+	Lib.assertTrue(queue.nextThread() == null);
+
+	// priority is donated along a chain of queues, follows changes to the
+	// waiters' priorities, and is taken back when they stop waiting
+	KThread low = new KThread().setName("donation test low");
+	KThread mid = new KThread().setName("donation test mid");
+	KThread high = new KThread().setName("donation test high");
+	scheduler.setPriority(low, 1);
+	scheduler.setPriority(mid, 3);
+	scheduler.setPriority(high, 6);
+
+	ThreadQueue first = scheduler.newThreadQueue(true);
+	ThreadQueue second = scheduler.newThreadQueue(true);
+	first.acquire(low);
+	second.acquire(mid);
+
+	first.waitForAccess(mid);
+	Lib.assertTrue(scheduler.getEffectivePriority(low) == 3);
+	second.waitForAccess(high);
+	Lib.assertTrue(scheduler.getEffectivePriority(mid) == 6);
+	Lib.assertTrue(scheduler.getEffectivePriority(low) == 6);
+
+	scheduler.setPriority(high, 2);
+	Lib.assertTrue(scheduler.getEffectivePriority(low) == 3);
+	scheduler.setPriority(high, 7);
+	Lib.assertTrue(scheduler.getEffectivePriority(low) == 7);
+
+	Lib.assertTrue(second.cancelWait(high));
+	Lib.assertTrue(scheduler.getEffectivePriority(mid) == 3);
+	Lib.assertTrue(scheduler.getEffectivePriority(low) == 3);
+
+	Lib.assertTrue(first.nextThread() == mid);
+	Lib.assertTrue(scheduler.getEffectivePriority(low) == 1);
+	Lib.assertTrue(scheduler.getEffectivePriority(mid) == 3);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
     /**
      * The default priority for a new thread. Do not change this value.
      */
@@ -122,6 +184,18 @@ public class PriorityScheduler extends Scheduler {
 
     /**
      * A <tt>ThreadQueue</tt> that sorts threads by priority.
+     *
+     * <p>
+     * Waiting threads are kept in one FIFO bucket per effective priority,
+     * with a bitmap of the buckets that are occupied, so adding a thread,
+     * removing a thread and finding the next thread all take constant time.
+     * When the effective priority of a waiting thread changes, the thread is
+     * moved to the back of the bucket for its new priority.
+     *
+     * <p>
+     * A queue that transfers priority keeps its current donation recorded in
+     * its holder's <tt>ThreadState</tt>, and only tells the holder when the
+     * donation actually changes.
      */
     protected class PriorityQueue extends ThreadQueue {
 		/**
@@ -130,13 +204,21 @@ public class PriorityScheduler extends Scheduler {
 		 */
 		public boolean transferPriority;
 
-		protected int cachedEffectivePriority = priorityMinimum;
-
+		/** The thread that last acquired this queue, if any. */
 		protected ThreadState holder = null;
 
-		protected boolean isQueueDirty = false;
+		/**
+		 * The priority this queue currently donates to its holder, as
+		 * recorded in the holder's donations.
+		 */
+		protected int donation = priorityMinimum;
 
-		protected LinkedList<KThread> waitQueue = new LinkedList<KThread>();
+		/** The first waiting thread in each priority bucket. */
+		private ThreadState[] heads = new ThreadState[priorityMaximum+1];
+		/** The last waiting thread in each priority bucket. */
+		private ThreadState[] tails = new ThreadState[priorityMaximum+1];
+		/** Bit <i>p</i> is set if bucket <i>p</i> is not empty. */
+		private int occupied = 0;
 
 		PriorityQueue(boolean transferPriority) {
 			this.transferPriority = transferPriority;
@@ -151,33 +233,55 @@ public class PriorityScheduler extends Scheduler {
 		public void acquire(KThread thread) {
 			Lib.assertTrue(Machine.interrupt().disabled());
 
-			if (this.holder != null && this.transferPriority) {
-				this.holder.resources.remove(this);
-			}
+			ThreadState oldHolder = this.holder;
+			if (oldHolder != null && transferPriority)
+				oldHolder.removeDonation(donation);
 
 			this.holder = getThreadState(thread);
+			this.donation = computeDonation();
+			if (transferPriority)
+				holder.addDonation(donation);
+
+			holder.acquire(this);
 
-			getThreadState(thread).acquire(this);
+			if (oldHolder != null && oldHolder != holder)
+				oldHolder.updateEffectivePriority();
+			holder.updateEffectivePriority();
 		}
 
 		//PriorityQueue.nextThread(), return nextThread
 		public KThread nextThread() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me
 
-			if (this.waitQueue.isEmpty()) {
+			if (this.isEmpty()) {
 				return null;
 			}
 
 			ThreadState firstThread = this.pickNextThread();
-			if (firstThread != null) {
-				this.acquire(firstThread.thread);
-				waitQueue.remove(firstThread);
-			}
+			this.remove(firstThread);
+			this.acquire(firstThread.thread);
 
 			return firstThread.thread;
 		}
 
+		public boolean cancelWait(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = getThreadState(thread);
+			if (state.currentWaitingQueue != this)
+				return false;
+
+			this.remove(state);
+			state.currentWaitingQueue = null;
+
+			// the holder loses whatever the thread was donating
+			ThreadState holder = this.updateDonation();
+			if (holder != null)
+				holder.updateEffectivePriority();
+
+			return true;
+		}
+
 		/**
 		 * Return the next thread that <tt>nextThread()</tt> would return,
 		 * without modifying the state of this queue.
@@ -186,48 +290,138 @@ public class PriorityScheduler extends Scheduler {
 		 *		return.
 		 */
 		protected ThreadState pickNextThread() {
-			// implement me
-			ThreadState returnThreadState = null;
-
-			for (KThread kThread : waitQueue) {
-				ThreadState thisThreadState = getThreadState(kThread);
-				if (returnThreadState == null ||
-						thisThreadState.getEffectivePriority() > returnThreadState.getEffectivePriority()) {
-					returnThreadState = thisThreadState;
-				}
-			}
+			if (occupied == 0)
+				return null;
 
-			return returnThreadState;
+			return heads[topPriority()];
 		}
 
-		public void setQueueDirty() {
-			if (this.transferPriority == false)
-				return;
-			isQueueDirty = true;
-			if (this.holder != null) {
-				this.holder.setThreadDirty();
+		/**
+		 * Return the highest effective priority of any waiting thread. The
+		 * queue must not be empty.
+		 */
+		private int topPriority() {
+			return 31 - Integer.numberOfLeadingZeros(occupied);
+		}
+
+		/**
+		 * Return <tt>true</tt> if no threads are waiting on this queue.
+		 */
+		protected boolean isEmpty() {
+			return occupied == 0;
+		}
+
+		/**
+		 * Add a thread to the back of the bucket for its effective priority.
+		 *
+		 * @param	state	the thread that is now waiting on this queue.
+		 */
+		protected void add(ThreadState state) {
+			int priority = state.getEffectivePriority();
+			Lib.assertTrue(priority >= priorityMinimum &&
+				       priority <= priorityMaximum);
+
+			state.queuedPriority = priority;
+			state.prevWaiter = tails[priority];
+			state.nextWaiter = null;
+
+			if (tails[priority] == null)
+				heads[priority] = state;
+			else
+				tails[priority].nextWaiter = state;
+			tails[priority] = state;
+
+			occupied |= 1 << priority;
+		}
+
+		/**
+		 * Remove a waiting thread from its bucket.
+		 *
+		 * @param	state	a thread that is waiting on this queue.
+		 */
+		protected void remove(ThreadState state) {
+			int priority = state.queuedPriority;
+
+			if (state.prevWaiter == null)
+				heads[priority] = state.nextWaiter;
+			else
+				state.prevWaiter.nextWaiter = state.nextWaiter;
+
+			if (state.nextWaiter == null)
+				tails[priority] = state.prevWaiter;
+			else
+				state.nextWaiter.prevWaiter = state.prevWaiter;
+
+			if (heads[priority] == null)
+				occupied &= ~(1 << priority);
+
+			state.prevWaiter = state.nextWaiter = null;
+		}
+
+		/**
+		 * Move a waiting thread whose effective priority has changed to the
+		 * bucket for its new effective priority.
+		 *
+		 * @param	state	a thread that is waiting on this queue.
+		 */
+		protected void reposition(ThreadState state) {
+			if (state.getEffectivePriority() != state.queuedPriority) {
+				remove(state);
+				add(state);
 			}
 		}
 
-		public int getEffectivePriority() {
-			//added by me
-			if (transferPriority == false)
+		/**
+		 * Return the priority this queue should donate to its holder, given
+		 * the threads now waiting on it.
+		 *
+		 * @return	the highest effective priority of any waiting thread,
+		 *		or <tt>priorityMinimum</tt> if there is none or this
+		 *		queue does not transfer priority.
+		 */
+		protected int computeDonation() {
+			if (transferPriority == false || occupied == 0)
 				return priorityMinimum;
-			if (isQueueDirty) {
-				cachedEffectivePriority = priorityMinimum;
-				for (KThread kThread : waitQueue) {
-					int thisEffectivePriority = getThreadState(kThread).getEffectivePriority();
-					if (thisEffectivePriority > cachedEffectivePriority)
-						cachedEffectivePriority = thisEffectivePriority;
-				}
+
+			// waiting threads are always filed under their current effective
+			// priority, so the top bucket is the donation
+			return topPriority();
+		}
+
+		/**
+		 * Recompute the donation of this queue after its waiters changed,
+		 * and move the holder's record of it if it is different.
+		 *
+		 * @return	the holder, if its donations changed, or <tt>null</tt>
+		 *		if nothing further needs updating.
+		 */
+		protected ThreadState updateDonation() {
+			int newDonation = computeDonation();
+			if (newDonation == donation)
+				return null;
+
+			if (holder != null) {
+				holder.removeDonation(donation);
+				holder.addDonation(newDonation);
 			}
-			isQueueDirty = false;
-			return cachedEffectivePriority;
+			donation = newDonation;
+
+			return holder;
+		}
+
+		public int getEffectivePriority() {
+			return donation;
 		}
 
 		public void print() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me (if you want)
+
+			for (int priority=priorityMaximum; priority>=priorityMinimum; priority--) {
+				for (ThreadState state=heads[priority]; state!=null;
+				     state=state.nextWaiter)
+					System.out.print(" " + state.thread + "(" + priority + ")");
+			}
+			System.out.println();
 		}
 
     }
@@ -237,6 +431,13 @@ public class PriorityScheduler extends Scheduler {
      * priority, its effective priority, any objects it owns, and the queue
      * it's waiting for, if any.
      *
+     * <p>
+     * The effective priority is always up to date. Every queue the thread
+     * holds records its donation here, and whenever the effective priority
+     * changes the new value is pushed to the queue the thread is waiting on,
+     * then to that queue's holder, and so on, stopping at the first queue or
+     * thread that is not affected.
+     *
      * @see	nachos.threads.KThread#schedulingState
      */
     protected class ThreadState {
@@ -246,13 +447,22 @@ public class PriorityScheduler extends Scheduler {
 		/** The priority of the associated thread. */
 		protected int priority;
 
-		protected int cachedEffectivePriority;
+		protected int effectivePriority;
 
-		protected boolean isThreadDirty = false;
+		/**
+		 * For each priority, the number of queues held by this thread that
+		 * donate that priority.
+		 */
+		private int[] donations = new int[priorityMaximum+1];
+		/** Bit <i>p</i> is set if <tt>donations[p]</tt> is not zero. */
+		private int donated = 0;
 
-		protected LinkedList<ThreadQueue> resources = new LinkedList<>();
+		protected PriorityQueue currentWaitingQueue = null;
 
-		protected ThreadQueue currentWaitingQueue = null;
+		/** The bucket this thread is filed under in its waiting queue. */
+		protected int queuedPriority;
+		/** The neighbours of this thread in that bucket. */
+		protected ThreadState prevWaiter = null, nextWaiter = null;
 
 		/**
 		 * Allocate a new <tt>ThreadState</tt> object and associate it with the
@@ -263,8 +473,8 @@ public class PriorityScheduler extends Scheduler {
 		public ThreadState(KThread thread) {
 			this.thread = thread;
 
-			setPriority(priorityDefault);
-			cachedEffectivePriority = this.getPriority();
+			this.priority = priorityDefault;
+			this.effectivePriority = priorityDefault;
 		}
 
 		/**
@@ -282,19 +492,7 @@ public class PriorityScheduler extends Scheduler {
 		 * @return	the effective priority of the associated thread.
 		 */
 		public int getEffectivePriority() {
-			// implement me
-			//return priority;
-
-			if (isThreadDirty) {
-				for (ThreadQueue queue : resources) {
-					int thisQueueEffectivePriority = ((PriorityQueue) queue).getEffectivePriority();
-					if (thisQueueEffectivePriority > this.cachedEffectivePriority) {
-						cachedEffectivePriority = thisQueueEffectivePriority;
-					}
-				}
-			}
-			isThreadDirty = false;
-			return cachedEffectivePriority;
+			return effectivePriority;
 		}
 
 		/**
@@ -304,23 +502,71 @@ public class PriorityScheduler extends Scheduler {
 		 */
 		public void setPriority(int priority) {
 			if (this.priority == priority)
-			return;
+				return;
 
 			this.priority = priority;
 
-			// implement me
-			this.setThreadDirty();
+			updateEffectivePriority();
 		}
 
-		public void setThreadDirty() {
-			//added by me
-			if (isThreadDirty)
-				return;
-			isThreadDirty = true;
-			if (currentWaitingQueue != null) {
-				((PriorityQueue)currentWaitingQueue).setQueueDirty();
+		/**
+		 * Record that a queue held by this thread donates the specified
+		 * priority. The effective priority is not updated.
+		 *
+		 * @param	donation	the priority donated.
+		 */
+		protected void addDonation(int donation) {
+			if (donations[donation]++ == 0)
+				donated |= 1 << donation;
+		}
+
+		/**
+		 * Forget a donation recorded by <tt>addDonation()</tt>. The
+		 * effective priority is not updated.
+		 *
+		 * @param	donation	the priority that was donated.
+		 */
+		protected void removeDonation(int donation) {
+			if (--donations[donation] == 0)
+				donated &= ~(1 << donation);
+		}
+
+		/**
+		 * Return what the effective priority of this thread should be, given
+		 * its priority and the donations it has recorded.
+		 *
+		 * @return	the larger of the priority and the highest donation.
+		 */
+		protected int computeEffectivePriority() {
+			if (donated == 0)
+				return priority;
+
+			return Math.max(priority,
+					31 - Integer.numberOfLeadingZeros(donated));
+		}
+
+		/**
+		 * Recompute the effective priority of this thread and push any change
+		 * along the chain of queues being waited on and their holders, until
+		 * a queue's donation or a thread's effective priority is unaffected.
+		 */
+		protected void updateEffectivePriority() {
+			ThreadState state = this;
+
+			while (state != null) {
+				int newPriority = state.computeEffectivePriority();
+				if (newPriority == state.effectivePriority)
+					return;
+
+				state.effectivePriority = newPriority;
+
+				PriorityQueue waitQueue = state.currentWaitingQueue;
+				if (waitQueue == null)
+					return;
+
+				waitQueue.reposition(state);
+				state = waitQueue.updateDonation();
 			}
-			return;
 		}
 
 		/**
@@ -336,13 +582,14 @@ public class PriorityScheduler extends Scheduler {
 		 * @see	nachos.threads.ThreadQueue#waitForAccess
 		 */
 		public void waitForAccess(PriorityQueue waitQueue) {
-			// implement me
-
 			Lib.assertTrue(Machine.interrupt().disabled());
-			waitQueue.waitQueue.add(this.thread);
-			waitQueue.setQueueDirty();
+
+			waitQueue.add(this);
 			currentWaitingQueue = waitQueue;
 
+			ThreadState holder = waitQueue.updateDonation();
+			if (holder != null)
+				holder.updateEffectivePriority();
 		}
 
 		/**
@@ -356,12 +603,9 @@ public class PriorityScheduler extends Scheduler {
 		 * @see	nachos.threads.ThreadQueue#nextThread
 		 */
 		public void acquire(PriorityQueue waitQueue) {
-			// implement me
 			if (waitQueue == currentWaitingQueue) {
 				currentWaitingQueue = null;
 			}
-			resources.add(waitQueue);
-			setThreadDirty();
 		}
 
     }
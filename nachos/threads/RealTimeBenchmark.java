@@ -0,0 +1,188 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A kernel that measures how many deadlines periodic control loops miss
+ * while CPU-bound threads are running. Three loops release a job every 4000,
+ * 6000 and 10000 ticks, each doing a fifth of its period of work and due by
+ * the end of the period. <tt>RealTimeBenchmark.hogs</tt> threads (4 by
+ * default) spend simulated time with interrupts enabled and only yield every
+ * 5000 ticks. The first hog takes a lock for the first 500 ticks of that,
+ * and the first loop needs the same lock for each job.
+ *
+ * <p>
+ * Each loop asks for a reservation for its jobs, with a quarter more budget
+ * than its work. If the scheduler does not admit it, the loop is given the
+ * highest priority instead and sleeps until each release with
+ * <tt>Alarm.waitUntil()</tt>. After <tt>RealTimeBenchmark.jobs</tt> jobs
+ * (100 by default) of the slowest loop, it prints how many jobs of each loop
+ * missed their deadlines and how late the latest one finished.
+ *
+ * <p>
+ * Run it by setting <tt>Kernel.kernel</tt> to
+ * <tt>nachos.threads.RealTimeBenchmark</tt>, and compare the priority and
+ * EDF schedulers.
+ */
+public class RealTimeBenchmark extends Benchmark {
+    /**
+     * Allocate a new real-time benchmark.
+     */
+    public RealTimeBenchmark() {
+	super();
+    }
+
+    /**
+     * Run the hogs and the control loops, and print the missed deadlines.
+     */
+    public void run() {
+	int numHogs = Config.getInteger("RealTimeBenchmark.hogs", 4);
+	int jobs = Config.getInteger("RealTimeBenchmark.jobs", 100);
+	Lib.assertTrue(numHogs >= 0 && jobs > 0);
+
+	Lock lock = new Lock();
+	Semaphore done = new Semaphore(0);
+
+	Hog[] hogs = new Hog[numHogs];
+	for (int i=0; i<numHogs; i++) {
+	    hogs[i] = new Hog(i == 0 ? lock : null, done);
+	    new KThread(hogs[i]).setName("hog " + i).fork();
+	}
+
+	long slowest = periods[periods.length-1];
+
+	ControlLoop[] loops = new ControlLoop[periods.length];
+	for (int i=0; i<periods.length; i++) {
+	    loops[i] = new ControlLoop(periods[i], (int) (jobs*slowest/periods[i]),
+				       i == 0 ? lock : null, done);
+	    new KThread(loops[i]).setName("loop " + i).fork();
+	}
+
+	for (int i=0; i<loops.length; i++)
+	    done.P();
+
+	for (int i=0; i<numHogs; i++)
+	    hogs[i].stop = true;
+	for (int i=0; i<numHogs; i++)
+	    done.P();
+
+	System.out.println(scheduler.getClass().getName() + ", " + numHogs +
+			   " hogs:");
+	for (int i=0; i<loops.length; i++) {
+	    ControlLoop loop = loops[i];
+
+	    System.out.println("period " + loop.period + (loop.reserved ?
+			       ", reserved" : ", unreserved") + ": missed " +
+			       loop.misses + " of " + loop.jobs +
+			       " deadlines, latest by " + loop.maxLateness +
+			       " ticks");
+	}
+    }
+
+    /** The periods of the control loops. */
+    private static final long[] periods = { 4000, 6000, 10000 };
+
+    /** How long a hog runs before it yields. */
+    private static final long hogTicks = 5000;
+    /** How long the first hog holds the lock each time. */
+    private static final long lockTicks = 500;
+
+    /**
+     * A periodic thread that does a fixed amount of work for each job.
+     */
+    private static class ControlLoop implements Runnable {
+	ControlLoop(long period, int jobs, Lock lock, Semaphore done) {
+	    this.period = period;
+	    this.jobs = jobs;
+	    this.lock = lock;
+	    this.done = done;
+	}
+
+	public void run() {
+	    long work = period/5;
+
+	    boolean intStatus = Machine.interrupt().disable();
+	    reserved = scheduler.setReservation(KThread.currentThread(),
+						period, work*5/4, period);
+	    if (!reserved) {
+		scheduler.setPriority(PriorityScheduler.priorityMaximum);
+	    }
+	    long release = Machine.timer().getTime();
+	    Machine.interrupt().restore(intStatus);
+
+	    for (int i=0; i<jobs; i++) {
+		if (lock != null)
+		    lock.acquire();
+		spin(work);
+		if (lock != null)
+		    lock.release();
+
+		long lateness = Machine.timer().getTime() - (release + period);
+		if (lateness > 0) {
+		    misses++;
+		    maxLateness = Math.max(maxLateness, lateness);
+		}
+
+		release += period;
+		if (reserved) {
+		    scheduler.waitForNextPeriod();
+		}
+		else {
+		    long wait = release - Machine.timer().getTime();
+		    if (wait > 0)
+			alarm.waitUntil(wait);
+		}
+	    }
+
+	    if (reserved) {
+		intStatus = Machine.interrupt().disable();
+		scheduler.cancelReservation(KThread.currentThread());
+		Machine.interrupt().restore(intStatus);
+	    }
+
+	    done.V();
+	}
+
+	long period;
+	int jobs;
+	boolean reserved;
+	int misses = 0;
+	long maxLateness = 0;
+
+	private Lock lock;
+	private Semaphore done;
+    }
+
+    /**
+     * A thread that uses the processor until it is told to stop, holding a
+     * lock for part of the time if it is given one.
+     */
+    private static class Hog implements Runnable {
+	Hog(Lock lock, Semaphore done) {
+	    this.lock = lock;
+	    this.done = done;
+	}
+
+	public void run() {
+	    while (!stop) {
+		if (lock != null) {
+		    lock.acquire();
+		    spin(lockTicks);
+		    lock.release();
+		    spin(hogTicks - lockTicks);
+		}
+		else {
+		    spin(hogTicks);
+		}
+
+		KThread.yield();
+	    }
+
+	    done.V();
+	}
+
+	volatile boolean stop = false;
+	private Lock lock;
+	private Semaphore done;
+    }
+}
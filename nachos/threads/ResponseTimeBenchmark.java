@@ -0,0 +1,91 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A kernel that measures how quickly an interactive thread gets the processor
+ * back while CPU-bound threads are running. <tt>ResponseTimeBenchmark.hogs</tt>
+ * threads (4 by default) spend simulated time with interrupts enabled and
+ * yield about every 1000 ticks, as a time slice would make them. Meanwhile
+ * one thread waits for I/O <tt>ResponseTimeBenchmark.requests</tt> times (200
+ * by default), 2000 ticks at a time, and records how long after the I/O
+ * finished it ran again.
+ *
+ * <p>
+ * Run it by setting <tt>Kernel.kernel</tt> to
+ * <tt>nachos.threads.ResponseTimeBenchmark</tt>, and compare the response
+ * times under the round-robin and MLFQ schedulers.
+ */
+public class ResponseTimeBenchmark extends Benchmark {
+    /**
+     * Allocate a new response time benchmark.
+     */
+    public ResponseTimeBenchmark() {
+	super();
+    }
+
+    /**
+     * Run the hogs and the interactive thread, and print the response times.
+     */
+    public void run() {
+	int numHogs = Config.getInteger("ResponseTimeBenchmark.hogs", 4);
+	int requests = Config.getInteger("ResponseTimeBenchmark.requests", 200);
+	Lib.assertTrue(numHogs >= 0 && requests > 0);
+
+	Semaphore done = new Semaphore(0);
+	Hog[] hogs = new Hog[numHogs];
+
+	for (int i=0; i<numHogs; i++) {
+	    hogs[i] = new Hog(done);
+	    new KThread(hogs[i]).setName("hog " + i).fork();
+	}
+
+	long totalResponse = 0, maxResponse = 0;
+
+	for (int i=0; i<requests; i++) {
+	    long due = Machine.timer().getTime() + ioTicks;
+
+	    scheduler.waitingForIO();
+	    alarm.waitUntil(ioTicks);
+
+	    long response = Machine.timer().getTime() - due;
+	    totalResponse += response;
+	    maxResponse = Math.max(maxResponse, response);
+	}
+
+	for (int i=0; i<numHogs; i++)
+	    hogs[i].stop = true;
+	for (int i=0; i<numHogs; i++)
+	    done.P();
+
+	System.out.println(scheduler.getClass().getName() + ", " + numHogs +
+			   " hogs: mean response " + totalResponse/requests +
+			   " ticks, max " + maxResponse + " ticks");
+    }
+
+    /** How long the interactive thread waits for each I/O. */
+    private static final int ioTicks = 2000;
+    /** How long each hog runs before it yields. */
+    private static final int hogTicks = 1000;
+
+    /**
+     * A thread that uses the processor until it is told to stop.
+     */
+    private static class Hog implements Runnable {
+	Hog(Semaphore done) {
+	    this.done = done;
+	}
+
+	public void run() {
+	    while (!stop) {
+		spin(hogTicks);
+		KThread.yield();
+	    }
+
+	    done.V();
+	}
+
+	volatile boolean stop = false;
+	private Semaphore done;
+    }
+}
@@ -2,7 +2,7 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.LinkedList;
+import java.util.LinkedHashSet;
 import java.util.Iterator;
 
 /**
@@ -55,7 +55,23 @@ public class RoundRobinScheduler extends Scheduler {
 			if (waitQueue.isEmpty())
 			return null;
 
-			return (KThread) waitQueue.removeFirst();
+			Iterator<KThread> first = waitQueue.iterator();
+			KThread thread = first.next();
+			first.remove();
+
+			return thread;
+		}
+
+		/**
+		 * Remove a thread from wherever it is in the queue.
+		 *
+		 * @param	thread	the thread that no longer wants access.
+		 * @return	<tt>true</tt> if the thread was in the queue.
+		 */
+		public boolean cancelWait(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			return waitQueue.remove(thread);
 		}
 
 		/**
@@ -79,6 +95,7 @@ public class RoundRobinScheduler extends Scheduler {
 			System.out.print((KThread) i.next() + " ");
 		}
 
-		private LinkedList<KThread> waitQueue = new LinkedList<KThread>();
+		/** The waiting threads, in the order they started waiting. */
+		private LinkedHashSet<KThread> waitQueue = new LinkedHashSet<KThread>();
     }
 }
@@ -52,6 +52,95 @@ public abstract class Scheduler {
      */
     public abstract ThreadQueue newThreadQueue(boolean transferPriority);
 
+    /**
+     * Allocate the queue of threads waiting for a processor. By default this
+     * is just a queue that does not transfer priority, but a scheduler that
+     * preempts threads may want to know which queue it is.
+     *
+     * @return	a new ready queue.
+     */
+    public ThreadQueue newReadyQueue() {
+	return newThreadQueue(false);
+    }
+
+    /**
+     * Called with interrupts disabled when the specified thread starts
+     * running on the current processor. By default this does nothing.
+     *
+     * @param	thread	the thread that is now running.
+     */
+    public void threadRunning(KThread thread) {
+    }
+
+    /**
+     * Called with interrupts disabled when the specified thread, which is
+     * running on the current processor, is about to give it up. By default
+     * this does nothing.
+     *
+     * @param	thread	the thread that is about to stop running.
+     */
+    public void threadStopping(KThread thread) {
+    }
+
+    /**
+     * Called by the timer interrupt handler, with interrupts disabled, to ask
+     * whether the current thread should be made to yield. By default threads
+     * are never preempted.
+     *
+     * @return	<tt>true</tt> if the current thread should yield.
+     */
+    public boolean shouldPreempt() {
+	return false;
+    }
+
+    /**
+     * Called when the current thread is about to block until a device
+     * finishes some I/O, so that a scheduler can favour threads that spend
+     * their time waiting for I/O. By default this does nothing.
+     */
+    public void waitingForIO() {
+    }
+
+    /**
+     * Give the specified thread a real-time reservation: from now on, every
+     * <i>period</i> ticks it releases a job that may use up to <i>budget</i>
+     * ticks of the processor, and should finish within <i>deadline</i> ticks
+     * of its release. Must be called with interrupts disabled. By default
+     * there is no real-time class, and no reservation is admitted.
+     *
+     * @param	thread	the thread to give the reservation to.
+     * @param	period	the ticks between the releases of its jobs.
+     * @param	budget	the ticks of the processor each job may use.
+     * @param	deadline	the ticks after its release by which each job
+     *				should finish, no more than <i>period</i>.
+     * @return	<tt>true</tt> if the reservation was admitted, or
+     *		<tt>false</tt> if it would overload the processor.
+     */
+    public boolean setReservation(KThread thread, long period, long budget,
+				  long deadline) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+	return false;
+    }
+
+    /**
+     * Take away the real-time reservation of the specified thread, if it has
+     * one. Must be called with interrupts disabled. A thread with a
+     * reservation should cancel it before it finishes.
+     *
+     * @param	thread	the thread whose reservation to cancel.
+     */
+    public void cancelReservation(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+    }
+
+    /**
+     * Called by a thread with a real-time reservation when it has finished
+     * its current job. Sleeps until its next job is released. By default
+     * this returns immediately.
+     */
+    public void waitForNextPeriod() {
+    }
+
     /**
      * Get the priority of the specified thread. Must be called with
      * interrupts disabled.
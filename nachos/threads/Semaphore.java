@@ -14,6 +14,10 @@ import nachos.machine.*;
  * </ul>
  *
  * <p>
+ * <tt>tryP()</tt> and <tt>P(ticks)</tt> are versions of <tt>P()</tt> that
+ * give up if the value does not become greater than zero in time.
+ *
+ * <p>
  * Note that this API does not allow a thread to read the value of the
  * semaphore directly. Even if you did read the value, the only thing you would
  * know is what the value used to be. You don't know what the value is now,
@@ -48,6 +52,44 @@ public class Semaphore {
 	Machine.interrupt().restore(intStatus);
     }
 
+    /**
+     * Atomically decrement this semaphore if it is non-zero, without waiting.
+     *
+     * @return	<tt>true</tt> if the semaphore was decremented.
+     */
+    public boolean tryP() {
+	return P(0);
+    }
+
+    /**
+     * Atomically wait for this semaphore to become non-zero and decrement it,
+     * giving up once the specified number of ticks have passed.
+     *
+     * @param	ticks	the most clock ticks to wait.
+     * @return	<tt>true</tt> if the semaphore was decremented, or
+     *		<tt>false</tt> if the time passed first.
+     */
+    public boolean P(long ticks) {
+	boolean intStatus = Machine.interrupt().disable();
+	boolean decremented = true;
+
+	if (value == 0) {
+	    if (ticks > 0) {
+		waitQueue.waitForAccess(KThread.currentThread());
+		decremented = ThreadedKernel.alarm.waitUntil(ticks, waitQueue);
+	    }
+	    else {
+		decremented = false;
+	    }
+	}
+	else {
+	    value--;
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return decremented;
+    }
+
     /**
      * Atomically increment this semaphore and wake up at most one other thread
      * sleeping on this semaphore.
@@ -83,6 +125,25 @@ public class Semaphore {
 	private Semaphore pong;
     }
 
+    private static class TimedV implements Runnable {
+	TimedV(Semaphore semaphore, int count, int maxTicks) {
+	    this.semaphore = semaphore;
+	    this.count = count;
+	    this.maxTicks = maxTicks;
+	}
+
+	public void run() {
+	    for (int i=0; i<count; i++) {
+		ThreadedKernel.alarm.waitUntil(1 + Lib.random(maxTicks));
+		semaphore.V();
+	    }
+	}
+
+	private Semaphore semaphore;
+	private int count;
+	private int maxTicks;
+    }
+
     /**
      * Test if this module is working.
      */
@@ -96,6 +157,46 @@ public class Semaphore {
 	    ping.V();
 	    pong.P();
 	}
+
+	// a timed P() gives up if nobody calls V() in time
+	Semaphore timed = new Semaphore(0);
+	Lib.assertTrue(!timed.tryP());
+	long start = Machine.timer().getTime();
+	Lib.assertTrue(!timed.P(100));
+	Lib.assertTrue(Machine.timer().getTime() >= start+100);
+
+	// but takes a V() that comes in time
+	new KThread(new TimedV(timed, 1, 50)).setName("timed V").fork();
+	Lib.assertTrue(timed.P(1000));
+	Lib.assertTrue(!timed.tryP());
+
+	// V() races the timeouts, but each V() is taken exactly once
+	final Semaphore racing = new Semaphore(0);
+	final Semaphore done = new Semaphore(0);
+	final int[] taken = new int[1];
+
+	for (int i=0; i<5; i++) {
+	    new KThread(new Runnable() {
+		    public void run() {
+			for (int j=0; j<10; j++) {
+			    if (racing.P(1 + Lib.random(100)))
+				taken[0]++;
+			}
+			done.V();
+		    }
+		}).setName("timed P").fork();
+	}
+
+	KThread racer = new KThread(new TimedV(racing, 40, 20));
+	racer.setName("timed V").fork();
+
+	for (int i=0; i<5; i++)
+	    done.P();
+	racer.join();
+
+	while (racing.tryP())
+	    taken[0]++;
+	Lib.assertTrue(taken[0] == 40);
     }
 
     private int value;
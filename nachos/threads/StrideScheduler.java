@@ -0,0 +1,285 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A scheduler that shares the processor deterministically in proportion to
+ * tickets, using stride scheduling.
+ *
+ * <p>
+ * Like a lottery scheduler, a stride scheduler gives each thread a number of
+ * tickets (its priority), and tickets are transferred through locks and
+ * joins, where they add. Instead of holding a lottery, every thread has a
+ * <i>stride</i> inversely proportional to its tickets and a <i>pass</i>. The
+ * waiting thread with the smallest pass is dequeued next, and its pass is
+ * advanced by its stride. Over any interval, each thread is then chosen in
+ * proportion to its tickets to within one choice, without the variance of a
+ * lottery.
+ *
+ * <p>
+ * A thread that leaves a queue remembers how far its pass was ahead of the
+ * queue, and resumes that far ahead of the queue when it next waits, so
+ * sleeping neither gains nor loses it any share. A thread with no tickets is
+ * charged as though it had half a ticket.
+ */
+public class StrideScheduler extends LotteryScheduler {
+    /**
+     * Allocate a new stride scheduler.
+     */
+    public StrideScheduler() {
+    }
+
+    /**
+     * Allocate a new stride thread queue.
+     *
+     * @param	transferPriority	<tt>true</tt> if this queue should
+     *					transfer tickets from waiting threads
+     *					to the owning thread.
+     * @return	a new stride thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new StrideQueue(transferPriority);
+    }
+
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * Test if this module is working, using a scheduler of its own and
+     * threads that never run.
+     */
+    public static void selfTest() {
+	StrideScheduler scheduler = new StrideScheduler();
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	// over every round of choices, each thread is chosen exactly as often
+	// as its tickets say, also once the heap has grown
+	KThread[] threads = new KThread[12];
+	int[] choices = new int[threads.length];
+	int tickets = 0;
+	ThreadQueue queue = scheduler.newThreadQueue(false);
+
+	for (int i=0; i<threads.length; i++) {
+	    threads[i] = new KThread().setName("stride test " + i);
+	    scheduler.setPriority(threads[i], i%4 + 1);
+	    tickets += i%4 + 1;
+	    queue.waitForAccess(threads[i]);
+	}
+
+	for (int round=1; round<=100; round++) {
+	    for (int i=0; i<tickets; i++) {
+		KThread chosen = queue.nextThread();
+		for (int j=0; j<threads.length; j++) {
+		    if (threads[j] == chosen)
+			choices[j]++;
+		}
+		queue.waitForAccess(chosen);
+	    }
+
+	    for (int i=0; i<threads.length; i++)
+		Lib.assertTrue(choices[i] == round * (i%4 + 1));
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Return the stride of a thread holding the specified number of tickets.
+     *
+     * @param	tickets	the effective priority of the thread.
+     * @return	the amount its pass advances each time it is chosen.
+     */
+    protected static long stride(int tickets) {
+	if (tickets == 0)
+	    return stride1*2;
+
+	return stride1/tickets;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that chooses the waiting thread with the
+     * smallest pass, keeping the waiting threads in a binary min-heap.
+     */
+    protected class StrideQueue extends LotteryScheduler.LotteryQueue {
+	StrideQueue(boolean transferPriority) {
+	    super(transferPriority);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState winner = pickNextThread();
+	    if (winner == null)
+		return null;
+
+	    // the queue has reached the winner's pass; charge it one stride
+	    globalPass = winner.pass;
+	    winner.pass += stride(winner.queuedPriority);
+
+	    remove(winner);
+	    acquire(winner.thread);
+
+	    return winner.thread;
+	}
+
+	protected ThreadState pickNextThread() {
+	    if (size == 0)
+		return null;
+
+	    return heap[0];
+	}
+
+	protected boolean isEmpty() {
+	    return size == 0;
+	}
+
+	protected void add(PriorityScheduler.ThreadState state) {
+	    ThreadState strideState = (ThreadState) state;
+
+	    strideState.pass = globalPass + strideState.remain;
+	    strideState.arrival = numArrivals++;
+	    strideState.queuedPriority = strideState.getEffectivePriority();
+	    tickets += strideState.queuedPriority;
+
+	    if (size == heap.length) {
+		ThreadState[] newHeap = new ThreadState[heap.length*2];
+		System.arraycopy(heap, 0, newHeap, 0, size);
+		heap = newHeap;
+	    }
+
+	    siftUp(strideState, size++);
+	}
+
+	protected void remove(PriorityScheduler.ThreadState state) {
+	    ThreadState strideState = (ThreadState) state;
+
+	    strideState.remain = strideState.pass - globalPass;
+	    tickets -= strideState.queuedPriority;
+
+	    int index = strideState.heapIndex;
+	    ThreadState last = heap[--size];
+	    heap[size] = null;
+
+	    if (last != strideState) {
+		siftDown(last, index);
+		if (last.heapIndex == index)
+		    siftUp(last, index);
+	    }
+	}
+
+	protected void reposition(PriorityScheduler.ThreadState state) {
+	    ThreadState strideState = (ThreadState) state;
+	    int newTickets = strideState.getEffectivePriority();
+	    if (newTickets == strideState.queuedPriority)
+		return;
+
+	    // scale what is left of the current stride to the new one
+	    long remain = strideState.pass - globalPass;
+	    strideState.pass = globalPass +
+		remain * stride(newTickets) / stride(strideState.queuedPriority);
+
+	    tickets += newTickets - strideState.queuedPriority;
+	    strideState.queuedPriority = newTickets;
+
+	    int index = strideState.heapIndex;
+	    siftDown(strideState, index);
+	    if (strideState.heapIndex == index)
+		siftUp(strideState, index);
+	}
+
+	/**
+	 * Return <tt>true</tt> if <i>a</i> should be chosen before <i>b</i>.
+	 */
+	private boolean before(ThreadState a, ThreadState b) {
+	    if (a.pass != b.pass)
+		return a.pass < b.pass;
+
+	    return a.arrival < b.arrival;
+	}
+
+	/**
+	 * Place <i>state</i> at <i>index</i> or above, moving larger parents
+	 * down into the hole.
+	 */
+	private void siftUp(ThreadState state, int index) {
+	    while (index > 0) {
+		int parent = (index-1)/2;
+		if (!before(state, heap[parent]))
+		    break;
+
+		heap[index] = heap[parent];
+		heap[index].heapIndex = index;
+		index = parent;
+	    }
+
+	    heap[index] = state;
+	    state.heapIndex = index;
+	}
+
+	/**
+	 * Place <i>state</i> at <i>index</i> or below, moving smaller children
+	 * up into the hole.
+	 */
+	private void siftDown(ThreadState state, int index) {
+	    while (true) {
+		int child = 2*index+1;
+		if (child >= size)
+		    break;
+		if (child+1 < size && before(heap[child+1], heap[child]))
+		    child++;
+		if (!before(heap[child], state))
+		    break;
+
+		heap[index] = heap[child];
+		heap[index].heapIndex = index;
+		index = child;
+	    }
+
+	    heap[index] = state;
+	    state.heapIndex = index;
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=0; i<size; i++) {
+		System.out.print(" " + heap[i].thread + "(" +
+				 heap[i].queuedPriority + ", pass " +
+				 (heap[i].pass - globalPass) + ")");
+	    }
+	    System.out.println();
+	}
+
+	/** The waiting threads, as a binary min-heap ordered on pass. */
+	private ThreadState[] heap = new ThreadState[8];
+	private int size = 0;
+
+	/** The pass of the thread most recently chosen. */
+	private long globalPass = 0;
+	/** The number of threads that have ever waited on this queue. */
+	private long numArrivals = 0;
+    }
+
+    protected class ThreadState extends LotteryScheduler.ThreadState {
+	public ThreadState(KThread thread) {
+	    super(thread);
+	}
+
+	/** The pass of this thread in the queue it is waiting on. */
+	protected long pass;
+	/** How far ahead of its queue this thread was when it left. */
+	protected long remain = 0;
+	/** Breaks ties in pass in favour of the longest waiting thread. */
+	protected long arrival;
+	/** The position of this thread in its queue's heap. */
+	protected int heapIndex;
+    }
+
+    /** The stride of a thread with a single ticket. */
+    protected static final long stride1 = 1 << 20;
+}
@@ -91,6 +91,22 @@ public abstract class ThreadQueue {
      */
     public abstract void acquire(KThread thread);
 
+    /**
+     * Notify this thread queue that a waiting thread has given up waiting for
+     * access, for example because its timeout has passed. If the thread is
+     * still waiting, remove it without giving it access, and take back any
+     * priority it was donating through this queue.
+     *
+     * <p>
+     * The thread may already have been returned from <tt>nextThread()</tt>,
+     * in which case it has access and this method does nothing.
+     *
+     * @param	thread	the thread that no longer wants access.
+     * @return	<tt>true</tt> if the thread was removed, or <tt>false</tt> if
+     *		it was not waiting on this queue.
+     */
+    public abstract boolean cancelWait(KThread thread);
+
     /**
      * Print out all the threads waiting for access, in no particular order.
      */
@@ -41,14 +41,24 @@ public class ThreadedKernel extends Kernel {
 
     /**
      * Test this kernel. Test the <tt>KThread</tt>, <tt>Semaphore</tt>,
-     * <tt>SynchList</tt>, and <tt>ElevatorBank</tt> classes. Note that the
-     * autograder never calls this method, so it is safe to put additional
-     * tests here.
+     * <tt>Lock</tt>, <tt>Condition2</tt>, <tt>SynchList</tt>,
+     * <tt>BoundedCommunicator</tt>, and <tt>ElevatorBank</tt> classes, and
+     * the schedulers. Note that the autograder never calls this method, so it
+     * is safe to put additional tests here.
      */	
     public void selfTest() {
 	KThread.selfTest();
 	Semaphore.selfTest();
+	Lock.selfTest();
+	Condition2.selfTest();
 	SynchList.selfTest();
+	BoundedCommunicator.selfTest();
+	PriorityScheduler.selfTest();
+	LotteryScheduler.selfTest();
+	StrideScheduler.selfTest();
+	MLFQScheduler.selfTest();
+	CFSScheduler.selfTest();
+	EDFScheduler.selfTest();
 	if (Machine.bank() != null) {
 	    ElevatorBank.selfTest();
 	}
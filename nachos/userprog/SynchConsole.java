@@ -43,6 +43,7 @@ public class SynchConsole {
 
 	if (block || charAvailable) {
 	    charAvailable = false;
+	    ThreadedKernel.scheduler.waitingForIO();
 	    readWait.P();
 
 	    value = console.readByte();
@@ -79,6 +80,7 @@ public class SynchConsole {
     public void writeByte(int value) {
 	writeLock.acquire();
 	console.writeByte(value);
+	ThreadedKernel.scheduler.waitingForIO();
 	writeWait.P();
 	writeLock.release();
     }
@@ -21,7 +21,7 @@ public class UserKernel extends ThreadedKernel {
 
     /**
      * Initialize this kernel. Creates a synchronized console and sets the
-     * processor's exception handler.
+     * exception handler of every processor.
      */
     public void initialize(String[] args) {
 		super.initialize(args);
@@ -33,9 +33,12 @@ public class UserKernel extends ThreadedKernel {
 			freePages.add(i);
 		}
 
-		Machine.processor().setExceptionHandler(new Runnable() {
+		Runnable handler = new Runnable() {
 			public void run() { exceptionHandler(); }
-			});
+			};
+		for (int i = 0; i < Machine.numProcessors(); ++i) {
+			Machine.processor(i).setExceptionHandler(handler);
+		}
     }
 
     /**
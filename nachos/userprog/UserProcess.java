@@ -170,7 +170,7 @@ public class UserProcess {
 				 int length) {
 		Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
 
-		byte[] memory = Machine.processor().getMemory();
+		int memorySize = Machine.processor().getNumPhysPages() * pageSize;
 		int vpn = Machine.processor().pageFromAddress(vaddr);
 		int addrOffset = Machine.processor().offsetFromAddress(vaddr);
 
@@ -188,8 +188,8 @@ public class UserProcess {
 
 		entry.used = true;
 		int paddr = entry.ppn * pageSize + addrOffset;
-		int amount = Math.min(length, memory.length - paddr);
-		System.arraycopy(memory, paddr, data, offset, amount);
+		int amount = Math.min(length, memorySize - paddr);
+		Machine.processor().readPhysicalMemory(paddr, data, offset, amount);
 
 		return amount;
     }
@@ -225,7 +225,7 @@ public class UserProcess {
 				  int length) {
 		Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
 
-		byte[] memory = Machine.processor().getMemory();
+		int memorySize = Machine.processor().getNumPhysPages() * pageSize;
 		int vpn = Machine.processor().pageFromAddress(vaddr);
 		int addrOffset = Machine.processor().offsetFromAddress(vaddr);
 
@@ -247,8 +247,8 @@ public class UserProcess {
 		entry.dirty = true;
 
 		int paddr = entry.ppn * pageSize + addrOffset;
-		int amount = Math.min(length, memory.length - paddr);
-		System.arraycopy(data, offset, memory, vaddr, amount);
+		int amount = Math.min(length, memorySize - paddr);
+		Machine.processor().writePhysicalMemory(vaddr, data, offset, amount);
 
 		return amount;
     }